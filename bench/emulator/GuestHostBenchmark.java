@@ -0,0 +1,74 @@
+package emulator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import emulator.cpu.Cpu;
+
+/**
+ * Forks of one machine running an ALU loop side by side on a GuestHost,
+ * the score is instructions per microsecond over all guests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GuestHostBenchmark {
+    
+    private static final int GUESTS = 16;
+    private static final long INSTRUCTIONS = 200000;
+    
+    private static final byte[] ALU = {
+            (byte) 0x01, (byte) 0xD8,   // 0100 ADD AX, BX
+            (byte) 0x31, (byte) 0xC2,   // 0102 XOR DX, AX
+            (byte) 0x43,                // 0104 INC BX
+            (byte) 0xEB, (byte) 0xF9};  // 0105 JMP 0100
+    
+    @Param({"1", "2", "4"})
+    public int threads;
+    
+    private Cpu parent;
+    private GuestHost host;
+    
+    @Setup
+    public void setup() throws Exception {
+        Memory mem = new CowMemory(0x100000);
+        mem.loadData(0xffff0, new byte[] {(byte) 0xEA, 0x00, 0x01, 0x00, 0x00});
+        mem.loadData(0x100, ALU);
+        parent = new Cpu(mem);
+        parent.setTranslationEnabled(true);
+        parent.step();
+        host = new GuestHost(threads);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        host.close();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation((int) (GUESTS * INSTRUCTIONS))
+    public void run() throws InterruptedException {
+        for (int i = 0; i < GUESTS; ++i) {
+            Guest guest = new Guest("guest" + i, parent.fork());
+            guest.setInstructionLimit(INSTRUCTIONS);
+            host.start(guest);
+        }
+        host.awaitAll();
+    }
+}
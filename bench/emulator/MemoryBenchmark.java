@@ -0,0 +1,92 @@
+package emulator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single accesses walking through the first 64K of memory, bulk
+ * operations on 64K blocks, and forking the whole 1 MiB.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryBenchmark {
+    
+    private static final int MASK = 0xffff;
+    
+    @Param({"heap", "direct", "cow"})
+    public String backend;
+    
+    private Memory mem;
+    private int addr;
+    
+    @Setup
+    public void setup() {
+        mem = Memory.create(backend, 0x100000);
+        byte[] data = new byte[MASK + 1];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        mem.loadData(0, data);
+        mem.loadData(0x20000, data);
+    }
+    
+    @Benchmark
+    public byte getByte() {
+        addr = (addr + 1) & MASK;
+        return mem.getByte(addr);
+    }
+    
+    @Benchmark
+    public short getWord() {
+        addr = (addr + 2) & MASK;
+        return mem.getWord(addr);
+    }
+    
+    @Benchmark
+    public void setWord() {
+        addr = (addr + 2) & MASK;
+        mem.setWord(addr, (short) addr);
+    }
+    
+    @Benchmark
+    public void fill64K() {
+        mem.fill(0x40000, MASK + 1, (byte) 0xf6);
+    }
+    
+    @Benchmark
+    public void fill64KBytewise() {
+        for (int i = 0; i <= MASK; ++i) {
+            mem.setByte(0x40000 + i, (byte) 0xf6);
+        }
+    }
+    
+    @Benchmark
+    public void copy64K() {
+        mem.copy(0, 0x40000, MASK + 1);
+    }
+    
+    @Benchmark
+    public int compare64K() {
+        return mem.compare(0, 0x20000, MASK + 1);
+    }
+    
+    @Benchmark
+    public Memory fork() {
+        return mem.fork();
+    }
+}
@@ -0,0 +1,77 @@
+package emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving and restoring 1 MiB of memory, of which the given part is in use
+ * and the rest zero, and saving deltas of a few written pages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+    
+    @Param({"64", "1024"})
+    public int usedKiB;
+    
+    private Memory mem;
+    private Snapshot snapshot;
+    private Path file;
+    private Path delta;
+    
+    @Setup
+    public void setup() throws IOException {
+        mem = new HeapMemory(0x100000);
+        for (int addr = 0; addr < usedKiB * 1024; addr += 2) {
+            mem.setWord(addr, (short) addr);
+        }
+        snapshot = new Snapshot(mem);
+        file = File.createTempFile("bench", ".snap").toPath();
+        snapshot.save(file);
+        delta = File.createTempFile("bench", ".delta").toPath();
+    }
+    
+    @TearDown
+    public void tearDown() {
+        file.toFile().delete();
+        delta.toFile().delete();
+    }
+    
+    @Benchmark
+    public void save() throws IOException {
+        snapshot.save(file);
+    }
+    
+    @Benchmark
+    public void restore() throws IOException {
+        snapshot.restore(file);
+    }
+    
+    /** four pages written between checkpoints */
+    @Benchmark
+    public void saveDelta() throws IOException {
+        for (int page = 0; page < 4; ++page) {
+            mem.setByte(page << Memory.PAGE_SHIFT, (byte) page);
+        }
+        snapshot.saveDelta(delta);
+    }
+}
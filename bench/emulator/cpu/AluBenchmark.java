@@ -0,0 +1,80 @@
+package emulator.cpu;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import emulator.HeapMemory;
+
+/**
+ * ALU helpers. Flags are evaluated lazily, so the *Flags variants read them
+ * back to include the cost of computing them.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AluBenchmark {
+    
+    private Cpu cpu;
+    private State state;
+    private int v = 0x1234;
+    
+    @Setup
+    public void setup() {
+        cpu = new Cpu(new HeapMemory(0x100000));
+        state = cpu.getState();
+    }
+    
+    @Benchmark
+    public short add16() {
+        v = cpu.add16(v, 0x0101);
+        return (short) v;
+    }
+    
+    @Benchmark
+    public int add16Flags() {
+        v = cpu.add16(v, 0x0101);
+        return state.getFlags();
+    }
+    
+    @Benchmark
+    public int sub8Flags() {
+        v = cpu.sub8((byte) v, (byte) 0x11);
+        return state.getFlags();
+    }
+    
+    @Benchmark
+    public boolean sub16ZeroFlag() {
+        v = cpu.sub16(v, 0x0101);
+        return state.getZeroFlag();
+    }
+    
+    @Benchmark
+    public int xor16Flags() {
+        v = cpu.xor16(v, 0x5a5a);
+        return state.getFlags();
+    }
+    
+    @Benchmark
+    public int inc16Flags() {
+        v = cpu.inc16(v);
+        return state.getFlags();
+    }
+    
+    @Benchmark
+    public int adc8Flags() {
+        v = cpu.adc8((byte) v, (byte) 0x80);
+        return state.getFlags();
+    }
+}
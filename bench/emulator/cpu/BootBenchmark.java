@@ -0,0 +1,61 @@
+package emulator.cpu;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import emulator.HeapMemory;
+import emulator.Memory;
+import emulator.RomLoader;
+
+/**
+ * Boots the BIOS from reset for a fixed number of instructions (or until it
+ * stops). The ROM image is read relative to the working directory.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class BootBenchmark {
+    
+    @Param({"bios/rombios.bin"})
+    public String rom;
+    
+    @Param({"100000"})
+    public long instructions;
+    
+    private Path image;
+    private Cpu cpu;
+    
+    @Setup(Level.Trial)
+    public void findRom() {
+        image = Paths.get(rom);
+    }
+    
+    @Setup(Level.Invocation)
+    public void reset() throws Exception {
+        Memory mem = new HeapMemory(0x100000);
+        new RomLoader(mem).loadBios(image);
+        cpu = new Cpu(mem);
+    }
+    
+    @Benchmark
+    public long boot() throws Exception {
+        cpu.run(instructions);
+        return cpu.getInstructionsRetired();
+    }
+}
@@ -0,0 +1,62 @@
+package emulator.cpu;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import emulator.HeapMemory;
+import emulator.Memory;
+
+/**
+ * Decoding a ModRM byte and its displacement from memory (the path taken
+ * outside of cached blocks) for each addressing mode.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModRMBenchmark {
+    
+    private static final int CODE_IP = 0x100;
+    
+    /**
+     * 00-07: [BX+SI] [BX+DI] [BP+SI] [BP+DI] [SI] [DI] [disp16] [BX],
+     * 40/46: +disp8, 80/87: +disp16, C0: register
+     */
+    @Param({"00", "01", "02", "03", "04", "05", "06", "07", "40", "46", "80", "87", "C0"})
+    public String modRM;
+    
+    private Cpu cpu;
+    private State state;
+    private Cpu.ModRM decoder;
+    
+    @Setup
+    public void setup() {
+        Memory mem = new HeapMemory(0x100000);
+        mem.loadData(CODE_IP, new byte[] {(byte) Integer.parseInt(modRM, 16), 0x34, 0x12});
+        cpu = new Cpu(mem);
+        state = cpu.getState();
+        state.setCS(0);
+        state.setBX(0x1000);
+        state.setSI(0x20);
+        decoder = cpu.new ModRM();
+    }
+    
+    @Benchmark
+    public int read() throws Exception {
+        state.setIP(CODE_IP);
+        decoder.read();
+        return decoder.getAddress();
+    }
+}
@@ -0,0 +1,142 @@
+package emulator.cpu;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import emulator.Memory;
+
+/**
+ * Executes endless synthetic programs, the score is instructions per
+ * microsecond (MIPS).
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StepBenchmark {
+    
+    private static final int BATCH = 10000;
+    
+    private static final int[] ALU = {
+            0xB9, 0xFF, 0xFF,       // 0100 MOV CX, FFFF
+            0x01, 0xD8,             // 0103 ADD AX, BX
+            0x31, 0xC2,             // 0105 XOR DX, AX
+            0x11, 0xCE,             // 0107 ADC SI, CX
+            0x21, 0xC7,             // 0109 AND DI, AX
+            0x81, 0xC3, 0x34, 0x12, // 010B ADD BX, 1234
+            0x3C, 0x10,             // 010F CMP AL, 10
+            0x49,                   // 0111 DEC CX
+            0x75, 0xEF,             // 0112 JNZ 0103
+            0xEB, 0xEA};            // 0114 JMP 0100
+    
+    private static final int[] BRANCH = {
+            0xB9, 0xFF, 0xFF,       // 0100 MOV CX, FFFF
+            0x80, 0xF9, 0x80,       // 0103 CMP CL, 80
+            0x72, 0x02,             // 0106 JB 010A
+            0xEB, 0x00,             // 0108 JMP 010A
+            0x74, 0x00,             // 010A JZ 010C
+            0x77, 0x00,             // 010C JA 010E
+            0x49,                   // 010E DEC CX
+            0x75, 0xF2,             // 010F JNZ 0103
+            0xEB, 0xED};            // 0111 JMP 0100
+    
+    private static final int[] STRING = {
+            0xB8, 0x00, 0x20,       // 0100 MOV AX, 2000
+            0x8E, 0xC0,             // 0103 MOV ES, AX
+            0xBF, 0x00, 0x00,       // 0105 MOV DI, 0
+            0xBE, 0x00, 0x00,       // 0108 MOV SI, 0
+            0xB9, 0x00, 0x01,       // 010B MOV CX, 100
+            0xF3, 0xAB,             // 010E REP STOSW
+            0xB9, 0x40, 0x00,       // 0110 MOV CX, 40
+            0xAC,                   // 0113 LODSB
+            0x49,                   // 0114 DEC CX
+            0x75, 0xFC,             // 0115 JNZ 0113
+            0xEB, 0xE7};            // 0117 JMP 0100
+    
+    private static final int[] STACK = {
+            0xBC, 0x00, 0x10,       // 0100 MOV SP, 1000
+            0xB9, 0xFF, 0xFF,       // 0103 MOV CX, FFFF
+            0x50,                   // 0106 PUSH AX
+            0x53,                   // 0107 PUSH BX
+            0xE8, 0x07, 0x00,       // 0108 CALL 0112
+            0x5B,                   // 010B POP BX
+            0x58,                   // 010C POP AX
+            0x49,                   // 010D DEC CX
+            0x75, 0xF6,             // 010E JNZ 0106
+            0xEB, 0xEE,             // 0110 JMP 0100
+            0x1E,                   // 0112 PUSH DS
+            0x1F,                   // 0113 POP DS
+            0xC3};                  // 0114 RET
+    
+    @Param({"alu", "branch", "string", "stack"})
+    public String mix;
+    
+    @Param({"false", "true"})
+    public boolean translate;
+    
+    @Param({"heap"})
+    public String memory;
+    
+    /** instructions between History checkpoints, 0 for none */
+    @Param({"0"})
+    public long history;
+    
+    private Cpu cpu;
+    
+    @Setup
+    public void setup() throws Exception {
+        int[] code;
+        switch (mix) {
+            case "alu":
+                code = ALU;
+                break;
+            case "branch":
+                code = BRANCH;
+                break;
+            case "string":
+                code = STRING;
+                break;
+            case "stack":
+                code = STACK;
+                break;
+            default:
+                throw new IllegalArgumentException(mix);
+        }
+        byte[] data = new byte[code.length];
+        for (int i = 0; i < code.length; ++i) {
+            data[i] = (byte) code[i];
+        }
+        
+        Memory mem = Memory.create(memory, 0x100000);
+        mem.loadData(0xffff0, new byte[] {(byte) 0xEA, 0x00, 0x01, 0x00, 0x00});
+        mem.loadData(0x100, data);
+        cpu = new Cpu(mem);
+        cpu.setTranslationEnabled(translate);
+        if (history > 0) {
+            new History(cpu, history, 64 << 20);
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public StopReason run() throws Exception {
+        StopReason reason = cpu.run(BATCH);
+        if (reason != StopReason.BUDGET) {
+            throw new IllegalStateException(mix + " stopped: " + reason);
+        }
+        return reason;
+    }
+}
@@ -0,0 +1,347 @@
+package emulator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Write listeners, dirty pages, read-only ranges and wraparound, the
+ * backends only store the bytes. The raw methods of the backends get ranges that neither wrap
+ * around nor cross into or out of read-only memory.
+ */
+public abstract class AbstractMemory implements Memory {
+    
+    private final int size;
+    
+    /** size - 1, applied to every address */
+    protected final int mask;
+    
+    private final WriteListener[] listeners;
+    
+    /** guest writes to these blocks are dropped */
+    private final boolean[] readOnly;
+    
+    /** pages written since any tracker last took them, one bit each */
+    private final long[] dirty;
+    /** per tracker, pages written before another tracker took them */
+    private long[][] pending;
+    
+    protected AbstractMemory(int size) {
+        if (size < ROM_BLOCK_SIZE || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Memory size must be a power of two: " + size);
+        }
+        this.size = size;
+        mask = size - 1;
+        listeners = new WriteListener[(size + PAGE_SIZE - 1) >> PAGE_SHIFT];
+        readOnly = new boolean[(size + ROM_BLOCK_SIZE - 1) >> ROM_SHIFT];
+        dirty = new long[(listeners.length + 63) >> 6];
+        pending = new long[][] {new long[dirty.length]};
+    }
+    
+    /**
+     * For forks: same size, read-only ranges and dirty pages, no listeners.
+     */
+    protected AbstractMemory(AbstractMemory parent) {
+        size = parent.size;
+        mask = parent.mask;
+        listeners = new WriteListener[parent.listeners.length];
+        readOnly = parent.readOnly.clone();
+        dirty = parent.dirty.clone();
+        pending = new long[parent.pending.length][];
+        for (int i = 0; i < pending.length; ++i) {
+            pending[i] = parent.pending[i].clone();
+        }
+    }
+    
+    protected abstract void store8(int addr, byte v);
+    
+    /** addr is never the last byte */
+    protected abstract void store16(int addr, short v);
+    
+    protected abstract void copyIn(int addr, byte[] data, int offset, int length);
+    
+    protected abstract void copyIn(int addr, ByteBuffer data);
+    
+    protected abstract void copyOut(int addr, byte[] data, int offset, int length);
+    
+    protected abstract void fillRaw(int addr, int length, byte value);
+    
+    /** may overlap */
+    protected abstract void copyRaw(int src, int dst, int length);
+    
+    protected abstract int compareRaw(int addr1, int addr2, int length);
+    
+    @Override
+    public int getSize() {
+        return size;
+    }
+    
+    @Override
+    public int getPageCount() {
+        return listeners.length;
+    }
+    
+    @Override
+    public void watchPage(int page, WriteListener listener) {
+        WriteListener current = listeners[page];
+        if (null == current) {
+            listeners[page] = listener;
+        } else if (current instanceof Listeners) {
+            WriteListener[] all = ((Listeners) current).all;
+            if (!Arrays.asList(all).contains(listener)) {
+                all = Arrays.copyOf(all, all.length + 1);
+                all[all.length - 1] = listener;
+                listeners[page] = new Listeners(all);
+            }
+        } else if (current != listener) {
+            listeners[page] = new Listeners(new WriteListener[] {current, listener});
+        }
+    }
+    
+    @Override
+    public void unwatchPage(int page, WriteListener listener) {
+        WriteListener current = listeners[page];
+        if (current == listener) {
+            listeners[page] = null;
+        } else if (current instanceof Listeners) {
+            WriteListener[] all = ((Listeners) current).all;
+            int i = Arrays.asList(all).indexOf(listener);
+            if (i < 0) {
+                return;
+            }
+            WriteListener[] rest = new WriteListener[all.length - 1];
+            System.arraycopy(all, 0, rest, 0, i);
+            System.arraycopy(all, i + 1, rest, i, rest.length - i);
+            listeners[page] = rest.length == 1 ? rest[0] : new Listeners(rest);
+        }
+    }
+    
+    /**
+     * The listeners of a page watched more than once, so a page with one
+     * listener costs the write path nothing extra.
+     */
+    private static final class Listeners implements WriteListener {
+        final WriteListener[] all;
+        
+        Listeners(WriteListener[] all) {
+            this.all = all;
+        }
+        
+        @Override
+        public void memoryWritten(int addr, int size) {
+            for (WriteListener listener : all) {
+                listener.memoryWritten(addr, size);
+            }
+        }
+    }
+    
+    @Override
+    public long[] takeDirtyPages() {
+        return takeDirtyPages(0);
+    }
+    
+    @Override
+    public boolean isDirty(int page) {
+        return ((dirty[page >> 6] | pending[0][page >> 6]) & (1L << page)) != 0;
+    }
+    
+    @Override
+    public int addDirtyTracker() {
+        flushDirty();
+        pending = Arrays.copyOf(pending, pending.length + 1);
+        pending[pending.length - 1] = new long[dirty.length];
+        return pending.length - 1;
+    }
+    
+    @Override
+    public long[] takeDirtyPages(int tracker) {
+        flushDirty();
+        long[] pages = pending[tracker];
+        pending[tracker] = new long[dirty.length];
+        return pages;
+    }
+    
+    /**
+     * Hands the pages written since the last take to every tracker, writes
+     * only ever mark the one shared bitmap.
+     */
+    private void flushDirty() {
+        for (long[] pages : pending) {
+            for (int i = 0; i < dirty.length; ++i) {
+                pages[i] |= dirty[i];
+            }
+        }
+        Arrays.fill(dirty, 0);
+    }
+    
+    @Override
+    public void setReadOnly(int addr, int size, boolean value) {
+        addr &= mask;
+        int first = addr >> ROM_SHIFT;
+        int count = Math.min(readOnly.length, ((addr & (ROM_BLOCK_SIZE - 1)) + size + ROM_BLOCK_SIZE - 1) >> ROM_SHIFT);
+        for (int i = 0; i < count; ++i) {
+            readOnly[(first + i) & (readOnly.length - 1)] = value;
+        }
+    }
+    
+    @Override
+    public boolean isReadOnly(int addr) {
+        return readOnly[(addr & mask) >> ROM_SHIFT];
+    }
+    
+    @Override
+    public void loadData(int addr, byte[] data) {
+        int offset = 0;
+        while (offset < data.length) {
+            addr &= mask;
+            int n = Math.min(data.length - offset, size - addr);
+            copyIn(addr, data, offset, n);
+            written(addr, n);
+            addr += n;
+            offset += n;
+        }
+    }
+    
+    @Override
+    public void loadData(int addr, ByteBuffer data) {
+        ByteBuffer src = data.duplicate();
+        while (src.hasRemaining()) {
+            addr &= mask;
+            int n = Math.min(src.remaining(), size - addr);
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + n);
+            copyIn(addr, chunk);
+            written(addr, n);
+            src.position(src.position() + n);
+            addr += n;
+        }
+    }
+    
+    @Override
+    public void readData(int addr, byte[] data) {
+        int offset = 0;
+        while (offset < data.length) {
+            addr &= mask;
+            int n = Math.min(data.length - offset, size - addr);
+            copyOut(addr, data, offset, n);
+            addr += n;
+            offset += n;
+        }
+    }
+    
+    @Override
+    public void fill(int addr, int size, byte value) {
+        while (size > 0) {
+            addr &= mask;
+            int n = run(addr, size);
+            if (!readOnly[addr >> ROM_SHIFT]) {
+                fillRaw(addr, n, value);
+                written(addr, n);
+            }
+            addr += n;
+            size -= n;
+        }
+    }
+    
+    @Override
+    public void copy(int src, int dst, int size) {
+        src &= mask;
+        dst &= mask;
+        if (size <= 0) {
+            return;
+        }
+        if (src + size <= this.size && run(dst, size) == size && !readOnly[dst >> ROM_SHIFT]) {
+            copyRaw(src, dst, size);
+            written(dst, size);
+            return;
+        }
+        
+        // wraps around or touches ROM
+        byte[] data = new byte[size];
+        readData(src, data);
+        int offset = 0;
+        while (offset < size) {
+            dst &= mask;
+            int n = run(dst, size - offset);
+            if (!readOnly[dst >> ROM_SHIFT]) {
+                copyIn(dst, data, offset, n);
+                written(dst, n);
+            }
+            dst += n;
+            offset += n;
+        }
+    }
+    
+    @Override
+    public int compare(int addr1, int addr2, int size) {
+        int offset = 0;
+        while (offset < size) {
+            addr1 &= mask;
+            addr2 &= mask;
+            int n = Math.min(size - offset, Math.min(this.size - addr1, this.size - addr2));
+            int diff = compareRaw(addr1, addr2, n);
+            if (diff >= 0) {
+                return offset + diff;
+            }
+            addr1 += n;
+            addr2 += n;
+            offset += n;
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the length of the range from addr, at most length, that does
+     * not wrap around and is all read-only or all writable.
+     */
+    private int run(int addr, int length) {
+        int end = addr + Math.min(length, size - addr);
+        boolean ro = readOnly[addr >> ROM_SHIFT];
+        int block = (addr >> ROM_SHIFT) + 1;
+        while (block << ROM_SHIFT < end && readOnly[block] == ro) {
+            ++block;
+        }
+        return Math.min(end, block << ROM_SHIFT) - addr;
+    }
+    
+    @Override
+    public void setByte(int addr, byte v) {
+        addr &= mask;
+        if (readOnly[addr >> ROM_SHIFT]) {
+            return;
+        }
+        store8(addr, v);
+        dirty[addr >> (PAGE_SHIFT + 6)] |= 1L << (addr >> PAGE_SHIFT);
+        WriteListener listener = listeners[addr >> PAGE_SHIFT];
+        if (null != listener) {
+            listener.memoryWritten(addr, 1);
+        }
+    }
+    
+    @Override
+    public void setWord(int addr, short v) {
+        addr &= mask;
+        if (addr == mask || readOnly[addr >> ROM_SHIFT] || readOnly[(addr + 1) >> ROM_SHIFT]) {
+            // wraps around, or may straddle the start or end of a ROM
+            setByte(addr, (byte) v);
+            setByte(addr + 1, (byte) (v >> 8));
+            return;
+        }
+        store16(addr, v);
+        written(addr, 2);
+    }
+    
+    protected void written(int addr, int size) {
+        if (size <= 0) {
+            return;
+        }
+        WriteListener last = null;
+        for (int page = addr >> PAGE_SHIFT; page <= (addr + size - 1) >> PAGE_SHIFT; ++page) {
+            dirty[page >> 6] |= 1L << page;
+            WriteListener listener = listeners[page];
+            if (null != listener && listener != last) {
+                listener.memoryWritten(addr, size);
+                last = listener;
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package emulator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+import emulator.cpu.Cpu;
+import emulator.cpu.State;
+import emulator.cpu.StopReason;
+
+/**
+ * Runs raw binary images without a BIOS, each one loaded at a
+ * segment:offset with initial registers until HLT, an invalid opcode or
+ * its instruction budget. Jobs are spread over worker threads, each with
+ * one Cpu and Memory that it clears and reuses for every job it takes.
+ * <p>
+ * For each job one tab separated line goes to the result file as soon as
+ * the job is done, so lines come in completion order:
+ * <pre>
+ * name  reason  instructions  AX=0000 BX=0000 ... IP=0105 FLAGS=F046  mem=1A2B3C4D
+ * </pre>
+ * where mem is the CRC-32C of all of memory. A job that throws gets
+ * ERROR and the message instead.
+ */
+public class BatchRunner {
+    
+    public static final int DEFAULT_SEGMENT = 0x0000;
+    public static final int DEFAULT_OFFSET = 0x0100;
+    public static final long DEFAULT_BUDGET = 10000000;
+    
+    private static final int INIT_SP = 0xfffe;
+    private static final int INIT_FLAGS = 0xf002;
+    
+    private static final String[] REGISTERS = {
+        "AX", "CX", "DX", "BX", "SP", "BP", "SI", "DI",
+        "ES", "CS", "SS", "DS", "IP", "FLAGS"
+    };
+    private static final int IP_INDEX = 12;
+    private static final int FLAGS_INDEX = 13;
+    
+    /**
+     * One image to run and where.
+     */
+    public static class Job {
+        final String name;
+        final Path file;
+        final int segment;
+        final int offset;
+        
+        /** by REGISTERS index, -1 where the default is kept */
+        final int[] registers = new int[REGISTERS.length];
+        
+        public Job(String name, Path file, int segment, int offset) {
+            this.name = name;
+            this.file = file;
+            this.segment = segment;
+            this.offset = offset;
+            Arrays.fill(registers, -1);
+        }
+        
+        /**
+         * Sets a register by name (AX, DS, IP, FLAGS, ...) before the job
+         * runs.
+         */
+        public void setRegister(String register, int value) {
+            int index = Arrays.asList(REGISTERS).indexOf(register.toUpperCase());
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown register: " + register);
+            }
+            registers[index] = value & 0xffff;
+        }
+    }
+    
+    private final int threads;
+    private final long budget;
+    private final String memoryBackend;
+    
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    
+    public BatchRunner(int threads, long budget) {
+        this(threads, budget, "heap");
+    }
+    
+    public BatchRunner(int threads, long budget, String memoryBackend) {
+        this.threads = threads;
+        this.budget = budget;
+        this.memoryBackend = memoryBackend;
+    }
+    
+    /**
+     * Returns the jobs of a directory, every regular file in it loaded at
+     * the defaults, or of a manifest file with one job per line:
+     * <pre>
+     * # file  [segment:offset]  [register=value ...]
+     * add.bin  1000:0100  AX=1234 DS=2000
+     * </pre>
+     * Numbers are hex, file names relative to the manifest.
+     */
+    public static List<Job> scan(Path path) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+                for (Path file : files) {
+                    if (Files.isRegularFile(file)) {
+                        jobs.add(new Job(file.getFileName().toString(), file, DEFAULT_SEGMENT, DEFAULT_OFFSET));
+                    }
+                }
+            }
+            Collections.sort(jobs, new Comparator<Job>() {
+                @Override
+                public int compare(Job a, Job b) {
+                    return a.name.compareTo(b.name);
+                }
+            });
+            return jobs;
+        }
+        
+        Path dir = path.toAbsolutePath().getParent();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            ++lineNumber;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].isEmpty()) {
+                continue;
+            }
+            try {
+                int first = 1;
+                int segment = DEFAULT_SEGMENT;
+                int offset = DEFAULT_OFFSET;
+                if (fields.length > 1 && fields[1].indexOf(':') > 0) {
+                    String[] address = fields[1].split(":");
+                    segment = Integer.parseInt(address[0], 16);
+                    offset = Integer.parseInt(address[1], 16);
+                    first = 2;
+                }
+                Job job = new Job(fields[0], dir.resolve(fields[0]), segment, offset);
+                for (int i = first; i < fields.length; ++i) {
+                    int eq = fields[i].indexOf('=');
+                    if (eq < 0) {
+                        throw new IllegalArgumentException("Expected register=value: " + fields[i]);
+                    }
+                    job.setRegister(fields[i].substring(0, eq), Integer.parseInt(fields[i].substring(eq + 1), 16));
+                }
+                jobs.add(job);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(path + ":" + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        return jobs;
+    }
+    
+    /**
+     * Runs all jobs and writes their results, returns once all are done.
+     * 
+     * @return number of jobs that ended in ERROR
+     */
+    public int run(List<Job> jobs, Writer out) throws InterruptedException, IOException {
+        next.set(0);
+        failures.set(0);
+        Worker[] workers = new Worker[Math.max(1, Math.min(threads, jobs.size()))];
+        Thread[] workerThreads = new Thread[workers.length];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new Worker(jobs, out);
+            workerThreads[i] = new Thread(workers[i], "batch-" + (i + 1));
+            workerThreads[i].start();
+        }
+        for (Thread thread : workerThreads) {
+            thread.join();
+        }
+        out.flush();
+        for (Worker worker : workers) {
+            if (null != worker.writeError) {
+                throw worker.writeError;
+            }
+        }
+        return failures.get();
+    }
+    
+    /**
+     * The machine of one worker thread.
+     */
+    private class Worker implements Runnable {
+        private final List<Job> jobs;
+        private final Writer out;
+        
+        /** the result file could not be written, the worker gave up */
+        IOException writeError;
+        
+        private final Memory mem = Memory.create(memoryBackend, 0x100000);
+        private final Cpu cpu = new Cpu(mem);
+        
+        private final byte[] buffer = new byte[0x10000];
+        private final CRC32C crc = new CRC32C();
+        private final StringBuilder line = new StringBuilder();
+        
+        Worker(List<Job> jobs, Writer out) {
+            this.jobs = jobs;
+            this.out = out;
+        }
+        
+        @Override
+        public void run() {
+            for (int i = next.getAndIncrement(); i < jobs.size(); i = next.getAndIncrement()) {
+                Job job = jobs.get(i);
+                line.setLength(0);
+                line.append(job.name).append('\t');
+                try {
+                    runJob(job);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    line.append("ERROR\t").append(e);
+                }
+                line.append('\n');
+                try {
+                    synchronized (out) {
+                        out.write(line.toString());
+                    }
+                } catch (IOException e) {
+                    writeError = e;
+                    return;
+                }
+            }
+        }
+        
+        private void runJob(Job job) throws Exception {
+            byte[] image = Files.readAllBytes(job.file);
+            mem.fill(0, mem.getSize(), (byte) 0);
+            mem.loadData((job.segment << 4) + job.offset, image);
+            
+            cpu.reset();
+            State state = cpu.getState();
+            state.setCS(job.segment);
+            state.setDS(job.segment);
+            state.setES(job.segment);
+            state.setSS(job.segment);
+            state.setSP(INIT_SP);
+            state.setIP(job.offset);
+            state.setFlags(INIT_FLAGS);
+            for (int r = 0; r < REGISTERS.length; ++r) {
+                int value = job.registers[r];
+                if (value < 0) {
+                    continue;
+                }
+                if (r == IP_INDEX) {
+                    state.setIP(value);
+                } else if (r == FLAGS_INDEX) {
+                    state.setFlags(value);
+                } else if (r >= 8) {
+                    state.setSegReg(r - 8, value);
+                } else {
+                    state.setReg(r, value);
+                }
+            }
+            
+            long before = cpu.getInstructionsRetired();
+            StopReason reason = cpu.run(budget);
+            
+            line.append(reason).append('\t');
+            line.append(cpu.getInstructionsRetired() - before).append('\t');
+            for (int r = 0; r < REGISTERS.length; ++r) {
+                int value;
+                if (r == IP_INDEX) {
+                    value = state.getIP();
+                } else if (r == FLAGS_INDEX) {
+                    value = state.getFlags();
+                } else if (r >= 8) {
+                    value = state.getSegReg(r - 8);
+                } else {
+                    value = state.getReg(r);
+                }
+                if (r > 0) {
+                    line.append(' ');
+                }
+                line.append(REGISTERS[r]).append('=').append(String.format("%04X", value));
+            }
+            line.append('\t').append(String.format("mem=%08X", digest()));
+        }
+        
+        private long digest() {
+            crc.reset();
+            for (int addr = 0; addr < mem.getSize(); addr += buffer.length) {
+                mem.readData(addr, buffer);
+                crc.update(buffer, 0, buffer.length);
+            }
+            return crc.getValue();
+        }
+    }
+    
+    /**
+     * Usage: BatchRunner &lt;directory or manifest&gt; &lt;result file&gt;
+     * <p>
+     * -Demulator.batch.threads sets the number of workers, one per core by
+     * default, -Demulator.batch.budget the instructions per job.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: BatchRunner <directory or manifest> <result file>");
+            System.exit(2);
+        }
+        List<Job> jobs = scan(Paths.get(args[0]));
+        int threads = Integer.getInteger("emulator.batch.threads", Runtime.getRuntime().availableProcessors());
+        long budget = Long.getLong("emulator.batch.budget", DEFAULT_BUDGET);
+        BatchRunner runner = new BatchRunner(threads, budget, System.getProperty("emulator.memory", "heap"));
+        
+        long start = System.nanoTime();
+        int failed;
+        try (Writer out = Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+            failed = runner.run(jobs, out);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(String.format("%d jobs (%d failed) on %d threads in %.2f s, %.0f jobs/s",
+                jobs.size(), failed, threads, seconds, jobs.size() / seconds));
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}
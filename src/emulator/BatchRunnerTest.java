@@ -0,0 +1,121 @@
+package emulator;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BatchRunnerTest {
+    
+    private static void write(Path file, int... code) throws Exception {
+        byte[] data = new byte[code.length];
+        for (int i = 0; i < code.length; ++i) {
+            data[i] = (byte) code[i];
+        }
+        Files.write(file, data);
+    }
+    
+    /**
+     * Returns the result lines by job name, split into fields.
+     */
+    private static Map<String, String[]> results(String output) {
+        Map<String, String[]> results = new HashMap<String, String[]>();
+        for (String line : output.split("\n")) {
+            String[] fields = line.split("\t");
+            results.put(fields[0], fields);
+        }
+        return results;
+    }
+    
+    @Test
+    public void testDirectory() throws Exception {
+        Path dir = Files.createTempDirectory("batch");
+        write(dir.resolve("a.bin"),
+                0xB8, 0x34, 0x12,       // MOV AX, 1234
+                0xA3, 0x00, 0x02,       // MOV [0200], AX
+                0xF4);                  // HLT
+        write(dir.resolve("b.bin"),
+                0xA1, 0x00, 0x02,       // MOV AX, [0200]
+                0xF4);                  // HLT
+        write(dir.resolve("c.bin"),
+                0xEB, 0xFE);            // JMP $
+        write(dir.resolve("d.bin"),
+                0x0F);                  // invalid
+        
+        List<BatchRunner.Job> jobs = BatchRunner.scan(dir);
+        assertEquals(4, jobs.size());
+        StringWriter out = new StringWriter();
+        // one worker, so b runs on the memory a wrote to
+        assertEquals(0, new BatchRunner(1, 1000).run(jobs, out));
+        
+        Map<String, String[]> results = results(out.toString());
+        assertEquals(4, results.size());
+        assertEquals("HALT", results.get("a.bin")[1]);
+        assertEquals("3", results.get("a.bin")[2]);
+        assertTrue(results.get("a.bin")[3].startsWith("AX=1234 CX=0000"));
+        assertTrue(results.get("a.bin")[3].contains("SP=FFFE"));
+        assertTrue(results.get("a.bin")[3].contains("IP=0107"));
+        assertTrue(results.get("b.bin")[3].startsWith("AX=0000"));
+        assertEquals("BUDGET", results.get("c.bin")[1]);
+        assertEquals("INVALID_OPCODE", results.get("d.bin")[1]);
+        assertNotEquals(results.get("a.bin")[4], results.get("b.bin")[4]);
+    }
+    
+    @Test
+    public void testManifest() throws Exception {
+        Path dir = Files.createTempDirectory("batch");
+        write(dir.resolve("add.bin"),
+                0x01, 0xD8,             // ADD AX, BX
+                0x8C, 0xD9,             // MOV CX, DS
+                0xF4);                  // HLT
+        Path manifest = dir.resolve("jobs.txt");
+        Files.write(manifest, Arrays.asList(
+                "# file  address  registers",
+                "add.bin  1000:0200  AX=0001 BX=0002",
+                "",
+                "add.bin  AX=FFFF BX=0001 DS=2000  # defaults to 0000:0100"),
+                StandardCharsets.UTF_8);
+        
+        List<BatchRunner.Job> jobs = BatchRunner.scan(manifest);
+        assertEquals(2, jobs.size());
+        StringWriter out = new StringWriter();
+        assertEquals(0, new BatchRunner(2, 1000).run(jobs.subList(0, 1), out));
+        String[] fields = out.toString().split("\t");
+        assertEquals("HALT", fields[1]);
+        assertTrue(fields[3], fields[3].startsWith("AX=0003 CX=1000"));
+        assertTrue(fields[3], fields[3].contains("CS=1000"));
+        assertTrue(fields[3], fields[3].contains("IP=0205"));
+        
+        out = new StringWriter();
+        new BatchRunner(2, 1000).run(jobs.subList(1, 2), out);
+        fields = out.toString().split("\t");
+        assertTrue(fields[3], fields[3].startsWith("AX=0000 CX=2000"));
+        assertTrue(fields[3], fields[3].contains("CS=0000"));
+        
+        Files.write(manifest, Arrays.asList("add.bin ZX=1"), StandardCharsets.UTF_8);
+        try {
+            BatchRunner.scan(manifest);
+            fail();
+        } catch (java.io.IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(":1:"));
+        }
+    }
+    
+    @Test
+    public void testMissingFile() throws Exception {
+        Path dir = Files.createTempDirectory("batch");
+        List<BatchRunner.Job> jobs = Arrays.asList(
+                new BatchRunner.Job("missing", dir.resolve("missing.bin"), 0, 0x100));
+        StringWriter out = new StringWriter();
+        assertEquals(1, new BatchRunner(1, 1000).run(jobs, out));
+        assertTrue(out.toString().startsWith("missing\tERROR\t"));
+    }
+}
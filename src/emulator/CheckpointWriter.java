@@ -0,0 +1,133 @@
+package emulator;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes periodic checkpoints of a machine into a directory: a full
+ * snapshot, then deltas with only the pages written since the checkpoint
+ * before. Every so many deltas it starts over with a full snapshot and
+ * deletes the older checkpoints, so restoring never has to apply a long
+ * chain.
+ * <p>
+ * Files are named checkpoint-NNNNNN.full and checkpoint-NNNNNN.delta, in
+ * the order they were written.
+ */
+public class CheckpointWriter {
+    
+    private static final String PREFIX = "checkpoint-";
+    private static final String FULL = ".full";
+    private static final String DELTA = ".delta";
+    
+    private final Snapshot snapshot;
+    private final Path dir;
+    private final int maxDeltas;
+    
+    /** the full snapshot and the deltas written since */
+    private final List<Path> chain = new ArrayList<Path>();
+    private int sequence;
+    private long savedBytes;
+    
+    /**
+     * @param maxDeltas deltas between two full snapshots
+     */
+    public CheckpointWriter(Snapshot snapshot, Path dir, int maxDeltas) throws IOException {
+        this.snapshot = snapshot;
+        this.dir = dir;
+        this.maxDeltas = maxDeltas;
+        Files.createDirectories(dir);
+        // continue the numbering of an earlier run
+        for (Path file : list(dir)) {
+            sequence = Math.max(sequence, sequenceOf(file));
+        }
+    }
+    
+    /**
+     * Writes the next checkpoint, returns its file.
+     */
+    public Path checkpoint() throws IOException {
+        boolean full = chain.isEmpty() || chain.size() > maxDeltas;
+        Path file = dir.resolve(String.format("%s%06d%s", PREFIX, ++sequence, full ? FULL : DELTA));
+        if (full) {
+            snapshot.save(file);
+            for (Path old : list(dir)) {
+                if (sequenceOf(old) < sequence) {
+                    Files.deleteIfExists(old);
+                }
+            }
+            chain.clear();
+        } else {
+            snapshot.saveDelta(file);
+        }
+        chain.add(file);
+        savedBytes += Files.size(file);
+        return file;
+    }
+    
+    /**
+     * Returns the files restoring the last checkpoint, the full snapshot
+     * first.
+     */
+    public List<Path> getChain() {
+        return Collections.unmodifiableList(chain);
+    }
+    
+    /**
+     * Returns the size of all checkpoints written so far.
+     */
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+    
+    /**
+     * Restores the latest checkpoint in a directory.
+     * 
+     * @return false if there is none
+     */
+    public static boolean restoreLatest(Snapshot snapshot, Path dir) throws IOException {
+        List<Path> files = list(dir);
+        int base = -1;
+        for (int i = 0; i < files.size(); ++i) {
+            if (files.get(i).getFileName().toString().endsWith(FULL)) {
+                base = i;
+            }
+        }
+        if (base < 0) {
+            return false;
+        }
+        List<Path> deltas = files.subList(base + 1, files.size());
+        snapshot.restore(files.get(base), deltas.toArray(new Path[deltas.size()]));
+        return true;
+    }
+    
+    /**
+     * Returns the checkpoint files in a directory in the order written.
+     */
+    private static List<Path> list(Path dir) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        if (!Files.isDirectory(dir)) {
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(FULL) || name.endsWith(DELTA)) {
+                    files.add(file);
+                }
+            }
+        }
+        // fixed width numbers sort by name
+        Collections.sort(files);
+        return files;
+    }
+    
+    private static int sequenceOf(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.lastIndexOf('.')));
+    }
+}
@@ -0,0 +1,527 @@
+package emulator;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.GZIPInputStream;
+
+import emulator.cpu.Cpu;
+import emulator.cpu.State;
+
+/**
+ * Checks the CPU against single-step test vectors: one file per opcode
+ * (or per opcode and ModRM reg field, as in 80.7.json.gz), each a JSON
+ * array of cases like
+ * <pre>
+ * {"name": "add [bx+si],al", "bytes": [0, 0],
+ *  "initial": {"regs": {"ax": 1, ..., "ip": 256, "flags": 61442}, "ram": [[256, 0], ...]},
+ *  "final": {"regs": {"ip": 258, ...}, "ram": [[256, 0], ...]}}
+ * </pre>
+ * Final registers only list what changed. Files may be gzipped and are
+ * parsed while the cases run, never loaded as a whole.
+ * <p>
+ * Files are spread over a fork/join pool; each task runs its file on a
+ * Cpu and Memory of its own, setting just the registers and bytes a case
+ * lists and clearing those bytes again afterwards.
+ */
+public class ConformanceRunner {
+    
+    private static final String[] REGISTERS = {
+        "ax", "cx", "dx", "bx", "sp", "bp", "si", "di",
+        "es", "cs", "ss", "ds", "ip", "flags"
+    };
+    private static final int IP_INDEX = 12;
+    private static final int FLAGS_INDEX = 13;
+    
+    /** failures kept per file for the report */
+    private static final int MAX_FAILURES = 3;
+    
+    /**
+     * Outcome of one file.
+     */
+    public static class Result {
+        final String test;
+        long passed;
+        long failed;
+        final List<String> failures = new ArrayList<String>();
+        
+        Result(String test) {
+            this.test = test;
+        }
+        
+        public String getTest() {
+            return test;
+        }
+        
+        public long getPassed() {
+            return passed;
+        }
+        
+        public long getFailed() {
+            return failed;
+        }
+        
+        /**
+         * Returns the first few failing cases with what differed.
+         */
+        public List<String> getFailures() {
+            return failures;
+        }
+    }
+    
+    /**
+     * One case, reused while a file is read.
+     */
+    private static class Case {
+        String name;
+        final int[] initial = new int[REGISTERS.length];
+        final int[] expected = new int[REGISTERS.length];
+        /** listed in the final state */
+        final boolean[] listed = new boolean[REGISTERS.length];
+        int prefixes;
+        // address, value pairs
+        int[] initialRam = new int[64];
+        int initialRamLength;
+        int[] finalRam = new int[64];
+        int finalRamLength;
+    }
+    
+    private final ForkJoinPool pool;
+    
+    /** undefined flags masked out, by test name, 0xffff by default */
+    private final Map<String, Integer> flagsMasks = new HashMap<String, Integer>();
+    
+    public ConformanceRunner(int threads) {
+        pool = new ForkJoinPool(threads);
+    }
+    
+    /**
+     * Reads the flags masks from the metadata that comes with the tests,
+     * {"opcodes": {"D4": {"flags-mask": 2260}, "F6": {"reg": {"4": {...}}}}}.
+     */
+    public void loadMetadata(Path file) throws IOException {
+        try (JsonReader in = open(file)) {
+            in.beginObject();
+            while (in.hasNext()) {
+                if (!in.nextName().equals("opcodes")) {
+                    in.skipValue();
+                    continue;
+                }
+                in.beginObject();
+                while (in.hasNext()) {
+                    readMetadata(in, in.nextName());
+                }
+                in.endObject();
+            }
+            in.endObject();
+        }
+    }
+    
+    private void readMetadata(JsonReader in, String test) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (name.equals("flags-mask")) {
+                flagsMasks.put(test.toUpperCase(), in.nextInt());
+            } else if (name.equals("reg")) {
+                in.beginObject();
+                while (in.hasNext()) {
+                    String reg = in.nextName();
+                    readMetadata(in, test + "." + reg);
+                }
+                in.endObject();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+    }
+    
+    /**
+     * Returns the test files of a directory, *.json and *.json.gz except
+     * the metadata, in name order.
+     */
+    public static List<Path> scan(Path dir) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.{json,json.gz}")) {
+            for (Path file : stream) {
+                if (!file.getFileName().toString().startsWith("metadata")) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+    
+    /**
+     * Runs all files, in parallel, and returns the results by test name.
+     */
+    public Map<String, Result> run(List<Path> files) {
+        Map<String, Result> results = Collections.synchronizedMap(new TreeMap<String, Result>());
+        pool.invoke(new FileTask(files, 0, files.size(), results));
+        return results;
+    }
+    
+    private class FileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final List<Path> files;
+        private final int from;
+        private final int to;
+        private final Map<String, Result> results;
+        
+        FileTask(List<Path> files, int from, int to, Map<String, Result> results) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.results = results;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new FileTask(files, from, middle, results), new FileTask(files, middle, to, results));
+                return;
+            }
+            if (to > from) {
+                Result result = runFile(files.get(from));
+                results.put(result.test, result);
+            }
+        }
+    }
+    
+    /**
+     * Returns the test name of a file, its name up to .json in upper case.
+     */
+    static String testName(Path file) {
+        String name = file.getFileName().toString();
+        int end = name.indexOf(".json");
+        return (end >= 0 ? name.substring(0, end) : name).toUpperCase();
+    }
+    
+    Result runFile(Path file) {
+        Result result = new Result(testName(file));
+        Integer mask = flagsMasks.get(result.test);
+        int flagsMask = null == mask ? 0xffff : mask;
+        
+        Memory mem = new HeapMemory(0x100000);
+        Cpu cpu = new Cpu(mem);
+        Case c = new Case();
+        try (JsonReader in = open(file)) {
+            in.beginArray();
+            while (in.hasNext()) {
+                readCase(in, c);
+                String diff;
+                try {
+                    diff = runCase(cpu, mem, c, flagsMask);
+                } catch (Exception e) {
+                    diff = e.toString();
+                }
+                if (null == diff) {
+                    ++result.passed;
+                } else {
+                    ++result.failed;
+                    if (result.failures.size() < MAX_FAILURES) {
+                        result.failures.add(c.name + ": " + diff);
+                    }
+                }
+                for (int i = 0; i < c.initialRamLength; i += 2) {
+                    mem.setByte(c.initialRam[i], (byte) 0);
+                }
+                for (int i = 0; i < c.finalRamLength; i += 2) {
+                    mem.setByte(c.finalRam[i], (byte) 0);
+                }
+            }
+            in.endArray();
+        } catch (IOException e) {
+            ++result.failed;
+            result.failures.add(file.getFileName() + ": " + e.getMessage());
+        }
+        return result;
+    }
+    
+    private static JsonReader open(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 65536);
+        if (file.getFileName().toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 65536);
+        }
+        return new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+    
+    private static void readCase(JsonReader in, Case c) throws IOException {
+        c.name = null;
+        c.prefixes = 0;
+        Arrays.fill(c.initial, 0);
+        c.initialRamLength = 0;
+        c.finalRamLength = 0;
+        Arrays.fill(c.listed, false);
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "name":
+                    c.name = in.nextString();
+                    break;
+                case "bytes": {
+                    // prefixes are instructions of their own here
+                    boolean prefix = true;
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        int b = in.nextInt();
+                        if (prefix && isPrefix(b)) {
+                            ++c.prefixes;
+                        } else {
+                            prefix = false;
+                        }
+                    }
+                    in.endArray();
+                    break;
+                }
+                case "initial":
+                    readState(in, c, c.initial, null, false);
+                    break;
+                case "final":
+                    readState(in, c, c.expected, c.listed, true);
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        // registers the final state leaves out did not change
+        for (int r = 0; r < REGISTERS.length; ++r) {
+            if (!c.listed[r]) {
+                c.expected[r] = c.initial[r];
+            }
+        }
+    }
+    
+    private static int registerIndex(String name) {
+        for (int r = 0; r < REGISTERS.length; ++r) {
+            if (REGISTERS[r].equals(name)) {
+                return r;
+            }
+        }
+        return -1;
+    }
+    
+    private static boolean isPrefix(int b) {
+        return b == 0x26 || b == 0x2E || b == 0x36 || b == 0x3E || b == 0xF0 || b == 0xF2 || b == 0xF3;
+    }
+    
+    private static void readState(JsonReader in, Case c, int[] regs, boolean[] listed, boolean isFinal)
+            throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (name.equals("regs")) {
+                in.beginObject();
+                while (in.hasNext()) {
+                    int r = registerIndex(in.nextName());
+                    if (r < 0) {
+                        in.skipValue();
+                        continue;
+                    }
+                    regs[r] = in.nextInt();
+                    if (null != listed) {
+                        listed[r] = true;
+                    }
+                }
+                in.endObject();
+            } else if (name.equals("ram")) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    in.beginArray();
+                    int addr = in.nextInt();
+                    int value = in.nextInt();
+                    in.endArray();
+                    if (isFinal) {
+                        if (c.finalRamLength == c.finalRam.length) {
+                            c.finalRam = Arrays.copyOf(c.finalRam, c.finalRamLength * 2);
+                        }
+                        c.finalRam[c.finalRamLength++] = addr;
+                        c.finalRam[c.finalRamLength++] = value;
+                    } else {
+                        if (c.initialRamLength == c.initialRam.length) {
+                            c.initialRam = Arrays.copyOf(c.initialRam, c.initialRamLength * 2);
+                        }
+                        c.initialRam[c.initialRamLength++] = addr;
+                        c.initialRam[c.initialRamLength++] = value;
+                    }
+                }
+                in.endArray();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+    }
+    
+    /**
+     * Runs one case, returns null if it passed or else what differed.
+     */
+    private static String runCase(Cpu cpu, Memory mem, Case c, int flagsMask) throws Exception {
+        cpu.reset();
+        State state = cpu.getState();
+        for (int r = 0; r < REGISTERS.length; ++r) {
+            set(state, r, c.initial[r]);
+        }
+        for (int i = 0; i < c.initialRamLength; i += 2) {
+            mem.setByte(c.initialRam[i], (byte) c.initialRam[i + 1]);
+        }
+        
+        for (int i = 0; i <= c.prefixes; ++i) {
+            cpu.step();
+        }
+        
+        StringBuilder diff = null;
+        for (int r = 0; r < REGISTERS.length; ++r) {
+            int actual = get(state, r);
+            int mask = r == FLAGS_INDEX ? flagsMask : 0xffff;
+            if (((actual ^ c.expected[r]) & mask) != 0) {
+                diff = append(diff, String.format("%s=%04X expected %04X", REGISTERS[r], actual, c.expected[r]));
+            }
+        }
+        for (int i = 0; i < c.finalRamLength; i += 2) {
+            int actual = mem.getByte(c.finalRam[i]) & 0xff;
+            if (actual != c.finalRam[i + 1]) {
+                diff = append(diff, String.format("[%05X]=%02X expected %02X", c.finalRam[i], actual,
+                        c.finalRam[i + 1]));
+            }
+        }
+        return null == diff ? null : diff.toString();
+    }
+    
+    private static StringBuilder append(StringBuilder diff, String s) {
+        if (null == diff) {
+            return new StringBuilder(s);
+        }
+        return diff.append(", ").append(s);
+    }
+    
+    private static void set(State state, int r, int value) {
+        if (r == IP_INDEX) {
+            state.setIP(value);
+        } else if (r == FLAGS_INDEX) {
+            state.setFlags(value);
+        } else if (r >= 8) {
+            state.setSegReg(r - 8, value);
+        } else {
+            state.setReg(r, value);
+        }
+    }
+    
+    private static int get(State state, int r) {
+        if (r == IP_INDEX) {
+            return state.getIP();
+        } else if (r == FLAGS_INDEX) {
+            return state.getFlags();
+        } else if (r >= 8) {
+            return state.getSegReg(r - 8);
+        }
+        return state.getReg(r);
+    }
+    
+    /**
+     * Writes a 16 x 16 matrix by opcode, each cell the percentage of cases
+     * passed ("ok" for all, "." if not tested), then the failing tests with
+     * their first failures.
+     */
+    public static void writeReport(Map<String, Result> results, Writer writer) {
+        long[] passed = new long[256];
+        long[] failed = new long[256];
+        for (Result result : results.values()) {
+            int opcode;
+            try {
+                opcode = Integer.parseInt(result.test.substring(0, Math.min(2, result.test.length())), 16);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            passed[opcode] += result.passed;
+            failed[opcode] += result.failed;
+        }
+        
+        PrintWriter out = new PrintWriter(writer);
+        out.print("  ");
+        for (int col = 0; col < 16; ++col) {
+            out.printf("  x%X", col);
+        }
+        out.println();
+        for (int row = 0; row < 16; ++row) {
+            out.printf("%Xx", row);
+            for (int col = 0; col < 16; ++col) {
+                int opcode = row * 16 + col;
+                long total = passed[opcode] + failed[opcode];
+                if (total == 0) {
+                    out.print("   .");
+                } else if (failed[opcode] == 0) {
+                    out.print("  ok");
+                } else {
+                    // never round a failing opcode up to 100
+                    out.printf("%4d", Math.min(99, passed[opcode] * 100 / total));
+                }
+            }
+            out.println();
+        }
+        
+        long totalPassed = 0;
+        long totalFailed = 0;
+        for (Result result : results.values()) {
+            totalPassed += result.passed;
+            totalFailed += result.failed;
+            if (result.failed > 0) {
+                out.printf("%s: %d passed, %d failed%n", result.test, result.passed, result.failed);
+                for (String failure : result.failures) {
+                    out.println("    " + failure);
+                }
+            }
+        }
+        out.printf("%d cases, %d passed, %d failed%n", totalPassed + totalFailed, totalPassed, totalFailed);
+        out.flush();
+    }
+    
+    /**
+     * Usage: ConformanceRunner &lt;test directory&gt;
+     * <p>
+     * Reads metadata.json from the directory if there is one.
+     * -Demulator.conformance.threads sets the parallelism, one thread per
+     * core by default.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: ConformanceRunner <test directory>");
+            System.exit(2);
+        }
+        Path dir = Paths.get(args[0]);
+        int threads = Integer.getInteger("emulator.conformance.threads", Runtime.getRuntime().availableProcessors());
+        ConformanceRunner runner = new ConformanceRunner(threads);
+        Path metadata = dir.resolve("metadata.json");
+        if (Files.exists(metadata)) {
+            runner.loadMetadata(metadata);
+        }
+        
+        long start = System.nanoTime();
+        Map<String, Result> results = runner.run(scan(dir));
+        writeReport(results, new PrintWriter(System.out));
+        System.err.println(String.format("%d files in %.1f s", results.size(), (System.nanoTime() - start) / 1e9));
+    }
+}
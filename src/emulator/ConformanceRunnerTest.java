@@ -0,0 +1,121 @@
+package emulator;
+
+import static org.junit.Assert.*;
+
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class ConformanceRunnerTest {
+    
+    private static final String MOV_AX = "[\n"
+            + "{\"name\": \"mov ax,1234h\", \"bytes\": [184, 52, 18],\n"
+            + " \"initial\": {\"regs\": {\"ax\": 0, \"bx\": 0, \"cx\": 0, \"dx\": 0, \"cs\": 0, \"ss\": 0,"
+            + " \"ds\": 0, \"es\": 0, \"sp\": 0, \"bp\": 0, \"si\": 0, \"di\": 0, \"ip\": 256, \"flags\": 61442},"
+            + " \"ram\": [[256, 184], [257, 52], [258, 18]], \"queue\": []},\n"
+            + " \"final\": {\"regs\": {\"ax\": 4660, \"ip\": 259}, \"ram\": [[256, 184], [257, 52], [258, 18]]},\n"
+            + " \"hash\": \"x\", \"idx\": 0},\n"
+            + "{\"name\": \"mov ax,1 \\\"wrong\\\"\", \"bytes\": [184, 1, 0],\n"
+            + " \"initial\": {\"regs\": {\"ax\": 0, \"bx\": 0, \"cx\": 0, \"dx\": 0, \"cs\": 4096, \"ss\": 0,"
+            + " \"ds\": 0, \"es\": 0, \"sp\": 0, \"bp\": 0, \"si\": 0, \"di\": 0, \"ip\": 0, \"flags\": 61442},"
+            + " \"ram\": [[65536, 184], [65537, 1], [65538, 0]]},\n"
+            + " \"final\": {\"regs\": {\"ax\": 2, \"ip\": 3}, \"ram\": []}}\n"
+            + "]\n";
+    
+    private static final String MOV_ES = "[{\"name\": \"mov ax,es:[bx]\", \"bytes\": [38, 139, 7],"
+            + " \"initial\": {\"regs\": {\"ax\": 0, \"bx\": 16, \"cx\": 0, \"dx\": 0, \"cs\": 0, \"ss\": 0,"
+            + " \"ds\": 0, \"es\": 32, \"sp\": 0, \"bp\": 0, \"si\": 0, \"di\": 0, \"ip\": 256, \"flags\": 61442},"
+            + " \"ram\": [[256, 38], [257, 139], [258, 7], [528, 205], [529, 171]]},"
+            + " \"final\": {\"regs\": {\"ax\": 43981, \"ip\": 259},"
+            + " \"ram\": [[256, 38], [257, 139], [258, 7], [528, 205], [529, 171]]}}]";
+    
+    /** INC AX with an expected AF the CPU does not set */
+    private static final String INC_AX = "[{\"name\": \"inc ax\", \"bytes\": [64],"
+            + " \"initial\": {\"regs\": {\"ax\": 0, \"bx\": 0, \"cx\": 0, \"dx\": 0, \"cs\": 0, \"ss\": 0,"
+            + " \"ds\": 0, \"es\": 0, \"sp\": 0, \"bp\": 0, \"si\": 0, \"di\": 0, \"ip\": 256, \"flags\": 61442},"
+            + " \"ram\": [[256, 64]]},"
+            + " \"final\": {\"regs\": {\"ax\": 1, \"ip\": 257, \"flags\": 61458}, \"ram\": [[256, 64]]}}]";
+    
+    private static final String METADATA = "{\"url\": \"x\", \"opcodes\": {"
+            + "\"40\": {\"status\": \"normal\", \"flags-mask\": 65519},"
+            + " \"F6\": {\"reg\": {\"4\": {\"flags-mask\": 2261}}}}}";
+    
+    private static void write(Path file, String json) throws Exception {
+        OutputStream out = Files.newOutputStream(file);
+        if (file.toString().endsWith(".gz")) {
+            out = new GZIPOutputStream(out);
+        }
+        try {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+    
+    @Test
+    public void testRun() throws Exception {
+        Path dir = Files.createTempDirectory("conformance");
+        write(dir.resolve("B8.json.gz"), MOV_AX);
+        write(dir.resolve("8B.json"), MOV_ES);
+        write(dir.resolve("40.json"), INC_AX);
+        write(dir.resolve("metadata.json"), METADATA);
+        
+        List<Path> files = ConformanceRunner.scan(dir);
+        assertEquals(3, files.size());
+        ConformanceRunner runner = new ConformanceRunner(2);
+        Map<String, ConformanceRunner.Result> results = runner.run(files);
+        assertEquals(3, results.size());
+        
+        ConformanceRunner.Result movAx = results.get("B8");
+        assertEquals(1, movAx.getPassed());
+        assertEquals(1, movAx.getFailed());
+        assertEquals("mov ax,1 \"wrong\": ax=0001 expected 0002", movAx.getFailures().get(0));
+        
+        // the segment prefix runs as a step of its own
+        assertEquals(1, results.get("8B").getPassed());
+        
+        // AF is only undefined once the metadata says so
+        assertEquals(1, results.get("40").getFailed());
+        runner.loadMetadata(dir.resolve("metadata.json"));
+        results = runner.run(files);
+        assertEquals(1, results.get("40").getPassed());
+        
+        StringWriter report = new StringWriter();
+        ConformanceRunner.writeReport(results, report);
+        String[] lines = report.toString().split("\n");
+        assertEquals("4x  ok   .   .", lines[5].substring(0, 14));
+        assertEquals("Bx   .   .   .   .   .   .   .   .  50", lines[12].substring(0, 38));
+        assertEquals("4 cases, 3 passed, 1 failed", lines[lines.length - 1]);
+    }
+    
+    @Test
+    public void testJsonReader() throws Exception {
+        JsonReader in = new JsonReader(new java.io.StringReader(
+                "{\"a\": [1, -20, true, null, {\"b\": \"x\\u0041\\n\"}], \"c\": 3}"));
+        in.beginObject();
+        assertEquals("a", in.nextName());
+        in.beginArray();
+        assertEquals(1, in.nextLong());
+        assertEquals(-20, in.nextInt());
+        assertTrue(in.nextBoolean());
+        in.nextNull();
+        assertEquals(JsonReader.Token.BEGIN_OBJECT, in.peek());
+        in.beginObject();
+        assertEquals("b", in.nextName());
+        assertEquals("xA\n", in.nextString());
+        in.endObject();
+        assertFalse(in.hasNext());
+        in.endArray();
+        assertEquals("c", in.nextName());
+        in.skipValue();
+        in.endObject();
+        assertEquals(JsonReader.Token.END, in.peek());
+    }
+}
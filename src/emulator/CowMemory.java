@@ -0,0 +1,204 @@
+package emulator;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Memory in 4 KiB pages that forks share until one of them writes to a
+ * page, which then gets its own copy. Pages never written to share one
+ * page of zeros.
+ * <p>
+ * A shared page is never written to, so forks can run on different
+ * threads; each instance itself is confined to one thread.
+ */
+public class CowMemory extends AbstractMemory {
+    
+    private static final VarHandle SHORT =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+    
+    /** contents, possibly shared */
+    private final byte[][] pages;
+    
+    /** the page if this instance owns it, null while it is shared */
+    private final byte[][] writable;
+    
+    private int copiedPages;
+    
+    public CowMemory(int size) {
+        super(size);
+        if (size < PAGE_SIZE) {
+            throw new IllegalArgumentException("Memory size must be at least a page: " + size);
+        }
+        pages = new byte[size >> PAGE_SHIFT][];
+        Arrays.fill(pages, ZERO_PAGE);
+        writable = new byte[pages.length][];
+    }
+    
+    private CowMemory(CowMemory parent) {
+        super(parent);
+        pages = parent.pages.clone();
+        writable = new byte[pages.length][];
+    }
+    
+    /**
+     * Shares all pages with the fork, both copy a page on their first write
+     * to it.
+     */
+    @Override
+    public Memory fork() {
+        Arrays.fill(writable, null);
+        return new CowMemory(this);
+    }
+    
+    /**
+     * Returns the number of pages copied on write since creation.
+     */
+    public int getCopiedPages() {
+        return copiedPages;
+    }
+    
+    private byte[] writablePage(int index) {
+        byte[] page = writable[index];
+        if (null == page) {
+            page = pages[index].clone();
+            pages[index] = page;
+            writable[index] = page;
+            ++copiedPages;
+        }
+        return page;
+    }
+    
+    @Override
+    public byte getByte(int addr) {
+        addr &= mask;
+        return pages[addr >> PAGE_SHIFT][addr & PAGE_MASK];
+    }
+    
+    @Override
+    public short getWord(int addr) {
+        addr &= mask;
+        if ((addr & PAGE_MASK) != PAGE_MASK) {
+            return (short) SHORT.get(pages[addr >> PAGE_SHIFT], addr & PAGE_MASK);
+        }
+        return (short) ((getByte(addr) & 0xff) | (getByte(addr + 1) << 8));
+    }
+    
+    @Override
+    protected void store8(int addr, byte v) {
+        writablePage(addr >> PAGE_SHIFT)[addr & PAGE_MASK] = v;
+    }
+    
+    @Override
+    protected void store16(int addr, short v) {
+        if ((addr & PAGE_MASK) != PAGE_MASK) {
+            SHORT.set(writablePage(addr >> PAGE_SHIFT), addr & PAGE_MASK, v);
+            return;
+        }
+        store8(addr, (byte) v);
+        store8(addr + 1, (byte) (v >> 8));
+    }
+    
+    @Override
+    protected void copyIn(int addr, byte[] data, int offset, int length) {
+        while (length > 0) {
+            int n = Math.min(length, PAGE_SIZE - (addr & PAGE_MASK));
+            System.arraycopy(data, offset, writablePage(addr >> PAGE_SHIFT), addr & PAGE_MASK, n);
+            addr += n;
+            offset += n;
+            length -= n;
+        }
+    }
+    
+    @Override
+    protected void copyIn(int addr, ByteBuffer data) {
+        while (data.hasRemaining()) {
+            int n = Math.min(data.remaining(), PAGE_SIZE - (addr & PAGE_MASK));
+            data.get(writablePage(addr >> PAGE_SHIFT), addr & PAGE_MASK, n);
+            addr += n;
+        }
+    }
+    
+    @Override
+    protected void copyOut(int addr, byte[] data, int offset, int length) {
+        while (length > 0) {
+            int n = Math.min(length, PAGE_SIZE - (addr & PAGE_MASK));
+            System.arraycopy(pages[addr >> PAGE_SHIFT], addr & PAGE_MASK, data, offset, n);
+            addr += n;
+            offset += n;
+            length -= n;
+        }
+    }
+    
+    @Override
+    protected void fillRaw(int addr, int length, byte value) {
+        while (length > 0) {
+            int n = Math.min(length, PAGE_SIZE - (addr & PAGE_MASK));
+            int index = addr >> PAGE_SHIFT;
+            if (n == PAGE_SIZE && value == 0) {
+                // clearing a whole page gives it back
+                pages[index] = ZERO_PAGE;
+                writable[index] = null;
+            } else {
+                Arrays.fill(writablePage(index), addr & PAGE_MASK, (addr & PAGE_MASK) + n, value);
+            }
+            addr += n;
+            length -= n;
+        }
+    }
+    
+    @Override
+    protected void copyRaw(int src, int dst, int length) {
+        if (dst <= src || dst >= src + length) {
+            while (length > 0) {
+                int n = Math.min(length, PAGE_SIZE - Math.max(src & PAGE_MASK, dst & PAGE_MASK));
+                // the destination first, it may be the source page
+                byte[] to = writablePage(dst >> PAGE_SHIFT);
+                System.arraycopy(pages[src >> PAGE_SHIFT], src & PAGE_MASK, to, dst & PAGE_MASK, n);
+                src += n;
+                dst += n;
+                length -= n;
+            }
+            return;
+        }
+        
+        // overlapping with the destination above the source, copy backwards
+        src += length;
+        dst += length;
+        while (length > 0) {
+            int n = Math.min(length, Math.min(((src - 1) & PAGE_MASK) + 1, ((dst - 1) & PAGE_MASK) + 1));
+            src -= n;
+            dst -= n;
+            byte[] to = writablePage(dst >> PAGE_SHIFT);
+            System.arraycopy(pages[src >> PAGE_SHIFT], src & PAGE_MASK, to, dst & PAGE_MASK, n);
+            length -= n;
+        }
+    }
+    
+    @Override
+    protected int compareRaw(int addr1, int addr2, int length) {
+        int offset = 0;
+        while (offset < length) {
+            int n = Math.min(length - offset, PAGE_SIZE - Math.max(addr1 & PAGE_MASK, addr2 & PAGE_MASK));
+            byte[] page1 = pages[addr1 >> PAGE_SHIFT];
+            byte[] page2 = pages[addr2 >> PAGE_SHIFT];
+            if (page1 != page2 || (addr1 & PAGE_MASK) != (addr2 & PAGE_MASK)) {
+                int diff = Arrays.mismatch(page1, addr1 & PAGE_MASK, (addr1 & PAGE_MASK) + n,
+                        page2, addr2 & PAGE_MASK, (addr2 & PAGE_MASK) + n);
+                if (diff >= 0) {
+                    return offset + diff;
+                }
+            }
+            addr1 += n;
+            addr2 += n;
+            offset += n;
+        }
+        return -1;
+    }
+}
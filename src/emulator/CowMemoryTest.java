@@ -0,0 +1,49 @@
+package emulator;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Runs the Memory tests against the copy-on-write backend, plus copies
+ * across page boundaries.
+ */
+public class CowMemoryTest extends MemoryTest {
+    
+    @Override
+    protected Memory create() {
+        return new CowMemory(0x100000);
+    }
+    
+    @Test
+    public void testCopyOnWrite() {
+        CowMemory mem = new CowMemory(0x100000);
+        byte[] data = new byte[3 * Memory.PAGE_SIZE];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) (i * 7 + (i >> 8));
+        }
+        mem.loadData(0x10800, data);
+        assertEquals(4, mem.getCopiedPages());
+        
+        CowMemory child = (CowMemory) mem.fork();
+        assertEquals(-1, child.compare(0x10800, 0x10800, data.length));
+        
+        // overlapping both ways, across pages
+        child.copy(0x10800, 0x10900, data.length);
+        child.copy(0x10900, 0x10700, data.length);
+        byte[] copy = new byte[data.length];
+        child.readData(0x10700, copy);
+        assertArrayEquals(data, copy);
+        mem.readData(0x10800, copy);
+        assertArrayEquals(data, copy);
+        assertEquals(4, child.getCopiedPages());
+        
+        // clearing whole pages shares the zero page again
+        child.fill(0x11000, 0x2000, (byte) 0);
+        assertEquals(0, child.getWord(0x11000));
+        assertEquals(0, child.getWord(0x12ffe));
+        assertEquals(data[0x110], child.getByte(0x10810));
+        assertEquals(data[0x10], mem.getByte(0x10810));
+        assertEquals(data[0x1800], mem.getByte(0x12000));
+    }
+}
@@ -0,0 +1,100 @@
+package emulator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Memory in a direct buffer outside of the Java heap, so large guests add
+ * nothing to the heap the GC has to scan or copy.
+ */
+public class DirectMemory extends AbstractMemory {
+    
+    private static final int FILL_CHUNK = 4096;
+    
+    private final ByteBuffer mem;
+    
+    /** source for fill() */
+    private final byte[] fillPattern = new byte[FILL_CHUNK];
+    private byte fillValue;
+    
+    public DirectMemory(int size) {
+        super(size);
+        mem = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    private DirectMemory(DirectMemory parent) {
+        super(parent);
+        mem = ByteBuffer.allocateDirect(parent.getSize()).order(ByteOrder.LITTLE_ENDIAN);
+        mem.put(0, parent.mem, 0, parent.getSize());
+    }
+    
+    @Override
+    public Memory fork() {
+        return new DirectMemory(this);
+    }
+    
+    @Override
+    public byte getByte(int addr) {
+        return mem.get(addr & mask);
+    }
+    
+    @Override
+    public short getWord(int addr) {
+        addr &= mask;
+        if (addr != mask) {
+            return mem.getShort(addr);
+        }
+        return (short) ((mem.get(addr) & 0xff) | (mem.get(0) << 8));
+    }
+    
+    @Override
+    protected void store8(int addr, byte v) {
+        mem.put(addr, v);
+    }
+    
+    @Override
+    protected void store16(int addr, short v) {
+        mem.putShort(addr, v);
+    }
+    
+    @Override
+    protected void copyIn(int addr, byte[] data, int offset, int length) {
+        mem.put(addr, data, offset, length);
+    }
+    
+    @Override
+    protected void copyIn(int addr, ByteBuffer data) {
+        mem.put(addr, data, data.position(), data.remaining());
+    }
+    
+    @Override
+    protected void copyOut(int addr, byte[] data, int offset, int length) {
+        mem.get(addr, data, offset, length);
+    }
+    
+    @Override
+    protected void fillRaw(int addr, int length, byte value) {
+        if (fillValue != value) {
+            Arrays.fill(fillPattern, value);
+            fillValue = value;
+        }
+        while (length > 0) {
+            int n = Math.min(length, FILL_CHUNK);
+            mem.put(addr, fillPattern, 0, n);
+            addr += n;
+            length -= n;
+        }
+    }
+    
+    @Override
+    protected void copyRaw(int src, int dst, int length) {
+        // same as a copy through a temporary buffer, even for overlapping ranges
+        mem.put(dst, mem, src, length);
+    }
+    
+    @Override
+    protected int compareRaw(int addr1, int addr2, int length) {
+        return mem.slice(addr1, length).mismatch(mem.slice(addr2, length));
+    }
+}
@@ -0,0 +1,12 @@
+package emulator;
+
+/**
+ * Runs the Memory tests against the off-heap backend.
+ */
+public class DirectMemoryTest extends MemoryTest {
+    
+    @Override
+    protected Memory create() {
+        return new DirectMemory(0x100000);
+    }
+}
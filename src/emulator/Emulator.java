@@ -1,54 +1,235 @@
 package emulator;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import emulator.cpu.Cpu;
+import emulator.cpu.Profiler;
+import emulator.cpu.StopReason;
+import emulator.cpu.Tracer;
+import emulator.io.AnsiTerminal;
+import emulator.io.DebugConsole;
+import emulator.io.IoBus;
+import emulator.io.Pic8259;
+import emulator.io.Pit8254;
+import emulator.io.TextRenderer;
 
 public class Emulator {
     
+    /** INT 19h, the BIOS loads the boot sector through it once POST is done */
+    private static final int BOOTSTRAP_VECTOR = 0x19 * 4;
+    
+    private static final int POST_SLICE = 100000;
+    
+    /** frame rate cap of the text screen */
+    private static final int VIDEO_FPS = 30;
+    
     private Memory mem;
+    private RomLoader roms;
+    private IoBus io;
     private Cpu cpu;
+    private Snapshot snapshot;
+    private Tracer tracer;
+    private TextRenderer video;
     
     private void init() throws SecurityException, IOException {
-        mem = new Memory(0x100000);
+        // -Demulator.memory=direct keeps guest memory off the Java heap
+        mem = Memory.create(System.getProperty("emulator.memory", "heap"), 0x100000);
         
+        roms = new RomLoader(mem);
         try {
-            String biosFileName = "bios/rombios.bin";
-            //InputStream fin = Emulator.class.getClassLoader().getResourceAsStream(biosFileName);
-            InputStream fin = new FileInputStream(new File(biosFileName));
-            byte[] buf = new byte[65536];
-            int k = 0;
-            while (k < buf.length) {
-                int t = fin.read(buf, k, buf.length - k);
-                if (t < 0)
-                    break;
-                k += t;
+            roms.loadBios(Paths.get("bios/rombios.bin"));
+            Path videoBios = Paths.get("bios/vgabios.bin");
+            if (Files.exists(videoBios)) {
+                roms.load(videoBios, RomLoader.VIDEO_BIOS_ADDR);
             }
-            fin.close();
-            byte[] xbuf = new byte[k];
-            System.arraycopy(buf, 0, xbuf, 0, k);
-            mem.loadData(0x100000 - k, xbuf);
         } catch (IOException e) {
             e.printStackTrace();
-            // TODO: logger here;
         }
+        for (String line : roms.getReport()) {
+            System.err.println(line);
+        }
+        System.err.println(String.format("ROMs loaded in %.3f ms", roms.getLoadNanos() / 1e6));
         
-        cpu = new Cpu(mem);
+        io = new IoBus();
+        new DebugConsole(System.out).attach(io);
+        
+        Scheduler scheduler = new Scheduler();
+        Pic8259 pic = new Pic8259(scheduler);
+        pic.attach(io, 0x20);
+        Pic8259 slave = new Pic8259(scheduler);
+        slave.attach(io, 0xA0);
+        pic.setSlave(slave, 2);
+        Pit8254 pit = new Pit8254(scheduler, pic);
+        pit.attach(io);
+        
+        cpu = new Cpu(mem, io, scheduler);
+        cpu.setInterruptController(pic);
+        
+        snapshot = new Snapshot(mem);
+        snapshot.add("cpu", cpu);
+        snapshot.add("pic", pic);
+        snapshot.add("pic2", slave);
+        snapshot.add("pit", pit);
+    }
+    
+    /**
+     * Writes a binary instruction trace to the file, see TraceDecoder.
+     */
+    private void trace(String fileName) throws IOException {
+        tracer = new Tracer(Paths.get(fileName), 1 << 16);
+        cpu.setTracer(tracer);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    tracer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
     }
     
-    private void run() throws Exception {
-        while (true)
-        {
-            cpu.step();
+    /**
+     * Samples guest code every interval instructions and writes folded
+     * stacks to the file on exit, plus the most frequent opcodes to stderr.
+     * Does nothing if the hooks were compiled away.
+     */
+    private void profile(final String fileName, int interval) {
+        if (!Profiler.ENABLED) {
+            System.err.println("Not profiling: started with -Demulator.profiler=false");
+            return;
         }
+        final Profiler profiler = new Profiler(interval);
+        cpu.setProfiler(profiler);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try (Writer out = Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8)) {
+                    profiler.writeFolded(out);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                long[] counts = profiler.getOpcodeCounts();
+                for (int i = 0; i < 10; ++i) {
+                    int top = 0;
+                    for (int opcode = 1; opcode < counts.length; ++opcode) {
+                        if (counts[opcode] > counts[top]) {
+                            top = opcode;
+                        }
+                    }
+                    if (counts[top] == 0) {
+                        break;
+                    }
+                    System.err.println(String.format("%02X %12d", top, counts[top]));
+                    counts[top] = 0;
+                }
+            }
+        });
     }
-
+    
+    /**
+     * Draws the text screen on the terminal, on a thread of its own.
+     */
+    private void video() throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), false, "UTF-8");
+        video = new TextRenderer(mem, new AnsiTerminal(out));
+        video.attach();
+        video.start(VIDEO_FPS);
+    }
+    
+    /**
+     * Restores the machine as it was at the end of POST from a snapshot in
+     * dir, or runs POST and saves one there. Snapshots are keyed by the hash
+     * of the ROMs.
+     */
+    private void boot(Path dir) throws Exception {
+        Path file = dir.resolve("post-" + roms.getHash() + ".snap");
+        if (Files.exists(file)) {
+            try {
+                snapshot.restore(file);
+                System.err.println(String.format("Restored %s in %.3f ms", file, snapshot.getLastNanos() / 1e6));
+                return;
+            } catch (IOException e) {
+                System.err.println("Ignoring snapshot: " + e.getMessage());
+            }
+        }
+        
+        StopReason reason = runPost();
+        if (reason != StopReason.BREAKPOINT) {
+            System.err.println("POST did not finish: " + reason);
+            return;
+        }
+        Files.createDirectories(dir);
+        snapshot.save(file);
+        System.err.println(String.format("Saved %s, %d non-zero pages in %.3f ms",
+                file, snapshot.getSavedPages(), snapshot.getLastNanos() / 1e6));
+    }
+    
+    /**
+     * Runs until the CPU enters the INT 19h handler. The BIOS sets the
+     * vector during POST, so the breakpoint follows it.
+     */
+    private StopReason runPost() throws Exception {
+        int handler = 0;
+        StopReason reason;
+        do {
+            int vector = ((mem.getWord(BOOTSTRAP_VECTOR + 2) & 0xffff) << 4) + (mem.getWord(BOOTSTRAP_VECTOR) & 0xffff);
+            if (vector != 0 && vector != handler) {
+                if (handler != 0) {
+                    cpu.removeBreakpoint(handler);
+                }
+                cpu.addBreakpoint(vector);
+                handler = vector;
+            }
+            reason = cpu.run(POST_SLICE);
+        } while (reason == StopReason.BUDGET);
+        if (handler != 0) {
+            cpu.removeBreakpoint(handler);
+        }
+        return reason;
+    }
+    
+    private void run(boolean paced) throws Exception {
+        StopReason reason = paced ? cpu.runPaced(Long.MAX_VALUE, Cpu.CLOCK_HZ) : cpu.run(Long.MAX_VALUE);
+        if (null != video) {
+            video.stop();
+        }
+        System.err.println(String.format("Stopped (%s) after %d instructions, %.1f MIPS",
+                reason, cpu.getInstructionsRetired(), cpu.getMips()));
+        System.err.println(cpu.getState());
+        System.err.print(io.getUnhandledPorts().getSummary());
+    }
+    
     public static void main(String[] args) throws Exception {
         Emulator emulator = new Emulator();
         emulator.init();
-        emulator.run();
+        if (args.length > 0) {
+            emulator.trace(args[0]);
+        }
+        // -Demulator.profile=file writes folded stacks for flame graphs
+        String profile = System.getProperty("emulator.profile");
+        if (null != profile) {
+            emulator.profile(profile, Integer.getInteger("emulator.profile.interval", 1000));
+        }
+        // -Demulator.video=ansi shows the guest's text screen on the terminal
+        if ("ansi".equals(System.getProperty("emulator.video"))) {
+            emulator.video();
+        }
+        // -Demulator.snapshots=dir skips POST after the first start
+        String snapshots = System.getProperty("emulator.snapshots");
+        if (null != snapshots) {
+            emulator.boot(Paths.get(snapshots));
+        }
+        // -Demulator.pace=true runs at the speed of the original PC
+        emulator.run(Boolean.getBoolean("emulator.pace"));
     }
 }
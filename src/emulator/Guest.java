@@ -0,0 +1,142 @@
+package emulator;
+
+import java.util.concurrent.CountDownLatch;
+
+import emulator.cpu.Cpu;
+import emulator.cpu.StopReason;
+
+/**
+ * One machine run by a GuestHost, with its limits and outcome. The CPU is
+ * only touched by one worker at a time and must not be used by anybody
+ * else until the guest is done.
+ */
+public class Guest {
+    
+    private final String name;
+    private final Cpu cpu;
+    
+    /** 0 for no limit */
+    private long instructionLimit;
+    private long timeLimitNanos;
+    
+    private long startInstructions;
+    private long startNanos;
+    private int slices;
+    
+    private volatile boolean cancelled;
+    
+    private StopReason stopReason;
+    private Throwable failure;
+    private final CountDownLatch done = new CountDownLatch(1);
+    
+    public Guest(String name, Cpu cpu) {
+        this.name = name;
+        this.cpu = cpu;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public Cpu getCpu() {
+        return cpu;
+    }
+    
+    /**
+     * Stops the guest with BUDGET once it has executed this many
+     * instructions, checked between slices.
+     */
+    public void setInstructionLimit(long instructions) {
+        instructionLimit = instructions;
+    }
+    
+    /**
+     * Stops the guest with DEADLINE once it has spent this long in
+     * Cpu.run(), checked between slices.
+     */
+    public void setTimeLimit(long nanos) {
+        timeLimitNanos = nanos;
+    }
+    
+    /**
+     * Stops the guest at the end of its current slice.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    void start() {
+        startInstructions = cpu.getInstructionsRetired();
+        startNanos = cpu.getRunNanos();
+    }
+    
+    /**
+     * Runs one slice on the calling worker.
+     * 
+     * @return true if the guest wants another slice
+     */
+    boolean runSlice(long sliceInstructions) {
+        try {
+            long budget = sliceInstructions;
+            if (instructionLimit > 0) {
+                budget = Math.min(budget, instructionLimit - getInstructions());
+            }
+            StopReason reason = cpu.run(budget);
+            ++slices;
+            if (reason != StopReason.BUDGET || cancelled
+                    || instructionLimit > 0 && getInstructions() >= instructionLimit) {
+                finish(reason, null);
+                return false;
+            }
+            if (timeLimitNanos > 0 && cpu.getRunNanos() - startNanos >= timeLimitNanos) {
+                finish(StopReason.DEADLINE, null);
+                return false;
+            }
+            return true;
+        } catch (Throwable e) {
+            finish(null, e);
+            return false;
+        }
+    }
+    
+    private void finish(StopReason reason, Throwable failure) {
+        stopReason = reason;
+        this.failure = failure;
+        done.countDown();
+    }
+    
+    /**
+     * Returns the number of instructions executed since the guest was
+     * started.
+     */
+    public long getInstructions() {
+        return cpu.getInstructionsRetired() - startInstructions;
+    }
+    
+    public int getSlices() {
+        return slices;
+    }
+    
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+    
+    public void await() throws InterruptedException {
+        done.await();
+    }
+    
+    /**
+     * Returns why the guest stopped: BUDGET or DEADLINE for an exceeded
+     * limit or a cancel, null if it failed or is still running.
+     */
+    public StopReason getStopReason() {
+        return isDone() ? stopReason : null;
+    }
+    
+    /**
+     * Returns the exception that ended the guest, if any.
+     */
+    public Throwable getFailure() {
+        return isDone() ? failure : null;
+    }
+}
@@ -0,0 +1,91 @@
+package emulator;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many guests on a fixed pool of worker threads. Each guest runs for
+ * a slice of instructions, then goes to the back of the queue, so a few
+ * long guests can not starve the others. Guests share nothing, throughput
+ * grows with the number of workers.
+ */
+public class GuestHost implements Closeable {
+    
+    public static final long DEFAULT_SLICE = 100000;
+    
+    private final ExecutorService workers;
+    private final long sliceInstructions;
+    
+    /** guests started and not done yet */
+    private int active;
+    
+    public GuestHost(int threads) {
+        this(threads, DEFAULT_SLICE);
+    }
+    
+    public GuestHost(int threads, long sliceInstructions) {
+        this.sliceInstructions = sliceInstructions;
+        final AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "guest-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    public void start(final Guest guest) {
+        synchronized (this) {
+            ++active;
+        }
+        guest.start();
+        schedule(guest);
+    }
+    
+    private void schedule(final Guest guest) {
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (guest.runSlice(sliceInstructions)) {
+                    schedule(guest);
+                } else {
+                    finished();
+                }
+            }
+        });
+    }
+    
+    private synchronized void finished() {
+        if (--active == 0) {
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Waits until all started guests are done.
+     */
+    public synchronized void awaitAll() throws InterruptedException {
+        while (active > 0) {
+            wait();
+        }
+    }
+    
+    /**
+     * Stops the workers, guests still running are abandoned.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
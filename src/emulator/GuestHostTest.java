@@ -0,0 +1,67 @@
+package emulator;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import emulator.cpu.Cpu;
+import emulator.cpu.StopReason;
+
+public class GuestHostTest {
+    
+    /**
+     * A CPU at 0000:0100 about to run the program.
+     */
+    private Cpu load(int... code) throws Exception {
+        byte[] data = new byte[code.length];
+        for (int i = 0; i < code.length; ++i) {
+            data[i] = (byte) code[i];
+        }
+        Memory mem = new CowMemory(0x100000);
+        mem.loadData(0xffff0, new byte[] {(byte) 0xEA, 0x00, 0x01, 0x00, 0x00});
+        mem.loadData(0x100, data);
+        Cpu cpu = new Cpu(mem);
+        cpu.step();
+        return cpu;
+    }
+    
+    @Test
+    public void testGuests() throws Exception {
+        Cpu parent = load(
+                0x46,                   // INC SI
+                0x49,                   // DEC CX
+                0x75, 0xFC,             // JNZ -4
+                0xF4);                  // HLT
+        Guest[] guests = new Guest[8];
+        GuestHost host = new GuestHost(4, 1000);
+        try {
+            for (int i = 0; i < guests.length; ++i) {
+                Cpu cpu = parent.fork();
+                cpu.getState().setCX(1000 * (i + 1));
+                guests[i] = new Guest("guest" + i, cpu);
+                host.start(guests[i]);
+            }
+            Guest looping = new Guest("looping", load(0xEB, 0xFE)); // JMP $
+            looping.setInstructionLimit(5000);
+            host.start(looping);
+            Guest invalid = new Guest("invalid", load(0x0F));
+            host.start(invalid);
+            host.awaitAll();
+            
+            for (int i = 0; i < guests.length; ++i) {
+                assertTrue(guests[i].isDone());
+                assertEquals(StopReason.HALT, guests[i].getStopReason());
+                assertEquals(1000 * (i + 1), guests[i].getCpu().getState().getSI());
+                assertEquals(3000 * (i + 1) + 1, guests[i].getInstructions());
+            }
+            assertTrue(guests[7].getSlices() > 1);
+            assertEquals(StopReason.BUDGET, looping.getStopReason());
+            assertEquals(5000, looping.getInstructions());
+            assertEquals(StopReason.INVALID_OPCODE, invalid.getStopReason());
+            assertNull(invalid.getFailure());
+            assertEquals(0, parent.getState().getSI());
+        } finally {
+            host.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package emulator;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Memory in a byte[] on the Java heap.
+ */
+public class HeapMemory extends AbstractMemory {
+    
+    private static final VarHandle SHORT =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    
+    private final byte[] mem;
+    
+    public HeapMemory(int size) {
+        super(size);
+        mem = new byte[size];
+    }
+    
+    private HeapMemory(HeapMemory parent) {
+        super(parent);
+        mem = parent.mem.clone();
+    }
+    
+    @Override
+    public Memory fork() {
+        return new HeapMemory(this);
+    }
+    
+    @Override
+    public byte getByte(int addr) {
+        return mem[addr & mask];
+    }
+    
+    @Override
+    public short getWord(int addr) {
+        addr &= mask;
+        if (addr != mask) {
+            return (short) SHORT.get(mem, addr);
+        }
+        return (short) ((mem[addr] & 0xff) | (mem[0] << 8));
+    }
+    
+    @Override
+    protected void store8(int addr, byte v) {
+        mem[addr] = v;
+    }
+    
+    @Override
+    protected void store16(int addr, short v) {
+        SHORT.set(mem, addr, v);
+    }
+    
+    @Override
+    protected void copyIn(int addr, byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, mem, addr, length);
+    }
+    
+    @Override
+    protected void copyIn(int addr, ByteBuffer data) {
+        data.get(mem, addr, data.remaining());
+    }
+    
+    @Override
+    protected void copyOut(int addr, byte[] data, int offset, int length) {
+        System.arraycopy(mem, addr, data, offset, length);
+    }
+    
+    @Override
+    protected void fillRaw(int addr, int length, byte value) {
+        Arrays.fill(mem, addr, addr + length, value);
+    }
+    
+    @Override
+    protected void copyRaw(int src, int dst, int length) {
+        System.arraycopy(mem, src, mem, dst, length);
+    }
+    
+    @Override
+    protected int compareRaw(int addr1, int addr2, int length) {
+        return Arrays.mismatch(mem, addr1, addr1 + length, mem, addr2, addr2 + length);
+    }
+}
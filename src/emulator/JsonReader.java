@@ -0,0 +1,334 @@
+package emulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Pull parser for JSON that reads one token at a time, so documents much
+ * larger than the heap can be walked value by value. Numbers are read
+ * without allocating; commas and colons are not checked for.
+ */
+final class JsonReader implements Closeable {
+    
+    enum Token {
+        BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL, END
+    }
+    
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+    
+    /** per nesting level: an object waiting for a name rather than a value */
+    private boolean[] expectName = new boolean[32];
+    private boolean[] isObject = new boolean[32];
+    private int depth;
+    
+    private Token peeked;
+    /** text of the peeked string, name or number */
+    private final StringBuilder text = new StringBuilder();
+    private boolean booleanValue;
+    
+    JsonReader(Reader in) {
+        this.in = in;
+    }
+    
+    Token peek() throws IOException {
+        if (null != peeked) {
+            return peeked;
+        }
+        int c = skipSeparators();
+        switch (c) {
+            case -1:
+                peeked = Token.END;
+                break;
+            case '[':
+                peeked = Token.BEGIN_ARRAY;
+                break;
+            case ']':
+                peeked = Token.END_ARRAY;
+                break;
+            case '{':
+                peeked = Token.BEGIN_OBJECT;
+                break;
+            case '}':
+                peeked = Token.END_OBJECT;
+                break;
+            case '"':
+                readString();
+                peeked = depth > 0 && isObject[depth - 1] && expectName[depth - 1] ? Token.NAME : Token.STRING;
+                break;
+            case 't':
+                expectLiteral("rue");
+                booleanValue = true;
+                peeked = Token.BOOLEAN;
+                break;
+            case 'f':
+                expectLiteral("alse");
+                booleanValue = false;
+                peeked = Token.BOOLEAN;
+                break;
+            case 'n':
+                expectLiteral("ull");
+                peeked = Token.NULL;
+                break;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber(c);
+                    peeked = Token.NUMBER;
+                } else {
+                    throw syntaxError("unexpected '" + (char) c + "'");
+                }
+                break;
+        }
+        return peeked;
+    }
+    
+    /**
+     * Returns true if the current array or object has another element.
+     */
+    boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_ARRAY && token != Token.END_OBJECT && token != Token.END;
+    }
+    
+    void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(false);
+    }
+    
+    void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        --depth;
+        valueDone();
+    }
+    
+    void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(true);
+    }
+    
+    void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        --depth;
+        valueDone();
+    }
+    
+    String nextName() throws IOException {
+        expect(Token.NAME);
+        expectName[depth - 1] = false;
+        return text.toString();
+    }
+    
+    String nextString() throws IOException {
+        expect(Token.STRING);
+        valueDone();
+        return text.toString();
+    }
+    
+    boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        valueDone();
+        return booleanValue;
+    }
+    
+    void nextNull() throws IOException {
+        expect(Token.NULL);
+        valueDone();
+    }
+    
+    /**
+     * Reads an integral number.
+     */
+    long nextLong() throws IOException {
+        expect(Token.NUMBER);
+        valueDone();
+        long value = 0;
+        boolean negative = text.charAt(0) == '-';
+        for (int i = negative ? 1 : 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw syntaxError("not an integer: " + text);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+    
+    int nextInt() throws IOException {
+        return (int) nextLong();
+    }
+    
+    /**
+     * Skips the next value, with everything nested in it.
+     */
+    void skipValue() throws IOException {
+        int level = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_ARRAY:
+                    beginArray();
+                    ++level;
+                    break;
+                case BEGIN_OBJECT:
+                    beginObject();
+                    ++level;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    --level;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    --level;
+                    break;
+                case NAME:
+                    nextName();
+                    break;
+                case END:
+                    throw syntaxError("unexpected end of input");
+                default:
+                    peeked = null;
+                    valueDone();
+                    break;
+            }
+        } while (level > 0);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+    
+    private void expect(Token token) throws IOException {
+        if (peek() != token) {
+            throw syntaxError("expected " + token + " but was " + peeked);
+        }
+        peeked = null;
+    }
+    
+    private void push(boolean object) {
+        if (depth == isObject.length) {
+            isObject = Arrays.copyOf(isObject, depth * 2);
+            expectName = Arrays.copyOf(expectName, depth * 2);
+        }
+        isObject[depth] = object;
+        expectName[depth] = object;
+        ++depth;
+    }
+    
+    /** after a value, an object wants the next name */
+    private void valueDone() {
+        if (depth > 0 && isObject[depth - 1]) {
+            expectName[depth - 1] = true;
+        }
+    }
+    
+    private int read() throws IOException {
+        int c = peekChar();
+        if (c >= 0) {
+            ++pos;
+        }
+        return c;
+    }
+    
+    private int peekChar() throws IOException {
+        if (pos == limit) {
+            limit = Math.max(0, in.read(buffer, 0, buffer.length));
+            pos = 0;
+            if (limit == 0) {
+                return -1;
+            }
+        }
+        return buffer[pos];
+    }
+    
+    private int skipSeparators() throws IOException {
+        while (true) {
+            int c = read();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t' && c != ',' && c != ':') {
+                return c;
+            }
+        }
+    }
+    
+    private void readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == -1) {
+                throw syntaxError("unterminated string");
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'u': {
+                        int value = 0;
+                        for (int i = 0; i < 4; ++i) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit < 0) {
+                                throw syntaxError("bad \\u escape");
+                            }
+                            value = (value << 4) | digit;
+                        }
+                        c = value;
+                        break;
+                    }
+                    case '"':
+                    case '\\':
+                    case '/':
+                        break;
+                    default:
+                        throw syntaxError("bad escape");
+                }
+            }
+            text.append((char) c);
+        }
+    }
+    
+    private void readNumber(int first) throws IOException {
+        text.setLength(0);
+        text.append((char) first);
+        while (true) {
+            int c = peekChar();
+            if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                text.append((char) c);
+                ++pos;
+            } else {
+                return;
+            }
+        }
+    }
+    
+    private void expectLiteral(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); ++i) {
+            if (read() != rest.charAt(i)) {
+                throw syntaxError("bad literal");
+            }
+        }
+    }
+    
+    private IOException syntaxError(String message) {
+        return new IOException("JSON syntax error: " + message);
+    }
+}
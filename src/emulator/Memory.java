@@ -1,31 +1,135 @@
 package emulator;
 
-public class Memory {
+import java.nio.ByteBuffer;
 
-    private byte[] mem;
+/**
+ * Guest physical memory. Words are little endian. Addresses wrap around at
+ * the end, so the size has to be a power of two (1 MiB for an 8086).
+ */
+public interface Memory {
     
-    public Memory(int size) {
-        mem = new byte[size];
-    }
+    public static final int PAGE_SHIFT = 12;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
     
-    public void loadData(int addr, byte[] data) {
-        System.arraycopy(data, 0, mem, addr, data.length);
-    }
+    /** read-only ranges are tracked in 2 KiB blocks, the option ROM granularity */
+    public static final int ROM_SHIFT = 11;
+    public static final int ROM_BLOCK_SIZE = 1 << ROM_SHIFT;
     
-    public byte getByte(int addr) {
-        return mem[addr];
+    /**
+     * Gets notified about writes touching the pages it watches.
+     */
+    public interface WriteListener {
+        void memoryWritten(int addr, int size);
     }
     
-    public short getWord(int addr) {
-        return (short) ((mem[addr] & 0xff) | (mem[addr + 1] << 8));
-    }
+    int getSize();
     
-    public void setByte(int addr, byte v) {
-        mem[addr] = v;
-    }
+    int getPageCount();
+    
+    /**
+     * Adds a listener for writes to the page. A page may have several, they
+     * are called in the order they were added.
+     */
+    void watchPage(int page, WriteListener listener);
+    
+    void unwatchPage(int page, WriteListener listener);
+    
+    /**
+     * Returns the pages written since the last call and clears them, in one
+     * step so no write in between is lost. Bit n % 64 of word n / 64 stands
+     * for page n. Writes dropped by read-only ranges do not count. Like all
+     * other methods, call it from the thread using the memory.
+     */
+    long[] takeDirtyPages();
+    
+    /**
+     * Returns true if the page was written since the last takeDirtyPages().
+     */
+    boolean isDirty(int page);
+    
+    /**
+     * Adds another consumer of dirty pages, with its own record of what
+     * was written since it last took them. Writes before this call do not
+     * count for it.
+     * 
+     * @return the tracker to pass to takeDirtyPages(int)
+     */
+    int addDirtyTracker();
+    
+    /**
+     * Like takeDirtyPages(), for a tracker from addDirtyTracker(). Taking
+     * the pages of one tracker leaves those of the others alone.
+     */
+    long[] takeDirtyPages(int tracker);
+    
+    /**
+     * Makes guest writes to the range silently do nothing, like writes to
+     * ROM. The range is widened to whole 2 KiB blocks. loadData() still
+     * writes there.
+     */
+    void setReadOnly(int addr, int size, boolean value);
+    
+    boolean isReadOnly(int addr);
+    
+    void loadData(int addr, byte[] data);
+    
+    /**
+     * Copies the remaining bytes of the buffer to addr, leaving the buffer's
+     * position alone.
+     */
+    void loadData(int addr, ByteBuffer data);
+    
+    /**
+     * Copies memory into the array, the counterpart of loadData().
+     */
+    void readData(int addr, byte[] data);
+    
+    /**
+     * Sets size bytes starting at addr. Read-only blocks are skipped.
+     */
+    void fill(int addr, int size, byte value);
+    
+    /**
+     * Copies size bytes from src to dst as if through a temporary buffer,
+     * so overlapping ranges are fine. Read-only blocks are skipped.
+     */
+    void copy(int src, int dst, int size);
+    
+    /**
+     * Returns the offset of the first byte that differs between the two
+     * ranges, or -1 if they are equal.
+     */
+    int compare(int addr1, int addr2, int size);
+    
+    byte getByte(int addr);
+    
+    short getWord(int addr);
+    
+    void setByte(int addr, byte v);
+    
+    void setWord(int addr, short v);
+    
+    /**
+     * Returns a copy with the same contents and read-only ranges but no
+     * write listeners. From then on the two are independent and may be used
+     * from different threads.
+     */
+    Memory fork();
     
-    public void setWord(int addr, short v) {
-        mem[addr] = (byte)v;
-        mem[addr + 1] = (byte)(v >> 8);
+    /**
+     * Creates memory of the given backend: "heap" keeps it in a byte[],
+     * "direct" outside of the Java heap, "cow" in pages shared with forks.
+     */
+    static Memory create(String backend, int size) {
+        switch (backend) {
+            case "heap":
+                return new HeapMemory(size);
+            case "direct":
+                return new DirectMemory(size);
+            case "cow":
+                return new CowMemory(size);
+            default:
+                throw new IllegalArgumentException("Unknown memory backend: " + backend);
+        }
     }
 }
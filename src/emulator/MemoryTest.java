@@ -5,10 +5,14 @@ import static org.junit.Assert.*;
 import org.junit.Test;
 
 public class MemoryTest {
-
+    
+    protected Memory create() {
+        return new HeapMemory(0x100000);
+    }
+    
     @Test
     public void testByte() {
-        Memory mem = new Memory(0x100000);
+        Memory mem = create();
         
         byte a = 123;
         int addr = 463278;
@@ -25,10 +29,10 @@ public class MemoryTest {
         mem.setByte(addr, a);
         assertEquals(mem.getByte(addr), a);
     }
-
+    
     @Test
     public void testWord() {
-        Memory mem = new Memory(0x100000);
+        Memory mem = create();
         
         short a = 12635;
         int addr = 273894;
@@ -48,7 +52,7 @@ public class MemoryTest {
     
     @Test
     public void testMix() {
-        Memory mem = new Memory(0x100000);
+        Memory mem = create();
         
         short a = 30000;
         int addr = 37261;
@@ -59,7 +63,7 @@ public class MemoryTest {
     
     @Test
     public void testLoad() {
-        Memory mem = new Memory(0x100000);
+        Memory mem = create();
         
         int addr = 1239;
         byte[] data = {1, 2, 3, 4, 5, 89, -98, 123, 4};
@@ -70,4 +74,165 @@ public class MemoryTest {
         assertEquals(mem.getByte(addr + 1), 2);
         assertEquals(mem.getWord(addr + 2), (4 << 8) | 3); //???
     }
+    
+    @Test
+    public void testReadOnly() {
+        Memory mem = create();
+        
+        int addr = 0xC0000;
+        mem.loadData(addr, new byte[] {0x55, (byte) 0xAA});
+        mem.setReadOnly(addr, 0x8000, true);
+        
+        mem.setByte(addr, (byte) 0);
+        mem.setWord(addr + 0x7ffe, (short) 0x1234);
+        assertEquals(0xAA55, mem.getWord(addr) & 0xffff);
+        assertEquals(0, mem.getWord(addr + 0x7ffe));
+        
+        // straddles the end of the ROM
+        mem.setWord(addr + 0x7fff, (short) 0x1234);
+        assertEquals(0, mem.getByte(addr + 0x7fff));
+        assertEquals(0x12, mem.getByte(addr + 0x8000));
+        
+        // wraps around at the end, and aliases above it
+        mem.setReadOnly(0xff800, 0x1000, true);
+        assertTrue(mem.isReadOnly(0xfffff));
+        assertTrue(mem.isReadOnly(0x7ff));
+        assertFalse(mem.isReadOnly(0x800));
+        mem.setByte(0, (byte) 1);
+        assertEquals(0, mem.getByte(0));
+        mem.setReadOnly(0x1f0000, 0x100, true);
+        assertTrue(mem.isReadOnly(0xf0000));
+        assertFalse(mem.isReadOnly(0xf0800));
+    }
+    
+    @Test
+    public void testWrap() {
+        Memory mem = create();
+        
+        mem.setWord(0xfffff, (short) 0x1234);
+        assertEquals(0x34, mem.getByte(0xfffff));
+        assertEquals(0x12, mem.getByte(0));
+        assertEquals(0x1234, mem.getWord(0xfffff));
+        assertEquals(0x34, mem.getByte(0x1fffff));
+        
+        mem.loadData(0xffffe, new byte[] {1, 2, 3, 4});
+        assertEquals(0x0403, mem.getWord(0));
+    }
+    
+    @Test
+    public void testFill() {
+        Memory mem = create();
+        mem.setReadOnly(0xf0000, 0x10000, true);
+        
+        mem.fill(0xefff0, 0x20, (byte) 0x5a);
+        assertEquals(0x5a5a, mem.getWord(0xefffe));
+        assertEquals(0, mem.getByte(0xf0000));
+        assertEquals(0, mem.getByte(0xeffef));
+        
+        mem.fill(0xffff0, 0x20, (byte) 1);
+        assertEquals(1, mem.getByte(0x0f));
+        assertEquals(0, mem.getByte(0x10));
+    }
+    
+    @Test
+    public void testCopy() {
+        Memory mem = create();
+        mem.loadData(0x1000, new byte[] {1, 2, 3, 4, 5});
+        
+        // overlapping, as if copied through a buffer
+        mem.copy(0x1000, 0x1001, 5);
+        assertEquals(1, mem.getByte(0x1001));
+        assertEquals(5, mem.getByte(0x1005));
+        
+        mem.copy(0x1001, 0xffffe, 4);
+        assertEquals(0x0201, mem.getWord(0xffffe));
+        assertEquals(0x0403, mem.getWord(0));
+        
+        assertEquals(-1, mem.compare(0x1001, 0xffffe, 4));
+        assertEquals(4, mem.compare(0x1001, 0xffffe, 5));
+    }
+    
+    @Test
+    public void testFork() {
+        Memory mem = create();
+        mem.setWord(0x1ffff, (short) 0x1234);
+        mem.setReadOnly(0xf0000, 0x10000, true);
+        
+        Memory child = mem.fork();
+        assertEquals(0x1234, child.getWord(0x1ffff));
+        assertTrue(child.isReadOnly(0xf0000));
+        
+        child.setWord(0x1ffff, (short) 0x5678);
+        mem.setByte(0x30000, (byte) 1);
+        assertEquals(0x1234, mem.getWord(0x1ffff));
+        assertEquals(0x5678, child.getWord(0x1ffff));
+        assertEquals(0, child.getByte(0x30000));
+    }
+    
+    @Test
+    public void testDirtyPages() {
+        Memory mem = create();
+        mem.setReadOnly(0xf0000, 0x10000, true);
+        assertEquals(0, countBits(mem.takeDirtyPages()));
+        
+        mem.setByte(0x1000, (byte) 1);
+        mem.setWord(0x2fff, (short) 1);         // pages 2 and 3
+        mem.fill(0x10000, 0x2000, (byte) 1);    // 16 and 17
+        mem.copy(0x10000, 0x40800, 0x1000);     // 64 and 65
+        mem.setByte(0xf1000, (byte) 1);         // read-only
+        mem.getWord(0x7000);
+        assertTrue(mem.isDirty(3));
+        assertFalse(mem.isDirty(4));
+        
+        long[] dirty = mem.takeDirtyPages();
+        assertEquals(7, countBits(dirty));
+        assertEquals((1L << 1) | (1L << 2) | (1L << 3) | (1L << 16) | (1L << 17), dirty[0]);
+        assertEquals(3L, dirty[1]);
+        assertFalse(mem.isDirty(3));
+        assertEquals(0, countBits(mem.takeDirtyPages()));
+        
+        mem.setWord(0xfffff, (short) 1);        // high byte wraps to page 0
+        dirty = mem.takeDirtyPages();
+        assertEquals(1, countBits(dirty));
+        assertEquals(1L, dirty[0]);
+    }
+    
+    @Test
+    public void testWatchPage() {
+        Memory mem = create();
+        final int[] calls = new int[2];
+        Memory.WriteListener first = new Memory.WriteListener() {
+            @Override
+            public void memoryWritten(int addr, int size) {
+                ++calls[0];
+            }
+        };
+        Memory.WriteListener second = new Memory.WriteListener() {
+            @Override
+            public void memoryWritten(int addr, int size) {
+                ++calls[1];
+            }
+        };
+        mem.watchPage(2, first);
+        mem.watchPage(2, second);
+        mem.watchPage(2, second);               // added once
+        mem.setByte(0x2000, (byte) 1);
+        mem.setByte(0x3000, (byte) 1);          // not watched
+        assertArrayEquals(new int[] {1, 1}, calls);
+        
+        mem.unwatchPage(2, first);
+        mem.fill(0x2000, 0x10, (byte) 2);
+        assertArrayEquals(new int[] {1, 2}, calls);
+        mem.unwatchPage(2, second);
+        mem.setWord(0x2000, (short) 3);
+        assertArrayEquals(new int[] {1, 2}, calls);
+    }
+    
+    private static int countBits(long[] bitmap) {
+        int count = 0;
+        for (long word : bitmap) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
 }
@@ -0,0 +1,112 @@
+package emulator;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps ROM images into memory and write-protects them.
+ */
+public class RomLoader {
+    
+    /** top of the 1 MiB address space, the system BIOS ends here */
+    public static final int BIOS_END = 0x100000;
+    
+    /** where the video BIOS goes */
+    public static final int VIDEO_BIOS_ADDR = 0xC0000;
+    
+    private final Memory mem;
+    
+    private final List<String> report = new ArrayList<String>();
+    private long loadNanos;
+    
+    /** over the addresses and contents of all images loaded */
+    private final MessageDigest digest;
+    
+    public RomLoader(Memory mem) {
+        this.mem = mem;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Loads the system BIOS so that it ends at the top of memory, where the
+     * reset vector is.
+     * 
+     * @return load address
+     */
+    public int loadBios(Path file) throws IOException {
+        return load(file, -1);
+    }
+    
+    /**
+     * Loads an image at the given address and makes the range read-only.
+     * 
+     * @param addr load address, -1 to end the image at BIOS_END
+     * @return load address
+     */
+    public int load(Path file, int addr) throws IOException {
+        long start = System.nanoTime();
+        
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (addr < 0) {
+                addr = (int) (BIOS_END - size);
+            }
+            if (size == 0 || addr < 0 || addr + size > BIOS_END) {
+                throw new IOException(String.format("%s (%d bytes) does not fit at 0x%05X", file, size, addr));
+            }
+            
+            // copied straight from the page cache into guest memory
+            MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mem.loadData(addr, image);
+            mem.setReadOnly(addr, (int) size, true);
+            digest.update(new byte[] {(byte) addr, (byte) (addr >> 8), (byte) (addr >> 16)});
+            digest.update(image);
+            
+            long nanos = System.nanoTime() - start;
+            loadNanos += nanos;
+            report.add(String.format("%s: %d bytes at 0x%05X in %.3f ms", file, size, addr, nanos / 1e6));
+            return addr;
+        } finally {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Returns one line per loaded ROM with its address and load time.
+     */
+    public List<String> getReport() {
+        return report;
+    }
+    
+    public long getLoadNanos() {
+        return loadNanos;
+    }
+    
+    /**
+     * Returns a hex SHA-256 of the images loaded so far and where they went,
+     * identifying the firmware for cached snapshots.
+     */
+    public String getHash() {
+        try {
+            StringBuilder hash = new StringBuilder();
+            for (byte b : ((MessageDigest) digest.clone()).digest()) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
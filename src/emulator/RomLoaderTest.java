@@ -0,0 +1,33 @@
+package emulator;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class RomLoaderTest {
+    
+    @Test
+    public void testLoadBios() throws Exception {
+        File file = File.createTempFile("bios", ".bin");
+        file.deleteOnExit();
+        byte[] image = new byte[0x2000];
+        image[0x1ff0] = (byte) 0xEA;
+        image[0x1fff] = 0x42;
+        Files.write(file.toPath(), image);
+        
+        Memory mem = new HeapMemory(0x100000);
+        RomLoader roms = new RomLoader(mem);
+        assertEquals(0xFE000, roms.loadBios(file.toPath()));
+        assertEquals((byte) 0xEA, mem.getByte(0xFFFF0));
+        assertEquals(0x42, mem.getByte(0xFFFFF));
+        assertEquals(1, roms.getReport().size());
+        
+        mem.setByte(0xFFFF0, (byte) 0x90);
+        assertEquals((byte) 0xEA, mem.getByte(0xFFFF0));
+        assertTrue(mem.isReadOnly(0xFE000));
+        assertFalse(mem.isReadOnly(0xFDFFF));
+    }
+}
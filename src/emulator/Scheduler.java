@@ -0,0 +1,174 @@
+package emulator;
+
+import java.util.Arrays;
+
+/**
+ * Device events ordered by the guest cycle they are due at. The CPU only
+ * compares its cycle counter with getNextEventCycle() after each
+ * instruction, and calls runEvents() once that cycle has been reached.
+ */
+public class Scheduler {
+    
+    /**
+     * Source of the current guest cycle, the CPU.
+     */
+    public interface Clock {
+        long getCycles();
+    }
+    
+    public interface Event {
+        /**
+         * @param cycle the cycle the event was due at, the clock may be a
+         * little past it
+         */
+        void fire(long cycle);
+    }
+    
+    /**
+     * A device's event, allocated once and scheduled again and again.
+     */
+    public final class Timer {
+        private final Event event;
+        private long deadline;
+        /** position in the heap, -1 if not scheduled */
+        private int index = -1;
+        
+        private Timer(Event event) {
+            this.event = event;
+        }
+        
+        /**
+         * Schedules the event at the given cycle, replacing an earlier
+         * schedule.
+         */
+        public void schedule(long cycle) {
+            if (index >= 0) {
+                remove(index);
+            }
+            deadline = cycle;
+            add(this);
+        }
+        
+        public void cancel() {
+            if (index >= 0) {
+                remove(index);
+            }
+        }
+        
+        public boolean isScheduled() {
+            return index >= 0;
+        }
+        
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+    
+    private Timer[] heap = new Timer[8];
+    private int size;
+    
+    private long nextEventCycle = Long.MAX_VALUE;
+    
+    private Clock clock;
+    
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+    
+    public long getCycles() {
+        return null == clock ? 0 : clock.getCycles();
+    }
+    
+    public Timer newTimer(Event event) {
+        return new Timer(event);
+    }
+    
+    /**
+     * Returns the cycle the CPU has to call runEvents() at. It may be
+     * earlier than the first event, e.g. after wake().
+     */
+    public long getNextEventCycle() {
+        return nextEventCycle;
+    }
+    
+    /**
+     * Makes the CPU call runEvents() after the current instruction, e.g.
+     * because an interrupt became pending.
+     */
+    public void wake() {
+        nextEventCycle = Long.MIN_VALUE;
+    }
+    
+    /**
+     * Fires all events due at or before the given cycle, in order.
+     */
+    public void runEvents(long now) {
+        while (size > 0 && heap[0].deadline <= now) {
+            Timer timer = heap[0];
+            remove(0);
+            timer.event.fire(timer.deadline);
+        }
+        nextEventCycle = size > 0 ? heap[0].deadline : Long.MAX_VALUE;
+    }
+    
+    private void add(Timer timer) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        timer.index = size++;
+        heap[timer.index] = timer;
+        siftUp(timer.index);
+        if (timer.deadline < nextEventCycle) {
+            nextEventCycle = timer.deadline;
+        }
+    }
+    
+    private void remove(int i) {
+        Timer removed = heap[i];
+        removed.index = -1;
+        --size;
+        if (i != size) {
+            heap[i] = heap[size];
+            heap[i].index = i;
+            siftDown(i);
+            siftUp(heap[i].index);
+        }
+        heap[size] = null;
+    }
+    
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heap[parent].deadline <= heap[i].deadline) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+    
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].deadline < heap[child].deadline) {
+                ++child;
+            }
+            if (heap[i].deadline <= heap[child].deadline) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+    
+    private void swap(int i, int j) {
+        Timer t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+        heap[i].index = i;
+        heap[j].index = j;
+    }
+}
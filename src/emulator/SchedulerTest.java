@@ -0,0 +1,67 @@
+package emulator;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SchedulerTest {
+    
+    private final List<String> fired = new ArrayList<String>();
+    
+    private Scheduler.Timer timer(Scheduler scheduler, final String name) {
+        return scheduler.newTimer(new Scheduler.Event() {
+            public void fire(long cycle) {
+                fired.add(name + "@" + cycle);
+            }
+        });
+    }
+    
+    @Test
+    public void testOrder() {
+        Scheduler scheduler = new Scheduler();
+        assertEquals(Long.MAX_VALUE, scheduler.getNextEventCycle());
+        Scheduler.Timer a = timer(scheduler, "a");
+        Scheduler.Timer b = timer(scheduler, "b");
+        Scheduler.Timer c = timer(scheduler, "c");
+        c.schedule(30);
+        a.schedule(10);
+        b.schedule(20);
+        assertEquals(10, scheduler.getNextEventCycle());
+        
+        scheduler.runEvents(25);
+        assertEquals("[a@10, b@20]", fired.toString());
+        assertEquals(30, scheduler.getNextEventCycle());
+        assertFalse(a.isScheduled());
+        assertTrue(c.isScheduled());
+    }
+    
+    @Test
+    public void testRescheduleAndCancel() {
+        Scheduler scheduler = new Scheduler();
+        Scheduler.Timer a = timer(scheduler, "a");
+        Scheduler.Timer b = timer(scheduler, "b");
+        a.schedule(10);
+        b.schedule(20);
+        a.schedule(40);
+        // moving an event later may leave an early, harmless check
+        assertTrue(scheduler.getNextEventCycle() <= 20);
+        scheduler.runEvents(15);
+        assertTrue(fired.isEmpty());
+        assertEquals(20, scheduler.getNextEventCycle());
+        b.cancel();
+        b.cancel();
+        
+        scheduler.wake();
+        assertEquals(Long.MIN_VALUE, scheduler.getNextEventCycle());
+        scheduler.runEvents(30);
+        assertTrue(fired.isEmpty());
+        assertEquals(40, scheduler.getNextEventCycle());
+        
+        scheduler.runEvents(100);
+        assertEquals("[a@40]", fired.toString());
+        assertEquals(Long.MAX_VALUE, scheduler.getNextEventCycle());
+    }
+}
@@ -0,0 +1,336 @@
+package emulator;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Saves and restores the whole machine: memory and the state of the CPU and
+ * devices registered as parts.
+ * <p>
+ * A full snapshot has every page that is not all zeros. A delta only has
+ * the pages written since the snapshot before it, its base, and is
+ * restored on top of that: a chain of a full snapshot and its deltas
+ * restores the state at the last delta.
+ * <p>
+ * File format, little-endian: magic, version, memory size, part count, id
+ * and the id of the base, 0 for a full snapshot; per part its name, length
+ * and data; the read-only block bitmap; then each page as its index
+ * followed by its contents, ended by -1.
+ */
+public class Snapshot {
+    
+    /** "SN86" */
+    public static final int MAGIC = 0x36384E53;
+    public static final int VERSION = 2;
+    
+    /** upper bound of the state of one part */
+    private static final int MAX_PART_SIZE = 4096;
+    
+    /**
+     * Something with state outside of memory.
+     */
+    public interface Part {
+        void save(ByteBuffer out);
+        
+        /**
+         * @param in exactly what save() wrote
+         */
+        void restore(ByteBuffer in);
+    }
+    
+    private final Memory mem;
+    
+    private final List<String> names = new ArrayList<String>();
+    private final List<Part> parts = new ArrayList<Part>();
+    
+    private int savedPages;
+    private long lastNanos;
+    
+    /** of the snapshot memory was last saved to or restored from, 0 if none */
+    private long lastId;
+    
+    public Snapshot(Memory mem) {
+        this.mem = mem;
+    }
+    
+    /**
+     * Registers a part, parts are restored in the order they were added.
+     */
+    public void add(String name, Part part) {
+        names.add(name);
+        parts.add(part);
+    }
+    
+    /**
+     * Saves a full snapshot, the base for the deltas that follow.
+     */
+    public void save(Path file) throws IOException {
+        save(file, null);
+    }
+    
+    /**
+     * Saves the pages written since the last save, saveDelta or restore,
+     * with the complete state of all parts.
+     * 
+     * @throws IllegalStateException if there is no snapshot to be based on
+     */
+    public void saveDelta(Path file) throws IOException {
+        if (lastId == 0) {
+            throw new IllegalStateException("No snapshot to save a delta against");
+        }
+        save(file, mem.takeDirtyPages());
+    }
+    
+    /**
+     * @param dirty pages to save, null for a full snapshot
+     */
+    private void save(Path file, long[] dirty) throws IOException {
+        long start = System.nanoTime();
+        if (null == dirty) {
+            mem.takeDirtyPages();
+        }
+        
+        int pageCount = mem.getSize() >> Memory.PAGE_SHIFT;
+        int blockCount = mem.getSize() >> Memory.ROM_SHIFT;
+        int savedCount = pageCount;
+        if (null != dirty) {
+            savedCount = 0;
+            for (long word : dirty) {
+                savedCount += Long.bitCount(word);
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(32 + parts.size() * (2 + 255 + 4 + MAX_PART_SIZE)
+                + (blockCount + 7) / 8 + savedCount * (4 + Memory.PAGE_SIZE) + 4);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        long id = newId();
+        buf.putInt(MAGIC).putInt(VERSION).putInt(mem.getSize()).putInt(parts.size());
+        buf.putLong(id).putLong(null == dirty ? 0 : lastId);
+        
+        for (int i = 0; i < parts.size(); ++i) {
+            byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+            buf.putShort((short) name.length).put(name);
+            int lengthPos = buf.position();
+            buf.putInt(0);
+            ByteBuffer out = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+            out.limit(MAX_PART_SIZE);
+            parts.get(i).save(out);
+            buf.putInt(lengthPos, out.position());
+            buf.position(buf.position() + out.position());
+        }
+        
+        byte[] bitmap = new byte[(blockCount + 7) / 8];
+        for (int block = 0; block < blockCount; ++block) {
+            if (mem.isReadOnly(block << Memory.ROM_SHIFT)) {
+                bitmap[block >> 3] |= 1 << (block & 0x07);
+            }
+        }
+        buf.put(bitmap);
+        
+        byte[] zero = new byte[Memory.PAGE_SIZE];
+        byte[] page = new byte[Memory.PAGE_SIZE];
+        savedPages = 0;
+        for (int i = 0; i < pageCount; ++i) {
+            if (null != dirty && (dirty[i >> 6] & (1L << i)) == 0) {
+                continue;
+            }
+            mem.readData(i << Memory.PAGE_SHIFT, page);
+            if (null == dirty && Arrays.equals(page, zero)) {
+                // missing pages of a full snapshot are zeros
+                continue;
+            }
+            buf.putInt(i).put(page);
+            ++savedPages;
+        }
+        buf.putInt(-1);
+        buf.flip();
+        
+        // a crash half way through must not leave a broken snapshot behind
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } finally {
+            channel.close();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        
+        lastId = id;
+        lastNanos = System.nanoTime() - start;
+    }
+    
+    private static long newId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+    
+    /**
+     * Restores a full snapshot saved with the same memory size and parts,
+     * then the deltas on top of it in order. Pages missing from all files
+     * are cleared. All files are checked first, if one does not fit the
+     * machine is left alone.
+     */
+    public void restore(Path file, Path... deltas) throws IOException {
+        long start = System.nanoTime();
+        
+        Path[] files = new Path[1 + deltas.length];
+        files[0] = file;
+        System.arraycopy(deltas, 0, files, 1, deltas.length);
+        Image[] images = new Image[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            FileChannel channel = FileChannel.open(files[i], StandardOpenOption.READ);
+            try {
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                images[i] = check(buf);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IOException(files[i] + ": truncated or corrupt snapshot", e);
+            } finally {
+                channel.close();
+            }
+            long expectedBase = i == 0 ? 0 : images[i - 1].id;
+            if (images[i].baseId != expectedBase) {
+                throw new IOException(files[i] + (i == 0 ? ": is a delta, not a full snapshot"
+                        : ": is not a delta of " + files[i - 1]));
+            }
+        }
+        
+        // everything is checked, from here on the machine is overwritten
+        for (Image image : images) {
+            apply(image);
+        }
+        Image last = images[images.length - 1];
+        for (int i = 0; i < parts.size(); ++i) {
+            parts.get(i).restore(last.states[i]);
+        }
+        mem.takeDirtyPages();
+        lastId = last.id;
+        
+        lastNanos = System.nanoTime() - start;
+    }
+    
+    /**
+     * A checked snapshot file.
+     */
+    private static class Image {
+        ByteBuffer buf;
+        long id;
+        long baseId;
+        ByteBuffer[] states;
+        byte[] bitmap;
+        /** position of the first page */
+        int pages;
+    }
+    
+    private Image check(ByteBuffer buf) throws IOException {
+        if (buf.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        int size = buf.getInt();
+        if (size != mem.getSize()) {
+            throw new IOException(String.format("Snapshot of %d bytes of memory, have %d", size, mem.getSize()));
+        }
+        int count = buf.getInt();
+        if (count != parts.size()) {
+            throw new IOException(String.format("Snapshot has %d parts, expected %d", count, parts.size()));
+        }
+        Image image = new Image();
+        image.buf = buf;
+        image.id = buf.getLong();
+        image.baseId = buf.getLong();
+        
+        image.states = new ByteBuffer[count];
+        for (int i = 0; i < count; ++i) {
+            byte[] name = new byte[buf.getShort()];
+            buf.get(name);
+            int length = buf.getInt();
+            String expected = names.get(i);
+            if (!expected.equals(new String(name, StandardCharsets.UTF_8))) {
+                throw new IOException("Snapshot part " + i + " is not " + expected);
+            }
+            image.states[i] = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+            image.states[i].limit(length);
+            buf.position(buf.position() + length);
+        }
+        
+        int blockCount = size >> Memory.ROM_SHIFT;
+        image.bitmap = new byte[(blockCount + 7) / 8];
+        buf.get(image.bitmap);
+        image.pages = buf.position();
+        int page;
+        while ((page = buf.getInt()) >= 0) {
+            if (page >= size >> Memory.PAGE_SHIFT) {
+                throw new IOException("Snapshot page out of range: " + page);
+            }
+            buf.position(buf.position() + Memory.PAGE_SIZE);
+        }
+        return image;
+    }
+    
+    private void apply(Image image) {
+        ByteBuffer buf = image.buf;
+        buf.position(image.pages);
+        int size = mem.getSize();
+        boolean full = image.baseId == 0;
+        mem.setReadOnly(0, size, false);
+        int cleared = 0;
+        int page;
+        while ((page = buf.getInt()) >= 0) {
+            int addr = page << Memory.PAGE_SHIFT;
+            if (full && addr > cleared) {
+                mem.fill(cleared, addr - cleared, (byte) 0);
+            }
+            ByteBuffer data = buf.slice();
+            data.limit(Memory.PAGE_SIZE);
+            mem.loadData(addr, data);
+            buf.position(buf.position() + Memory.PAGE_SIZE);
+            cleared = addr + Memory.PAGE_SIZE;
+        }
+        if (full && size > cleared) {
+            mem.fill(cleared, size - cleared, (byte) 0);
+        }
+        int blockCount = size >> Memory.ROM_SHIFT;
+        for (int block = 0; block < blockCount; ++block) {
+            if ((image.bitmap[block >> 3] & (1 << (block & 0x07))) != 0) {
+                mem.setReadOnly(block << Memory.ROM_SHIFT, Memory.ROM_BLOCK_SIZE, true);
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of pages written by the last save() or
+     * saveDelta().
+     */
+    public int getSavedPages() {
+        return savedPages;
+    }
+    
+    /**
+     * Returns the duration of the last save() or restore().
+     */
+    public long getLastNanos() {
+        return lastNanos;
+    }
+}
@@ -0,0 +1,176 @@
+package emulator;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SnapshotTest {
+    
+    private static class Counter implements Snapshot.Part {
+        long value;
+        
+        @Override
+        public void save(ByteBuffer out) {
+            out.putLong(value);
+        }
+        
+        @Override
+        public void restore(ByteBuffer in) {
+            value = in.getLong();
+        }
+    }
+    
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = File.createTempFile("snapshot", ".snap");
+        file.deleteOnExit();
+        
+        Memory mem = new HeapMemory(0x100000);
+        mem.setWord(0x1234, (short) 0xBEEF);
+        mem.fill(0xF0000, 0x10000, (byte) 0x90);
+        mem.setReadOnly(0xF0000, 0x10000, true);
+        Counter counter = new Counter();
+        counter.value = 42;
+        Snapshot snapshot = new Snapshot(mem);
+        snapshot.add("counter", counter);
+        snapshot.save(file.toPath());
+        assertEquals(1 + 16, snapshot.getSavedPages());
+        assertTrue(file.length() < 18 * Memory.PAGE_SIZE);
+        
+        mem.setReadOnly(0xF0000, 0x10000, false);
+        mem.fill(0, 0x100000, (byte) 0x55);
+        counter.value = 0;
+        snapshot.restore(file.toPath());
+        assertEquals((short) 0xBEEF, mem.getWord(0x1234));
+        assertEquals(0, mem.getByte(0x1236));
+        assertEquals(0, mem.getByte(0xEFFFF));
+        assertEquals((byte) 0x90, mem.getByte(0xFFFFF));
+        assertTrue(mem.isReadOnly(0xF0000));
+        assertFalse(mem.isReadOnly(0xEFFFF));
+        assertEquals(42, counter.value);
+    }
+    
+    @Test
+    public void testMismatch() throws Exception {
+        File file = File.createTempFile("snapshot", ".snap");
+        file.deleteOnExit();
+        Memory mem = new HeapMemory(0x100000);
+        Snapshot snapshot = new Snapshot(mem);
+        snapshot.add("counter", new Counter());
+        snapshot.save(file.toPath());
+        
+        // different parts, and a file cut short, leave memory alone
+        mem.setByte(0x500, (byte) 1);
+        Snapshot other = new Snapshot(mem);
+        other.add("timer", new Counter());
+        try {
+            other.restore(file.toPath());
+            fail();
+        } catch (IOException e) {
+        }
+        byte[] data = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(data, data.length - 1));
+        try {
+            snapshot.restore(file.toPath());
+            fail();
+        } catch (IOException e) {
+        }
+        assertEquals(1, mem.getByte(0x500));
+    }
+    
+    @Test
+    public void testDelta() throws Exception {
+        Path dir = Files.createTempDirectory("snapshot");
+        Path base = dir.resolve("base.snap");
+        Path delta1 = dir.resolve("1.delta");
+        Path delta2 = dir.resolve("2.delta");
+        
+        Memory mem = new HeapMemory(0x100000);
+        mem.fill(0x10000, 0x4000, (byte) 0x11);
+        Counter counter = new Counter();
+        Snapshot snapshot = new Snapshot(mem);
+        snapshot.add("counter", counter);
+        try {
+            snapshot.saveDelta(delta1);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        snapshot.save(base);
+        
+        mem.setByte(0x10000, (byte) 0x22);
+        mem.setByte(0x50000, (byte) 0x22);
+        counter.value = 1;
+        snapshot.saveDelta(delta1);
+        assertEquals(2, snapshot.getSavedPages());
+        assertTrue(Files.size(delta1) < 3 * Memory.PAGE_SIZE);
+        
+        mem.fill(0x50000, Memory.PAGE_SIZE, (byte) 0);
+        mem.setByte(0x60000, (byte) 0x33);
+        counter.value = 2;
+        snapshot.saveDelta(delta2);
+        assertEquals(2, snapshot.getSavedPages());
+        
+        mem.fill(0, 0x100000, (byte) 0x55);
+        snapshot.restore(base, delta1);
+        assertEquals(0x22, mem.getByte(0x10000));
+        assertEquals(0x11, mem.getByte(0x10001));
+        assertEquals(0x22, mem.getByte(0x50000));
+        assertEquals(0, mem.getByte(0x60000));
+        assertEquals(1, counter.value);
+        
+        snapshot.restore(base, delta1, delta2);
+        assertEquals(0, mem.getByte(0x50000));
+        assertEquals(0x33, mem.getByte(0x60000));
+        assertEquals(2, counter.value);
+        
+        // a delta only fits on top of its own base
+        mem.setByte(0x500, (byte) 1);
+        for (Path[] chain : new Path[][] {{delta1}, {base, delta2}, {base, delta2, delta1}}) {
+            try {
+                snapshot.restore(chain[0], Arrays.copyOfRange(chain, 1, chain.length));
+                fail();
+            } catch (IOException e) {
+            }
+        }
+        assertEquals(1, mem.getByte(0x500));
+    }
+    
+    @Test
+    public void testCheckpoints() throws Exception {
+        Path dir = Files.createTempDirectory("checkpoints");
+        Memory mem = new HeapMemory(0x100000);
+        Counter counter = new Counter();
+        Snapshot snapshot = new Snapshot(mem);
+        snapshot.add("counter", counter);
+        assertFalse(CheckpointWriter.restoreLatest(snapshot, dir));
+        
+        CheckpointWriter writer = new CheckpointWriter(snapshot, dir, 2);
+        for (int i = 1; i <= 5; ++i) {
+            mem.setByte(i * Memory.PAGE_SIZE, (byte) i);
+            counter.value = i;
+            writer.checkpoint();
+        }
+        // full, delta, delta, full, delta
+        assertEquals(Arrays.asList(dir.resolve("checkpoint-000004.full"), dir.resolve("checkpoint-000005.delta")),
+                writer.getChain());
+        assertEquals(2, dir.toFile().list().length);
+        
+        mem.fill(0, 0x100000, (byte) 0);
+        assertTrue(CheckpointWriter.restoreLatest(snapshot, dir));
+        for (int i = 1; i <= 5; ++i) {
+            assertEquals(i, mem.getByte(i * Memory.PAGE_SIZE));
+        }
+        assertEquals(5, counter.value);
+        
+        // a later run numbers on and starts with a full snapshot
+        assertEquals(dir.resolve("checkpoint-000006.full"), new CheckpointWriter(snapshot, dir, 2).checkpoint());
+        assertEquals(1, dir.toFile().list().length);
+    }
+}
@@ -0,0 +1,30 @@
+package emulator.cpu;
+
+/**
+ * Straight-line run of decoded instructions ending at a branch. A block
+ * never crosses a page, so a write to one page invalidates it.
+ */
+final class BasicBlock {
+    
+    final int address;
+    final DecodedInstruction[] instructions;
+    
+    /** clock cycles of the first n instructions at index n */
+    final int[] cycles;
+    
+    boolean valid = true;
+    
+    /** number of times the block was entered, counted until it is translated */
+    int executions;
+    TranslatedBlock translation;
+    boolean untranslatable;
+    
+    BasicBlock(int address, DecodedInstruction[] instructions) {
+        this.address = address;
+        this.instructions = instructions;
+        cycles = new int[instructions.length + 1];
+        for (int i = 0; i < instructions.length; ++i) {
+            cycles[i + 1] = cycles[i] + instructions[i].cycles;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package emulator.cpu;
+
+import emulator.Memory;
+
+/**
+ * Basic blocks keyed by linear address (CS << 4) + IP. Pages holding cached
+ * blocks are watched, and a write to any byte of a cached instruction drops
+ * all blocks of that page. Writes to data sharing the page are ignored.
+ */
+public class BlockCache implements Memory.WriteListener {
+    
+    private final Memory mem;
+    
+    /** per page, per offset; a page's array is allocated on first use */
+    private final BasicBlock[][] pages;
+    
+    /** per page, one bit per byte covered by a cached instruction */
+    private final long[][] codeBits;
+    
+    private long hits;
+    private long misses;
+    private long invalidations;
+    
+    BlockCache(Memory mem) {
+        this.mem = mem;
+        pages = new BasicBlock[mem.getPageCount()][];
+        codeBits = new long[mem.getPageCount()][];
+    }
+    
+    BasicBlock get(int addr) {
+        BasicBlock[] page = pages[addr >> Memory.PAGE_SHIFT];
+        BasicBlock block = null == page ? null : page[addr & (Memory.PAGE_SIZE - 1)];
+        if (null != block) {
+            ++hits;
+        } else {
+            ++misses;
+        }
+        return block;
+    }
+    
+    void put(BasicBlock block) {
+        int pageIdx = block.address >> Memory.PAGE_SHIFT;
+        BasicBlock[] page = pages[pageIdx];
+        if (null == page) {
+            page = new BasicBlock[Memory.PAGE_SIZE];
+            pages[pageIdx] = page;
+            codeBits[pageIdx] = new long[Memory.PAGE_SIZE / 64];
+            mem.watchPage(pageIdx, this);
+        }
+        page[block.address & (Memory.PAGE_SIZE - 1)] = block;
+        
+        long[] bits = codeBits[pageIdx];
+        for (DecodedInstruction instruction : block.instructions) {
+            for (int i = 0; i < instruction.bytes.length; ++i) {
+                int offs = (instruction.address + i) & (Memory.PAGE_SIZE - 1);
+                bits[offs >> 6] |= 1L << offs;
+            }
+        }
+    }
+    
+    @Override
+    public void memoryWritten(int addr, int size) {
+        for (int a = addr; a < addr + size; ++a) {
+            long[] bits = codeBits[a >> Memory.PAGE_SHIFT];
+            int offs = a & (Memory.PAGE_SIZE - 1);
+            if (null != bits && (bits[offs >> 6] & (1L << offs)) != 0) {
+                invalidate(a >> Memory.PAGE_SHIFT);
+            }
+        }
+    }
+    
+    private void invalidate(int pageIdx) {
+        BasicBlock[] page = pages[pageIdx];
+        for (BasicBlock block : page) {
+            if (null != block) {
+                block.valid = false;
+                ++invalidations;
+            }
+        }
+        pages[pageIdx] = null;
+        codeBits[pageIdx] = null;
+        mem.unwatchPage(pageIdx, this);
+    }
+    
+    public long getHits() {
+        return hits;
+    }
+    
+    public long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * Returns the number of blocks dropped because their page was written.
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+}
@@ -0,0 +1,222 @@
+package emulator.cpu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal class file writer for {@link Translator}: a class with a default
+ * constructor and a single method. Writes version 49 class files, so the
+ * code needs no stack map frames.
+ */
+final class ClassBuilder {
+    
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int ISTORE = 0x36;
+    static final int POP = 0x57;
+    static final int IADD = 0x60;
+    static final int IOR = 0x80;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKEINTERFACE = 0xb9;
+    
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+    private int poolCount = 1;
+    
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final List<int[]> jumps = new ArrayList<int[]>();
+    private final List<Integer> labels = new ArrayList<Integer>();
+    
+    private final String name;
+    private final String superName;
+    
+    ClassBuilder(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+    
+    // constant pool
+    
+    private int constant(String key, int tag, int a, int b, boolean wide) throws IOException {
+        Integer index = poolIndex.get(key);
+        if (null != index) {
+            return index;
+        }
+        pool.writeByte(tag);
+        if (wide) {
+            pool.writeInt(a);
+        } else {
+            pool.writeShort(a);
+            if (b >= 0) {
+                pool.writeShort(b);
+            }
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+    
+    private int utf8(String s) throws IOException {
+        Integer index = poolIndex.get("U" + s);
+        if (null != index) {
+            return index;
+        }
+        pool.writeByte(1);
+        pool.writeUTF(s);
+        poolIndex.put("U" + s, poolCount);
+        return poolCount++;
+    }
+    
+    private int classRef(String className) throws IOException {
+        return constant("C" + className, 7, utf8(className), -1, false);
+    }
+    
+    private int memberRef(int tag, String owner, String member, String desc) throws IOException {
+        int nameAndType = constant("N" + member + desc, 12, utf8(member), utf8(desc), false);
+        return constant(tag + owner + "." + member + desc, tag, classRef(owner), nameAndType, false);
+    }
+    
+    // code
+    
+    void op(int opcode) {
+        code.write(opcode);
+    }
+    
+    void local(int opcode, int index) {
+        code.write(opcode);
+        code.write(index);
+    }
+    
+    void iconst(int value) throws IOException {
+        if (value >= -1 && value <= 5) {
+            code.write(0x03 + value); // ICONST_M1 .. ICONST_5
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(BIPUSH);
+            code.write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.write(SIPUSH);
+            writeShort(value);
+        } else {
+            int index = constant("I" + value, 3, value, -1, true);
+            code.write(LDC_W);
+            writeShort(index);
+        }
+    }
+    
+    void invoke(int opcode, String owner, String method, String desc) throws IOException {
+        code.write(opcode);
+        writeShort(memberRef(10, owner, method, desc));
+    }
+    
+    /**
+     * @param argSlots number of int arguments, the receiver not counted
+     */
+    void invokeInterface(String owner, String method, String desc, int argSlots) throws IOException {
+        code.write(INVOKEINTERFACE);
+        writeShort(memberRef(11, owner, method, desc));
+        code.write(argSlots + 1);
+        code.write(0);
+    }
+    
+    void field(int opcode, String owner, String field, String desc) throws IOException {
+        code.write(opcode);
+        writeShort(memberRef(9, owner, field, desc));
+    }
+    
+    int newLabel() {
+        labels.add(-1);
+        return labels.size() - 1;
+    }
+    
+    void mark(int label) {
+        labels.set(label, code.size());
+    }
+    
+    void jump(int opcode, int label) {
+        jumps.add(new int[] {code.size(), label});
+        code.write(opcode);
+        writeShort(0);
+    }
+    
+    private void writeShort(int value) {
+        code.write(value >> 8);
+        code.write(value);
+    }
+    
+    /**
+     * Returns the class file with the code emitted so far as the body of the
+     * given public method.
+     */
+    byte[] build(String method, String desc, int maxStack, int maxLocals) throws IOException {
+        byte[] body = code.toByteArray();
+        for (int[] jump : jumps) {
+            int offset = labels.get(jump[1]) - jump[0];
+            body[jump[0] + 1] = (byte) (offset >> 8);
+            body[jump[0] + 2] = (byte) offset;
+        }
+        
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int codeName = utf8("Code");
+        int initName = utf8("<init>");
+        int initDesc = utf8("()V");
+        int superInit = memberRef(10, superName, "<init>", "()V");
+        int methodName = utf8(method);
+        int methodDesc = utf8(desc);
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(poolCount);
+        out.write(poolBytes.toByteArray());
+        out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(2); // methods
+        
+        byte[] init = {
+            (byte) ALOAD, 0, (byte) INVOKESPECIAL, (byte) (superInit >> 8), (byte) superInit, (byte) RETURN
+        };
+        writeMethod(out, 0x0000, initName, initDesc, codeName, 1, 1, init);
+        writeMethod(out, 0x0001, methodName, methodDesc, codeName, maxStack, maxLocals, body);
+        
+        out.writeShort(0); // attributes
+        return bytes.toByteArray();
+    }
+    
+    private static void writeMethod(DataOutputStream out, int access, int name, int desc, int codeName,
+            int maxStack, int maxLocals, byte[] body) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + body.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+}
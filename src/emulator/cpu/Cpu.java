@@ -1,150 +1,195 @@
 package emulator.cpu;
 
-import java.io.IOException;
-import java.util.logging.FileHandler;
-import java.util.logging.Formatter;
-import java.util.logging.Handler;
-import java.util.logging.LogRecord;
-import java.util.logging.Logger;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
 
 import emulator.Memory;
+import emulator.Scheduler;
+import emulator.Snapshot;
+import emulator.io.IoBus;
 
-public class Cpu {
+public class Cpu implements Scheduler.Clock, Snapshot.Part {
     
     private State state;
     
     private static final int INIT_CS = 0xf000;
     private static final int INIT_IP = 0xfff0;
     private static final int INIT_FLAGS = 0xf002;
-            
-    private int jump = -1;
     
-    private int opcodeNum = 0;
+    /** segment:offset addresses wrap around at 1 MiB */
+    private static final int ADDRESS_MASK = 0xfffff;
+    
+    /** guest clock of the IBM PC, in Hz */
+    public static final long CLOCK_HZ = 4772727;
+    
+    /** average instruction, for counting halted time against budgets */
+    private static final int IDLE_CYCLES_PER_INSTRUCTION = 8;
+    
+    /** wall time per batch of cycles in runPaced() */
+    private static final long PACING_SLICE_NANOS = 1000000;
+    
+    /** guest clock cycles since creation */
+    private long cycles = 0;
+    
+    private final Scheduler scheduler;
+    
+    /** null if there is no interrupt controller */
+    private InterruptController interrupts;
+    
+    /** a REP prefix was executed, the next string instruction repeats */
+    private boolean repeat;
+    
+    /** instructions executed since creation */
+    private long retired = 0;
+    /** time spent in run() */
+    private long runNanos = 0;
+    
+    private boolean halted;
+    
+    /** per page, one bit per linear address run() stops at; null if none */
+    private final long[][] breakpoints;
+    private int breakpointCount;
+    
+    /** null unless there are watchpoints, then also what mem points to */
+    private WatchedMemory watched;
     
+    /** watch reads or writes, see addWatchpoint() */
+    public static final int WATCH_READ = 1;
+    public static final int WATCH_WRITE = 2;
+    
+    /** null unless checkpoints are taken for running backwards */
+    private History history;
+    /** instruction count of the next checkpoint */
+    private long nextCheckpoint = Long.MAX_VALUE;
+    
+    /** instructions between two clock reads in runUntil() */
+    private static final long DEADLINE_SLICE = 10000;
+    
+    /** what instructions access, ram or the watched view of it */
     private Memory mem;
+    /** the memory itself, for fetching code */
+    private final Memory ram;
     
     private ModRM modRM;
     
-    private final static Logger logger = Logger.getAnonymousLogger();
+    private IoBus io;
+    
+    /** null unless tracing */
+    private Tracer tracer;
+    
+    /** null unless profiling */
+    private Profiler profiler;
+    
+    /**
+     * Handler of a single opcode (or of a single regIdx within an opcode group).
+     * Every table entry is a separate small object, so each one stays small
+     * enough to be compiled and inlined on its own.
+     */
+    abstract class Instruction {
+        abstract void execute(byte opcode) throws Exception;
+    }
+    
+    private final Instruction[] opcodeTable = new Instruction[256];
+    
+    private final Instruction[] grp1EbTable = new Instruction[8];
+    private final Instruction[] grp1EvTable = new Instruction[8];
+    private final Instruction[] grp2EbTable = new Instruction[8];
+    private final Instruction[] grp2EvTable = new Instruction[8];
+    private final Instruction[] grp3aTable = new Instruction[8];
+    private final Instruction[] grp3bTable = new Instruction[8];
+    private final Instruction[] grp4Table = new Instruction[8];
+    private final Instruction[] grp5Table = new Instruction[8];
+    
+    private Instruction invalidOpcode;
+    private Instruction invalidRegIdx;
+    
+    /** maximum number of instructions in a basic block */
+    private static final int MAX_BLOCK_LENGTH = 64;
+    
+    private BlockCache blockCache;
+    
+    private BasicBlock block;
+    private int blockPos;
+    
+    private Translator translator;
+    private boolean translationEnabled = false;
+    private int translationThreshold = 50;
+    
+    /** instruction being executed from the block cache, null when fetching from memory */
+    private DecodedInstruction current;
+    private int fetchPos;
     
     class ModRM {
         private byte regIdx;
         private byte memIdx;
-        private Integer addr;
         
-        private Integer forcedSegIdx = null;
+        /** memIdx names a register (mode 3) */
+        private boolean register;
+        private int addr;
+        
+        /** segment override prefix, -1 if none */
+        private int forcedSegIdx = -1;
         
         public void read() throws Exception {
-            byte modRM = nextByte();
+            int modRM;
+            int disp;
+            if (null != current) {
+                // already decoded, just skip the ModRM and displacement bytes
+                fetchPos += current.modRMLength;
+                state.setIP(state.getIP() + current.modRMLength);
+                modRM = current.modRM;
+                disp = current.disp;
+            } else {
+                modRM = nextByte() & 0xff;
+                switch (ModRMTable.DISP_SIZE[modRM]) {
+                    case 1:
+                        disp = nextByte();
+                        break;
+                    case 2:
+                        disp = nextWord();
+                        break;
+                    default:
+                        disp = 0;
+                        break;
+                }
+            }
             
-            byte mode = (byte)((modRM >> 6) & 0x03);
             regIdx = (byte)((modRM >> 3) & 0x07);
             memIdx = (byte)(modRM & 0x07);
-            
-            switch (mode) {
-                case 0:
-                    addr = getMode0Address();
-                    break;
-                case 1:
-                    addr = getMode1Address();
-                    break;
-                case 2: 
-                    addr = getMode2Address();
-                    break;
-                case 3:
-                    addr = null; // using memIdx as regIdx in mode 3
-                    break;
-                default:
-                    throw new Exception("Unsupported mode: " + mode);
-            }
-        }
-        
-        private int getMode0Address() {
-            switch (memIdx) {
-                case 0:
-                    return getAddr(State.DS_INDEX, (short) (state.getBX() + state.getSI()));
-                case 1:
-                    return getAddr(State.DS_INDEX, (short) (state.getBX() + state.getDI()));
-                case 2:
-                    return getAddr(State.SS_INDEX, (short) (state.getBP() + state.getSI()));
-                case 3:
-                    return getAddr(State.SS_INDEX, (short) (state.getBP() + state.getDI()));
-                case 4:
-                    return getAddr(State.DS_INDEX, (short) (state.getSI()));
-                case 5:
-                    return getAddr(State.DS_INDEX, (short) (state.getDI()));
-                case 6:
-                    return getAddr(State.DS_INDEX, nextWord());
-                case 7:
-                    return getAddr(State.DS_INDEX, (short) (state.getBX()));
-                default:
-                    throw new RuntimeException("Unknown memIdx: " + memIdx);
-            }
-        }
-        
-        private int getMode1Address() {
-            switch (memIdx) {
-                case 0:
-                    return getAddr(State.DS_INDEX, (short) (state.getBX() + state.getSI() + nextByte()));
-                case 1:
-                    return getAddr(State.DS_INDEX, (short) (state.getBX() + state.getDI() + nextByte()));
-                case 2:
-                    return getAddr(State.SS_INDEX, (short) (state.getBP() + state.getSI() + nextByte()));
-                case 3:
-                    return getAddr(State.SS_INDEX, (short) (state.getBP() + state.getDI() + nextByte()));
-                case 4:
-                    return getAddr(State.DS_INDEX, (short) (state.getSI() + nextByte()));
-                case 5:
-                    return getAddr(State.DS_INDEX, (short) (state.getDI() + nextByte()));
-                case 6:
-                    return getAddr(State.SS_INDEX, (short) (state.getBP() + nextByte()));
-                case 7:
-                    return getAddr(State.DS_INDEX, (short) (state.getBX() + nextByte()));
-                default:
-                    throw new RuntimeException("Unknown memIdx: " + memIdx);
-            }
-        }
-        
-        private int getMode2Address() {
-            switch (memIdx) {
-                case 0:
-                    return getAddr(State.DS_INDEX, (short) (state.getBX() + state.getSI() + nextWord()));
-                case 1:
-                    return getAddr(State.DS_INDEX, (short) (state.getBX() + state.getDI() + nextWord()));
-                case 2:
-                    return getAddr(State.SS_INDEX, (short) (state.getBP() + state.getSI() + nextWord()));
-                case 3:
-                    return getAddr(State.SS_INDEX, (short) (state.getBP() + state.getDI() + nextWord()));
-                case 4:
-                    return getAddr(State.DS_INDEX, (short) (state.getSI() + nextWord()));
-                case 5:
-                    return getAddr(State.DS_INDEX, (short) (state.getDI() + nextWord()));
-                case 6:
-                    return getAddr(State.SS_INDEX, (short) (state.getBP() + nextWord()));
-                case 7:
-                    return getAddr(State.DS_INDEX, (short) (state.getBX() + nextWord()));
-                default:
-                    throw new RuntimeException("Unknown memIdx: " + memIdx);
+            register = ModRMTable.REGISTER[modRM];
+            if (!register) {
+                int offs = disp;
+                int base = ModRMTable.BASE[modRM];
+                int index = ModRMTable.INDEX[modRM];
+                if (base >= 0) {
+                    offs += state.getReg(base);
+                }
+                if (index >= 0) {
+                    offs += state.getReg(index);
+                }
+                addr = getAddr(ModRMTable.SEGMENT[modRM], offs);
             }
         }
         
         public int getAddr(int segIndex, int offs) {
-            if (null != forcedSegIdx) {
+            if (forcedSegIdx >= 0) {
                 segIndex = forcedSegIdx;
-                forcedSegIdx = null;
+                forcedSegIdx = -1;
             }
             return (state.getSegReg(segIndex) << 4) + (offs & 0xffff);
         }
         
         public byte getMem8() {
-            if (null == addr) {
+            if (register) {
                 return (byte) state.getReg8(memIdx);
             }
             return mem.getByte(addr);
         }
         
         public void setMem8(byte value) {
-            if (null == addr) {
+            if (register) {
                 state.setReg8(memIdx, value);
             } else {
                 mem.setByte(addr, value);
@@ -152,7 +197,7 @@ public class Cpu {
         }
         
         public short getMem16() {
-            if (null == addr) {
+            if (register) {
                 return (short) state.getReg(memIdx);
             }
             
@@ -160,7 +205,7 @@ public class Cpu {
         }
         
         public void setMem16(short value) {
-            if (null == addr) {
+            if (register) {
                 state.setReg(memIdx, value);
             } else {
                 mem.setWord(addr, value);
@@ -195,7 +240,7 @@ public class Cpu {
             return regIdx;
         }
         
-        public Integer getAddress() {
+        public int getAddress() {
             return addr;
         }
         
@@ -204,31 +249,277 @@ public class Cpu {
         }
     }
     
-    class LogFormatter extends Formatter {
-
-        @Override
-        public String format(LogRecord record) {
-            return record.getMessage() + "\n";
-        }
+    public Cpu(Memory mem) {
+        this(mem, new IoBus());
     }
     
-    public Cpu(Memory mem) throws SecurityException, IOException {      
+    public Cpu(Memory mem, IoBus io) {
+        this(mem, io, new Scheduler());
+    }
     
+    public Cpu(Memory mem, IoBus io, Scheduler scheduler) {
         this.mem = mem;
+        this.ram = mem;
+        this.io = io;
+        this.scheduler = scheduler;
+        scheduler.setClock(this);
         
         modRM = new ModRM();
         state = new State();
+        blockCache = new BlockCache(mem);
+        breakpoints = new long[(ADDRESS_MASK + 1) >> Memory.PAGE_SHIFT][];
+        translator = new Translator(MethodHandles.lookup());
         
+        initOpcodeTable();
         reset();
-        
-        logger.setUseParentHandlers(false);
-        Handler logHandler = new FileHandler("cpu.log");
-        logHandler.setFormatter(new LogFormatter());
-        logger.addHandler(logHandler);
+    }
+    
+    public State getState() {
+        return state;
+    }
+    
+    /**
+     * Returns a copy of this CPU on a fork of its memory, see
+     * Memory.fork(). Devices are not copied: the fork gets an empty I/O bus
+     * and scheduler, and no interrupt controller or tracer. Both may then
+     * run on different threads.
+     */
+    public Cpu fork() {
+        Cpu child = new Cpu(ram.fork(), new IoBus(), new Scheduler());
+        child.state = state.copy();
+        child.modRM.forcedSegIdx = modRM.forcedSegIdx;
+        child.repeat = repeat;
+        child.halted = halted;
+        child.cycles = cycles;
+        child.retired = retired;
+        for (int i = 0; i < breakpoints.length; ++i) {
+            child.breakpoints[i] = null == breakpoints[i] ? null : breakpoints[i].clone();
+        }
+        child.breakpointCount = breakpointCount;
+        if (null != watched) {
+            child.watched = watched.copy(child.ram);
+            child.mem = child.watched;
+        }
+        child.translationEnabled = translationEnabled;
+        child.translationThreshold = translationThreshold;
+        return child;
+    }
+    
+    public Memory getMemory() {
+        return ram;
+    }
+    
+    public IoBus getIoBus() {
+        return io;
+    }
+    
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+    
+    public void setInterruptController(InterruptController interrupts) {
+        this.interrupts = interrupts;
+    }
+    
+    @Override
+    public long getCycles() {
+        return cycles;
+    }
+    
+    /**
+     * Saves the registers and the state between instructions, such as a
+     * pending prefix.
+     */
+    @Override
+    public void save(ByteBuffer out) {
+        for (int i = 0; i < 8; ++i) {
+            out.putShort((short) state.getReg(i));
+        }
+        for (int i = 0; i < 4; ++i) {
+            out.putShort((short) state.getSegReg(i));
+        }
+        out.putShort((short) state.getIP());
+        out.putShort((short) state.getFlags());
+        out.put((byte) modRM.forcedSegIdx);
+        out.put((byte) (repeat ? 1 : 0));
+        out.put((byte) (halted ? 1 : 0));
+        out.putLong(cycles);
+        out.putLong(retired);
+    }
+    
+    @Override
+    public void restore(ByteBuffer in) {
+        for (int i = 0; i < 8; ++i) {
+            state.setReg(i, in.getShort() & 0xffff);
+        }
+        for (int i = 0; i < 4; ++i) {
+            state.setSegReg(i, in.getShort() & 0xffff);
+        }
+        state.setIP(in.getShort() & 0xffff);
+        state.setFlags(in.getShort() & 0xffff);
+        modRM.forcedSegIdx = in.get();
+        repeat = in.get() != 0;
+        halted = in.get() != 0;
+        cycles = in.getLong();
+        retired = in.getLong();
+        // deadlines were saved against the restored clock
+        scheduler.wake();
+    }
+    
+    /**
+     * Attaches an instruction tracer, or detaches it if null. Instructions
+     * are interpreted one by one while it waits for its trigger or traces a
+     * limited number of them.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+    
+    /**
+     * Attaches a profiler, or detaches it if null. Instructions are
+     * interpreted one by one while it is attached.
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+    
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+    
+    /**
+     * Enables translation of hot blocks into JVM classes. With translation
+     * enabled a single step() may run a whole block.
+     */
+    public void setTranslationEnabled(boolean enabled) {
+        translationEnabled = enabled;
+    }
+    
+    /**
+     * Sets how many times a block has to be entered before it is translated.
+     */
+    public void setTranslationThreshold(int threshold) {
+        translationThreshold = threshold;
+    }
+    
+    public long getTranslatedBlockCount() {
+        return translator.getTranslatedCount();
+    }
+    
+    /**
+     * Returns the number of blocks left to the interpreter because their
+     * first instruction cannot be translated.
+     */
+    public long getUntranslatableBlockCount() {
+        return translator.getFailedCount();
+    }
+    
+    public long getInstructionsRetired() {
+        return retired;
+    }
+    
+    /**
+     * Returns the wall time spent inside run() and runUntil().
+     */
+    public long getRunNanos() {
+        return runNanos;
+    }
+    
+    /**
+     * Returns millions of instructions per second over all run() calls.
+     */
+    public double getMips() {
+        return runNanos == 0 ? 0 : retired * 1000.0 / runNanos;
+    }
+    
+    public boolean isHalted() {
+        return halted;
+    }
+    
+    /**
+     * Makes run() stop before the instruction at the given linear address,
+     * (CS << 4) + IP. Only blocks on pages with a breakpoint are
+     * interpreted, the others still run translated.
+     */
+    public void addBreakpoint(int addr) {
+        addr &= ADDRESS_MASK;
+        long[] bits = breakpoints[addr >> Memory.PAGE_SHIFT];
+        if (null == bits) {
+            bits = new long[Memory.PAGE_SIZE / 64];
+            breakpoints[addr >> Memory.PAGE_SHIFT] = bits;
+        }
+        int offs = addr & (Memory.PAGE_SIZE - 1);
+        if ((bits[offs >> 6] & (1L << offs)) == 0) {
+            bits[offs >> 6] |= 1L << offs;
+            ++breakpointCount;
+        }
+    }
+    
+    public void removeBreakpoint(int addr) {
+        addr &= ADDRESS_MASK;
+        long[] bits = breakpoints[addr >> Memory.PAGE_SHIFT];
+        int offs = addr & (Memory.PAGE_SIZE - 1);
+        if (null == bits || (bits[offs >> 6] & (1L << offs)) == 0) {
+            return;
+        }
+        bits[offs >> 6] &= ~(1L << offs);
+        --breakpointCount;
+        for (long word : bits) {
+            if (word != 0) {
+                return;
+            }
+        }
+        breakpoints[addr >> Memory.PAGE_SHIFT] = null;
+    }
+    
+    /**
+     * Makes run() stop after an instruction that reads or writes any of
+     * size bytes starting at the linear address.
+     * 
+     * @param access WATCH_READ, WATCH_WRITE or both
+     */
+    public void addWatchpoint(int addr, int size, int access) {
+        if (null == watched) {
+            watched = new WatchedMemory(ram);
+            mem = watched;
+        }
+        watched.add(addr, size, access);
+    }
+    
+    /**
+     * Removes the watchpoint added with the same arguments.
+     */
+    public void removeWatchpoint(int addr, int size, int access) {
+        if (null == watched) {
+            return;
+        }
+        watched.remove(addr, size, access);
+        if (watched.isEmpty()) {
+            watched = null;
+            mem = ram;
+        }
+    }
+    
+    /**
+     * Returns the linear address of the watched access run() last stopped
+     * for.
+     */
+    public int getWatchpointAddress() {
+        return null == watched ? -1 : watched.getHitAddress();
+    }
+    
+    /**
+     * Returns true if the watched access run() last stopped for was a write.
+     */
+    public boolean isWatchpointWrite() {
+        return null != watched && watched.isHitWrite();
     }
     
     public void reset() {
         state.reset();
+        halted = false;
+        repeat = false;
+        modRM.forcedSegIdx = -1;
         
         state.setCS(INIT_CS);
         state.setIP(INIT_IP);
@@ -236,655 +527,1425 @@ public class Cpu {
         state.setFlags(INIT_FLAGS);
     }
     
-    public void step() throws Exception {
-        byte opcode = nextByte();
+    /**
+     * Executes at least maxInstructions instructions unless something stops
+     * the CPU first. A translated block runs as a whole, so the budget may
+     * be exceeded by the length of one block.
+     * <p>
+     * The instruction at a breakpoint is not executed; running again from
+     * there executes it.
+     * An instruction accessing memory under a watchpoint is completed
+     * before run() returns.
+     * <p>
+     * While halted, the time up to the next device event is skipped and
+     * counts against the budget. HALT is returned when no interrupt can
+     * end the halt.
+     */
+    public StopReason run(long maxInstructions) throws Exception {
+        long start = System.nanoTime();
+        long count = 0;
+        StopReason reason = StopReason.BUDGET;
+        try {
+            if (breakpointCount == 0 && null == watched) {
+                while (count < maxInstructions) {
+                    if (!halted) {
+                        count += step(translationEnabled);
+                    } else {
+                        long idle = idle();
+                        if (idle < 0) {
+                            reason = StopReason.HALT;
+                            break;
+                        }
+                        count += idle;
+                    }
+                }
+            } else {
+                if (null != watched) {
+                    watched.takeHit();
+                }
+                while (count < maxInstructions) {
+                    if (!halted) {
+                        int addr = linearIP();
+                        long[] bits = breakpoints[addr >> Memory.PAGE_SHIFT];
+                        if (null == bits) {
+                            // blocks do not cross pages, none of this one can hold a breakpoint
+                            count += step(translationEnabled && null == watched);
+                        } else {
+                            int offs = addr & (Memory.PAGE_SIZE - 1);
+                            if (count > 0 && (bits[offs >> 6] & (1L << offs)) != 0) {
+                                reason = StopReason.BREAKPOINT;
+                                break;
+                            }
+                            count += step(false);
+                        }
+                    } else {
+                        long idle = idle();
+                        if (idle < 0) {
+                            reason = StopReason.HALT;
+                            break;
+                        }
+                        count += idle;
+                    }
+                    if (null != watched && watched.takeHit()) {
+                        reason = StopReason.WATCHPOINT;
+                        break;
+                    }
+                }
+            }
+        } catch (InvalidOpcodeException e) {
+            reason = StopReason.INVALID_OPCODE;
+        } finally {
+            runNanos += System.nanoTime() - start;
+        }
+        return reason;
+    }
+    
+    /**
+     * Runs until System.nanoTime() passes the deadline or something stops
+     * the CPU. The clock is read every few thousand instructions.
+     */
+    public StopReason runUntil(long deadlineNanos) throws Exception {
+        while (System.nanoTime() - deadlineNanos < 0) {
+            StopReason reason = run(DEADLINE_SLICE);
+            if (reason != StopReason.BUDGET) {
+                return reason;
+            }
+        }
+        return StopReason.DEADLINE;
+    }
+    
+    /**
+     * Runs for the given number of guest cycles at the speed of a clock of
+     * clockHz: executes a millisecond worth of cycles at full speed, then
+     * parks the thread until wall time catches up with the guest clock.
+     * A guest slower than real time is never made to catch up in a burst,
+     * the lost time is dropped instead.
+     * 
+     * @return BUDGET once maxCycles have passed, or what else stopped the
+     * CPU
+     */
+    public StopReason runPaced(long maxCycles, long clockHz) throws Exception {
+        long sliceCycles = Math.max(1, clockHz * PACING_SLICE_NANOS / 1000000000L);
+        long end = maxCycles > Long.MAX_VALUE - cycles ? Long.MAX_VALUE : cycles + maxCycles;
+        long startCycles = cycles;
+        long startNanos = System.nanoTime();
+        while (cycles < end) {
+            StopReason reason = runCycles(Math.min(end, cycles + sliceCycles));
+            if (reason != StopReason.BUDGET) {
+                return reason;
+            }
+            // measured from the previous slice, so the product cannot overflow
+            long due = startNanos + (cycles - startCycles) * 1000000000L / clockHz;
+            long now = System.nanoTime();
+            if (due - now > 0) {
+                LockSupport.parkNanos(due - now);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            } else if (now - due > PACING_SLICE_NANOS) {
+                due = now;
+            }
+            startCycles = cycles;
+            startNanos = due;
+        }
+        return StopReason.BUDGET;
+    }
+    
+    /**
+     * Runs until the cycle counter reaches target, overshooting by at most
+     * one instruction or translated block.
+     */
+    private StopReason runCycles(long target) throws Exception {
+        while (cycles < target) {
+            long instructions = Math.max(1, (target - cycles) / (IDLE_CYCLES_PER_INSTRUCTION * 2));
+            StopReason reason = run(instructions);
+            if (reason != StopReason.BUDGET) {
+                return reason;
+            }
+        }
+        return StopReason.BUDGET;
+    }
+    
+    /**
+     * Runs until exactly target instructions have retired, or something
+     * other than a breakpoint stops the CPU first. Translated blocks run
+     * while they cannot overshoot.
+     */
+    StopReason runTo(long target) throws Exception {
+        while (retired < target) {
+            long left = target - retired;
+            StopReason reason;
+            if (left > MAX_BLOCK_LENGTH) {
+                reason = run(left - MAX_BLOCK_LENGTH);
+            } else {
+                boolean translate = translationEnabled;
+                translationEnabled = false;
+                try {
+                    reason = run(left);
+                } finally {
+                    translationEnabled = translate;
+                }
+            }
+            if (reason != StopReason.BUDGET && reason != StopReason.BREAKPOINT
+                    && reason != StopReason.WATCHPOINT) {
+                return reason;
+            }
+        }
+        return StopReason.BUDGET;
+    }
+    
+    /**
+     * Interprets up to the instruction count end and returns the last count
+     * at which the next instruction was at the linear address, -1 if none.
+     */
+    long findLast(int addr, long end) throws Exception {
+        long found = -1;
+        try {
+            while (retired < end) {
+                if (halted) {
+                    if (idle() < 0) {
+                        break;
+                    }
+                    continue;
+                }
+                if (linearIP() == addr) {
+                    found = retired;
+                }
+                step(false);
+            }
+        } catch (InvalidOpcodeException e) {
+            // the end of what can be replayed
+        }
+        return found;
+    }
+    
+    /**
+     * Called by History when it is attached, null to stop checkpoints.
+     */
+    void setHistory(History history, long nextCheckpoint) {
+        this.history = history;
+        this.nextCheckpoint = null == history ? Long.MAX_VALUE : nextCheckpoint;
+    }
+    
+    public History getHistory() {
+        return history;
+    }
+    
+    /**
+     * Executes the next instruction, or the whole translated block starting
+     * at CS:IP when translation is enabled. Does nothing while halted.
+     * 
+     * @return number of instructions executed
+     */
+    public int step() throws Exception {
+        return step(translationEnabled);
+    }
+    
+    private int step(boolean translate) throws Exception {
+        if (halted) {
+            return 0;
+        }
+        int addr = linearIP();
+        if (null == block || !block.valid || blockPos >= block.instructions.length
+                || block.instructions[blockPos].address != addr) {
+            block = blockCache.get(addr);
+            if (null == block) {
+                block = decodeBlock(addr);
+            }
+            blockPos = 0;
+        }
         
-        logger.info(String.format("%s: 0x%X ", ++opcodeNum, opcode) + state);
-        if (opcodeNum > 100000) {
-            System.exit(0);
+        // a block that an event may fall into is interpreted, so interrupts are
+        // taken after the same instruction either way and History can replay;
+        // so is one after a prefix, which translated code would not apply
+        if (translate && null != block && blockPos == 0 && !(Profiler.ENABLED && null != profiler)
+                && modRM.forcedSegIdx < 0 && !repeat && !(null != tracer && tracer.isCounting())
+                && cycles + block.cycles[block.instructions.length - 1] < scheduler.getNextEventCycle()) {
+            if (null == block.translation && !block.untranslatable
+                    && ++block.executions >= translationThreshold) {
+                block.translation = translator.translate(block);
+                block.untranslatable = null == block.translation;
+            }
+            if (null != block.translation) {
+                int count = block.translation.execute(this, state, mem, block);
+                blockPos = count;
+                cycles += block.cycles[count] + taken(block.instructions[count - 1]);
+                
+                retired += count;
+                if (null != tracer) {
+                    tracer.block(retired, addr, state);
+                }
+                if (cycles >= scheduler.getNextEventCycle()) {
+                    handleEvents();
+                }
+                if (retired >= nextCheckpoint) {
+                    history.record();
+                }
+                return count;
+            }
         }
         
+        if (null != block) {
+            current = block.instructions[blockPos++];
+            fetchPos = 0;
+        }
+        DecodedInstruction decoded = current;
+        try {
+            if (Profiler.ENABLED && null != profiler) {
+                profiler.before(ram.getByte(addr), ram.getByte(addr + 1), state.getCS(), state.getIP());
+            }
+            
+            byte opcode = nextByte();
+            
+            if (null != tracer) {
+                tracer.instruction(retired + 1, opcode, state);
+            }
+            
+            if (null != current) {
+                current.handler.execute(opcode);
+            } else {
+                opcodeTable[opcode & 0xff].execute(opcode);
+            }
+            ++retired;
+            if (!InstructionFormat.isPrefix(opcode)) {
+                // a prefix applies to the next instruction only, whatever it is
+                repeat = false;
+                modRM.forcedSegIdx = -1;
+            }
+            
+            if (Profiler.ENABLED && null != profiler) {
+                profiler.after(state.getCS(), state.getIP());
+            }
+        } finally {
+            current = null;
+        }
+        if (null != decoded) {
+            cycles += decoded.cycles + taken(decoded);
+        } else {
+            int opcode = ram.getByte(addr) & 0xff;
+            cycles += Timing.cycles(opcode, ram.getByte(addr + 1) & 0xff);
+            if (Timing.taken(opcode) > 0 && linearIP() != ((addr + 2) & ADDRESS_MASK)) {
+                cycles += Timing.taken(opcode);
+            }
+        }
+        if (cycles >= scheduler.getNextEventCycle()) {
+            handleEvents();
+        }
+        if (retired >= nextCheckpoint) {
+            history.record();
+        }
+        return 1;
+    }
+    
+    /**
+     * Returns the extra cycles of a conditional branch or loop that was just
+     * executed and taken, 0 if it fell through or is something else. These
+     * are all two bytes long.
+     */
+    private int taken(DecodedInstruction instruction) {
+        int extra = Timing.taken(instruction.bytes[0] & 0xff);
+        if (extra > 0 && linearIP() != ((instruction.address + 2) & ADDRESS_MASK)) {
+            return extra;
+        }
+        return 0;
+    }
+    
+    private int linearIP() {
+        return ((state.getCS() << 4) + state.getIP()) & ADDRESS_MASK;
+    }
+    
+    /**
+     * Runs the device events that are due and takes a hardware interrupt if
+     * one is pending and IF is set.
+     */
+    private void handleEvents() {
+        scheduler.runEvents(cycles);
+        if (null == interrupts || !state.getInterruptFlag() || !interrupts.hasInterrupt()) {
+            return;
+        }
+        if (repeat || modRM.forcedSegIdx >= 0) {
+            // not between a prefix and its instruction
+            scheduler.wake();
+            return;
+        }
+        halted = false;
+        cycles += Timing.HARDWARE_INTERRUPT;
+        interrupt((byte) interrupts.acknowledge());
+    }
+    
+    /**
+     * Skips the cycles up to the next event while halted.
+     * 
+     * @return the skipped time in instructions, -1 if nothing can wake the
+     * CPU
+     */
+    private long idle() {
+        if (scheduler.getNextEventCycle() <= cycles) {
+            // woken outside of runEvents(), e.g. by restore() or an IRQ from the host
+            handleEvents();
+            if (!halted) {
+                return 1;
+            }
+        }
+        long next = scheduler.getNextEventCycle();
+        if (null == interrupts || !state.getInterruptFlag() || next == Long.MAX_VALUE) {
+            return -1;
+        }
+        long skipped = Math.max(0, next - cycles);
+        cycles += skipped;
+        handleEvents();
+        return Math.max(1, skipped / IDLE_CYCLES_PER_INSTRUCTION);
+    }
+    
+    /**
+     * Decodes instructions starting at the given linear address up to the
+     * first branch, page end or unimplemented opcode and caches them.
+     * Returns null if not even the first instruction could be decoded, the
+     * caller then falls back to fetching from memory.
+     */
+    private BasicBlock decodeBlock(int addr) {
+        DecodedInstruction[] instructions = new DecodedInstruction[MAX_BLOCK_LENGTH];
+        int count = 0;
+        int page = addr >> Memory.PAGE_SHIFT;
+        
+        while (count < MAX_BLOCK_LENGTH) {
+            byte opcode = ram.getByte(addr);
+            Instruction handler = opcodeTable[opcode & 0xff];
+            if (handler == invalidOpcode) {
+                break;
+            }
+            
+            int length = 1;
+            int modRM = 0;
+            int disp = 0;
+            int modRMLength = 0;
+            if (InstructionFormat.hasModRM(opcode)) {
+                if ((addr + 1) >> Memory.PAGE_SHIFT != page) {
+                    break;
+                }
+                modRM = ram.getByte(addr + 1) & 0xff;
+                
+                Instruction[] group = getGroupTable(opcode);
+                if (null != group && group[(modRM >> 3) & 0x07] == invalidRegIdx) {
+                    break;
+                }
+                modRMLength = 1 + ModRMTable.DISP_SIZE[modRM];
+                length += modRMLength;
+            }
+            length += InstructionFormat.immediateSize(opcode, (modRM >> 3) & 0x07);
+            
+            if ((addr + length - 1) >> Memory.PAGE_SHIFT != page) {
+                break;
+            }
+            if (modRMLength == 2) {
+                disp = ram.getByte(addr + 2);
+            } else if (modRMLength == 3) {
+                disp = ram.getWord(addr + 2);
+            }
+            
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; ++i) {
+                bytes[i] = ram.getByte(addr + i);
+            }
+            instructions[count++] = new DecodedInstruction(addr, handler, bytes, modRM, disp, modRMLength);
+            addr += length;
+            
+            // an interrupt may be taken right after STI, even when translated
+            if (InstructionFormat.isBranch(opcode) || opcode == (byte) 0xFB) {
+                break;
+            }
+        }
+        
+        if (count == 0) {
+            return null;
+        }
+        BasicBlock result = new BasicBlock(instructions[0].address, Arrays.copyOf(instructions, count));
+        blockCache.put(result);
+        return result;
+    }
+    
+    private Instruction[] getGroupTable(byte opcode) {
         switch (opcode) {
-            case (byte) 0x00: // ADD Eb Gb
+            case (byte) 0x80:
+                return grp1EbTable;
+            case (byte) 0x81:
+                return grp1EvTable;
+            case (byte) 0xD0:
+                return grp2EbTable;
+            case (byte) 0xD1:
+                return grp2EvTable;
+            case (byte) 0xF6:
+                return grp3aTable;
+            case (byte) 0xF7:
+                return grp3bTable;
+            case (byte) 0xFE:
+                return grp4Table;
+            case (byte) 0xFF:
+                return grp5Table;
+            default:
+                return null;
+        }
+    }
+    
+    private void initOpcodeTable() {
+        invalidOpcode = new Instruction() {
+            void execute(byte opcode) throws Exception {
+                throw new InvalidOpcodeException(opcode);
+            }
+        };
+        invalidRegIdx = new Instruction() {
+            void execute(byte opcode) {
+                throw new RuntimeException("Invalid regIdx: " + modRM.getRegIdx());
+            }
+        };
+        
+        Arrays.fill(opcodeTable, invalidOpcode);
+        Arrays.fill(grp1EbTable, invalidRegIdx);
+        Arrays.fill(grp1EvTable, invalidRegIdx);
+        Arrays.fill(grp2EbTable, invalidRegIdx);
+        Arrays.fill(grp2EvTable, invalidRegIdx);
+        Arrays.fill(grp3aTable, invalidRegIdx);
+        Arrays.fill(grp3bTable, invalidRegIdx);
+        Arrays.fill(grp4Table, invalidRegIdx);
+        Arrays.fill(grp5Table, invalidRegIdx);
+        
+        opcodeTable[0x00] = new Instruction() { // ADD Eb Gb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem8(add8(modRM.getMem8(), modRM.getReg8()));
-                break;
-            case (byte) 0x01: // ADD Ev Gv
+            }
+        };
+        opcodeTable[0x01] = new Instruction() { // ADD Ev Gv
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem16(add16(modRM.getMem16(), modRM.getReg16()));
-                break;
-            case (byte) 0x02: // ADD Gb Eb
+            }
+        };
+        opcodeTable[0x02] = new Instruction() { // ADD Gb Eb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setReg8(add8(modRM.getReg8(), modRM.getMem8()));
-                break;
-            case (byte) 0x03: // ADD Gv Ev
+            }
+        };
+        opcodeTable[0x03] = new Instruction() { // ADD Gv Ev
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setReg16(add16(modRM.getReg16(), modRM.getMem16()));
-                break;
-            case (byte) 0x04: // ADD AL Ib
+            }
+        };
+        opcodeTable[0x04] = new Instruction() { // ADD AL Ib
+            void execute(byte opcode) {
                 state.setAL(add8(state.getAL(), nextByte()));
-                break;
-            case (byte) 0x05: // ADD AX Iv
+            }
+        };
+        opcodeTable[0x05] = new Instruction() { // ADD AX Iv
+            void execute(byte opcode) {
                 state.setAX(add16(state.getAX(), nextWord()));
-                break;
-            case (byte) 0x06: // PUSH ES
+            }
+        };
+        opcodeTable[0x06] = new Instruction() { // PUSH ES
+            void execute(byte opcode) {
                 push(state.getES());
-                break;
-            case (byte) 0x07: // POP ES
+            }
+        };
+        opcodeTable[0x07] = new Instruction() { // POP ES
+            void execute(byte opcode) {
                 state.setES(pop());
-                break;
-            case (byte) 0x08: // OR Eb Gb
+            }
+        };
+        opcodeTable[0x08] = new Instruction() { // OR Eb Gb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem8(or8(modRM.getMem8(), modRM.getReg8()));
-                break;
-            case (byte) 0x09: // OR Ev Gv
+            }
+        };
+        opcodeTable[0x09] = new Instruction() { // OR Ev Gv
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem16(or16(modRM.getMem16(), modRM.getReg16()));
-                break;
-            case (byte) 0x0A: // OR Gb Eb
+            }
+        };
+        opcodeTable[0x0A] = new Instruction() { // OR Gb Eb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setReg8(or8(modRM.getReg8(), modRM.getMem8()));
-                break;
-            case (byte) 0x0B: // OR Gv Ev
+            }
+        };
+        opcodeTable[0x0B] = new Instruction() { // OR Gv Ev
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setReg16(or16(modRM.getReg16(), modRM.getMem16()));
-                break;
-            case (byte) 0x0C: // OR AL Ib
+            }
+        };
+        opcodeTable[0x0C] = new Instruction() { // OR AL Ib
+            void execute(byte opcode) {
                 state.setAL(or8(state.getAL(), nextByte()));
-                break;
-            case (byte) 0x0D: // OR AX Iv
+            }
+        };
+        opcodeTable[0x0D] = new Instruction() { // OR AX Iv
+            void execute(byte opcode) {
                 state.setAX(or16(state.getAX(), nextWord()));
-                break;
-            case (byte) 0x0E: // PUSH CS
+            }
+        };
+        opcodeTable[0x0E] = new Instruction() { // PUSH CS
+            void execute(byte opcode) {
                 push(state.getCS());
-                break;
-            case (byte) 0x0F: // Invalid
-                throw new InvalidOpcodeException(opcode);           
-            case (byte) 0x10: // ADC Eb Gb
+            }
+        };
+        opcodeTable[0x10] = new Instruction() { // ADC Eb Gb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem8(adc8(modRM.getMem8(), modRM.getReg8()));
-                break;
-            case (byte) 0x11: // ADC Ev Gv
+            }
+        };
+        opcodeTable[0x11] = new Instruction() { // ADC Ev Gv
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem16(adc16(modRM.getMem16(), modRM.getReg16()));
-                break;
-            case (byte) 0x12: // ADC Gb Eb
+            }
+        };
+        opcodeTable[0x12] = new Instruction() { // ADC Gb Eb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setReg8(adc8(modRM.getReg8(), modRM.getMem8()));
-                break;
-            case (byte) 0x13: // ADC Gv Ev
+            }
+        };
+        opcodeTable[0x13] = new Instruction() { // ADC Gv Ev
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setReg16(adc16(modRM.getReg16(), modRM.getMem16()));
-                break;
-            case (byte) 0x14: // ADC AL Ib
+            }
+        };
+        opcodeTable[0x14] = new Instruction() { // ADC AL Ib
+            void execute(byte opcode) {
                 state.setAL(adc8(state.getAL(), nextByte()));
-                break;
-            case (byte) 0x15: // ADC AX Iv
+            }
+        };
+        opcodeTable[0x15] = new Instruction() { // ADC AX Iv
+            void execute(byte opcode) {
                 state.setAX(adc16(state.getAX(), nextWord()));
-                break;
-            case (byte) 0x16: // PUSH SS
+            }
+        };
+        opcodeTable[0x16] = new Instruction() { // PUSH SS
+            void execute(byte opcode) {
                 push(state.getSS());
-                break;
-            case (byte) 0x17: // POP SS
+            }
+        };
+        opcodeTable[0x17] = new Instruction() { // POP SS
+            void execute(byte opcode) {
                 state.setSS(pop());
-                break;
-            case (byte) 0x1E: // PUSH DS
+            }
+        };
+        opcodeTable[0x1E] = new Instruction() { // PUSH DS
+            void execute(byte opcode) {
                 push(state.getDS());
-                break;
-            case (byte) 0x1F: // POP DS
+            }
+        };
+        opcodeTable[0x1F] = new Instruction() { // POP DS
+            void execute(byte opcode) {
                 state.setDS(pop());
-                break;
-            case (byte) 0x20: // AND Eb Gb
+            }
+        };
+        opcodeTable[0x20] = new Instruction() { // AND Eb Gb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem8(and8(modRM.getMem8(), modRM.getReg8()));
-                break;
-            case (byte) 0x21: // AND Ev Gv
+            }
+        };
+        opcodeTable[0x21] = new Instruction() { // AND Ev Gv
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem16(and16(modRM.getMem16(), modRM.getReg16()));
-                break;
-            case (byte) 0x22: // AND Gb Eb
+            }
+        };
+        opcodeTable[0x22] = new Instruction() { // AND Gb Eb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setReg8(and8(modRM.getReg8(), modRM.getMem8()));
-                break;
-            case (byte) 0x23: // AND Gv Ev
+            }
+        };
+        opcodeTable[0x23] = new Instruction() { // AND Gv Ev
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setReg16(and16(modRM.getReg16(), modRM.getMem16()));
-                break;
-            case (byte) 0x24: // AND AL Ib
+            }
+        };
+        opcodeTable[0x24] = new Instruction() { // AND AL Ib
+            void execute(byte opcode) {
                 state.setAL(and8(state.getAL(), nextByte()));
-                break;
-            case (byte) 0x25: // AND AX Iv
+            }
+        };
+        opcodeTable[0x25] = new Instruction() { // AND AX Iv
+            void execute(byte opcode) {
                 state.setAX(and16(state.getAX(), nextWord()));
-                break;
-            case (byte) 0x26: // ES:
+            }
+        };
+        opcodeTable[0x26] = new Instruction() { // ES:
+            void execute(byte opcode) {
                 modRM.forceSeg(State.ES_INDEX);
-                break;
-            case (byte) 0x2E: // CS:
+            }
+        };
+        opcodeTable[0x2E] = new Instruction() { // CS:
+            void execute(byte opcode) {
                 modRM.forceSeg(State.CS_INDEX);
-                break;
-            case (byte) 0x30: // XOR Eb Gb
+            }
+        };
+        opcodeTable[0x30] = new Instruction() { // XOR Eb Gb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem8(xor8(modRM.getMem8(), modRM.getReg8()));
-                break;
-            case (byte) 0x31: // XOR Ev Gv
+            }
+        };
+        opcodeTable[0x31] = new Instruction() { // XOR Ev Gv
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem16(xor16(modRM.getMem16(), modRM.getReg16()));
-                break;
-            case (byte) 0x38: // CMP Eb Gb
+            }
+        };
+        opcodeTable[0x38] = new Instruction() { // CMP Eb Gb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 sub8(modRM.getMem8(), modRM.getReg8());
-                break;
-            case (byte) 0x39: // CMP Ev Gv
+            }
+        };
+        opcodeTable[0x39] = new Instruction() { // CMP Ev Gv
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 sub16(modRM.getMem16(), modRM.getReg16());
-                break;
-            case (byte) 0x3A: // CMP Gb Eb
+            }
+        };
+        opcodeTable[0x3A] = new Instruction() { // CMP Gb Eb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 sub8(modRM.getReg8(), modRM.getMem8());
-                break;
-            case (byte) 0x3B: // CMP Gv Ev
+            }
+        };
+        opcodeTable[0x3B] = new Instruction() { // CMP Gv Ev
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 sub16(modRM.getReg16(), modRM.getMem16());
-                break;
-            case (byte) 0x3C: // CMP AL Ib
+            }
+        };
+        opcodeTable[0x3C] = new Instruction() { // CMP AL Ib
+            void execute(byte opcode) {
                 sub8(state.getAL(), nextByte());
-                break;
-            case (byte) 0x3D: // CMP AX Iv
+            }
+        };
+        opcodeTable[0x3D] = new Instruction() { // CMP AX Iv
+            void execute(byte opcode) {
                 sub16(state.getAX(), nextWord());
-                break;
-            case (byte) 0x3E: // DS:
+            }
+        };
+        opcodeTable[0x3E] = new Instruction() { // DS:
+            void execute(byte opcode) {
                 modRM.forceSeg(State.DS_INDEX);
-                break;
-            case (byte) 0x40: // INC AX
-            case (byte) 0x41: // INC CX
-            case (byte) 0x42: // INC DX
-            case (byte) 0x43: // INC BX
-            case (byte) 0x44: // INC SP
-            case (byte) 0x45: // INC BP
-            case (byte) 0x46: // INC SI
-            case (byte) 0x47: // INC DI
+            }
+        };
+        
+        Instruction incReg = new Instruction() {
+            void execute(byte opcode) {
                 state.setReg(opcode & 0x07, inc16(state.getReg(opcode & 0x07)));
-                break;
-            case (byte) 0x48: // DEC AX
-            case (byte) 0x49: // DEC CX
-            case (byte) 0x4A: // DEC DX
-            case (byte) 0x4B: // DEC BX
-            case (byte) 0x4C: // DEC SP
-            case (byte) 0x4D: // DEC BP
-            case (byte) 0x4E: // DEC SI
-            case (byte) 0x4F: // DEC DI
+            }
+        };
+        Instruction decReg = new Instruction() {
+            void execute(byte opcode) {
                 state.setReg(opcode & 0x07, dec16(state.getReg(opcode & 0x07)));
-                break;
-            case (byte) 0x50: // PUSH AX
-            case (byte) 0x51: // PUSH CX
-            case (byte) 0x52: // PUSH DX
-            case (byte) 0x53: // PUSH BX
-            case (byte) 0x54: // PUSH SP
-            case (byte) 0x55: // PUSH BP
-            case (byte) 0x56: // PUSH SI
-            case (byte) 0x57: // PUSH DI
+            }
+        };
+        Instruction pushReg = new Instruction() {
+            void execute(byte opcode) {
                 push(state.getReg(opcode & 0x07));
-                break;
-            case (byte) 0x58: // POP AX
-            case (byte) 0x59: // POP CD
-            case (byte) 0x5A: // POP DX
-            case (byte) 0x5B: // POP BX
-            case (byte) 0x5C: // POP SP
-            case (byte) 0x5D: // POP BP
-            case (byte) 0x5E: // POP SI
-            case (byte) 0x5F: // POP DI
+            }
+        };
+        Instruction popReg = new Instruction() {
+            void execute(byte opcode) {
                 state.setReg(opcode & 0x07, pop());
-                break;
-            case (byte) 0x72: // JB Jb
-                if (state.getCarryFlag()) {
-                    state.setIP(state.getIP() + nextByte() + 1);
-                } else {
-                    nextByte();
-                }
-                break;
-            case (byte) 0x73: // JNB Jb
-                if (!state.getCarryFlag()) {
-                    state.setIP(state.getIP() + nextByte() + 1);
-                } else {
-                    nextByte();
-                }
-                break;
-            case (byte) 0x74: // JZ Jb
-                if (state.getZeroFlag()) {
-                    state.setIP(state.getIP() + nextByte() + 1);
-                } else {
-                    nextByte();
-                }
-                break;
-            case (byte) 0x75: // JNZ Jb
-                if (!state.getZeroFlag()) {
-                    state.setIP(state.getIP() + nextByte() + 1);
-                } else {
-                    nextByte();
-                }
-                break;
-            case (byte) 0x76: // JBE Jb
-                if (state.getCarryFlag() || state.getZeroFlag()) {
-                    state.setIP(state.getIP() + nextByte() + 1);
-                } else {
-                    nextByte();
-                }
-                break;
-            case (byte) 0x77: // JA Jb
-                if (!state.getCarryFlag() && !state.getZeroFlag()) {
-                    state.setIP(state.getIP() + nextByte() + 1);
-                } else {
-                    nextByte();
-                }
-                break;
-            case (byte) 0x80: // GRP1 Eb Ib
+            }
+        };
+        Instruction movReg8Ib = new Instruction() {
+            void execute(byte opcode) {
+                state.setReg8(opcode & 0x07, nextByte());
+            }
+        };
+        Instruction movRegIv = new Instruction() {
+            void execute(byte opcode) {
+                state.setReg(opcode & 0x07, nextWord());
+            }
+        };
+        for (int i = 0; i < 8; ++i) {
+            opcodeTable[0x40 + i] = incReg; // INC AX..DI
+            opcodeTable[0x48 + i] = decReg; // DEC AX..DI
+            opcodeTable[0x50 + i] = pushReg; // PUSH AX..DI
+            opcodeTable[0x58 + i] = popReg; // POP AX..DI
+            opcodeTable[0xB0 + i] = movReg8Ib; // MOV AL..BH Ib
+            opcodeTable[0xB8 + i] = movRegIv; // MOV AX..DI Iv
+        }
+        
+        opcodeTable[0x72] = new Instruction() { // JB Jb
+            void execute(byte opcode) {
+                jumpShort(state.getCarryFlag());
+            }
+        };
+        opcodeTable[0x73] = new Instruction() { // JNB Jb
+            void execute(byte opcode) {
+                jumpShort(!state.getCarryFlag());
+            }
+        };
+        opcodeTable[0x74] = new Instruction() { // JZ Jb
+            void execute(byte opcode) {
+                jumpShort(state.getZeroFlag());
+            }
+        };
+        opcodeTable[0x75] = new Instruction() { // JNZ Jb
+            void execute(byte opcode) {
+                jumpShort(!state.getZeroFlag());
+            }
+        };
+        opcodeTable[0x76] = new Instruction() { // JBE Jb
+            void execute(byte opcode) {
+                jumpShort(state.getCarryFlag() || state.getZeroFlag());
+            }
+        };
+        opcodeTable[0x77] = new Instruction() { // JA Jb
+            void execute(byte opcode) {
+                jumpShort(!state.getCarryFlag() && !state.getZeroFlag());
+            }
+        };
+        
+        opcodeTable[0x80] = new Instruction() { // GRP1 Eb Ib
+            void execute(byte opcode) throws Exception {
                 modRM.read();
-                switch (modRM.getRegIdx()) {
-                    case 2:
-                        modRM.setMem8(adc8(modRM.getMem8(), nextByte()));
-                        break;
-                    case 4: // AND
-                        modRM.setMem8(and8(modRM.getMem8(), nextByte()));
-                        break;
-                    case 7: // CMP
-                        sub8(modRM.getMem8(), nextByte());
-                        break;
-                    default:
-                        throw new RuntimeException("Invalid regIdx: " + modRM.getRegIdx());
-                }
-                break;
-            case (byte) 0x81: // GRP1 Ev Iv
+                grp1EbTable[modRM.getRegIdx()].execute(opcode);
+            }
+        };
+        grp1EbTable[2] = new Instruction() { // ADC
+            void execute(byte opcode) {
+                modRM.setMem8(adc8(modRM.getMem8(), nextByte()));
+            }
+        };
+        grp1EbTable[4] = new Instruction() { // AND
+            void execute(byte opcode) {
+                modRM.setMem8(and8(modRM.getMem8(), nextByte()));
+            }
+        };
+        grp1EbTable[7] = new Instruction() { // CMP
+            void execute(byte opcode) {
+                sub8(modRM.getMem8(), nextByte());
+            }
+        };
+        
+        opcodeTable[0x81] = new Instruction() { // GRP1 Ev Iv
+            void execute(byte opcode) throws Exception {
                 modRM.read();
-                switch (modRM.getRegIdx()) {
-                    case 0: // ADD
-                        modRM.setMem16(add16(modRM.getMem16(), nextWord()));
-                        break;
-//                  case 1:
-//                  case 2:
-//                  case 3:
-                    case 4: // AND
-                        modRM.setMem16(and16(modRM.getMem16(), nextWord()));
-                        break;
-//                  case 5:
-//                  case 6:
-                    case 7: //CMP
-                        sub16(modRM.getMem16(), nextWord());
-                        break;
-                    default:
-                        throw new RuntimeException("Invalid regIdx: " + modRM.getRegIdx());
-                }
-                break;
-            case (byte) 0x88: //MOV Eb Gb
+                grp1EvTable[modRM.getRegIdx()].execute(opcode);
+            }
+        };
+        grp1EvTable[0] = new Instruction() { // ADD
+            void execute(byte opcode) {
+                modRM.setMem16(add16(modRM.getMem16(), nextWord()));
+            }
+        };
+        grp1EvTable[4] = new Instruction() { // AND
+            void execute(byte opcode) {
+                modRM.setMem16(and16(modRM.getMem16(), nextWord()));
+            }
+        };
+        grp1EvTable[7] = new Instruction() { // CMP
+            void execute(byte opcode) {
+                sub16(modRM.getMem16(), nextWord());
+            }
+        };
+        
+        opcodeTable[0x88] = new Instruction() { // MOV Eb Gb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem8(modRM.getReg8());
-                break;
-            case (byte) 0x89: // MOV Ev Gv
+            }
+        };
+        opcodeTable[0x89] = new Instruction() { // MOV Ev Gv
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem16((short) modRM.getReg16());
-                break;
-            case (byte) 0x8A: // MOV Gb, Eb
+            }
+        };
+        opcodeTable[0x8A] = new Instruction() { // MOV Gb Eb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setReg8(modRM.getMem8());
-                break;
-            case (byte) 0x8B: // MOV Gv Ev
+            }
+        };
+        opcodeTable[0x8B] = new Instruction() { // MOV Gv Ev
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setReg16(modRM.getMem16());
-                break;
-            case (byte) 0x8C: // MOV Ew Sw
+            }
+        };
+        opcodeTable[0x8C] = new Instruction() { // MOV Ew Sw
+            void execute(byte opcode) throws Exception {
                 modRM.read();
-                modRM.setMem16((short)modRM.getSreg());
-                break;
-            case (byte) 0x8E: // MOV Sw Ew
+                modRM.setMem16((short) modRM.getSreg());
+            }
+        };
+        opcodeTable[0x8E] = new Instruction() { // MOV Sw Ew
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setSreg(modRM.getMem16());
-                break;
-            case (byte) 0xA0: // MOV AL Ob
+            }
+        };
+        opcodeTable[0xA0] = new Instruction() { // MOV AL Ob
+            void execute(byte opcode) {
                 state.setAL(mem.getByte((state.getDS() << 4) + (nextWord() & 0xffff)));
-                break;
-            case (byte) 0xA1: // MOV AX Ov
+            }
+        };
+        opcodeTable[0xA1] = new Instruction() { // MOV AX Ov
+            void execute(byte opcode) {
                 state.setAX(mem.getWord((state.getDS() << 4) + (nextWord() & 0xffff)));
-                break;
-            case (byte) 0xA2: // MOV Ob AL
+            }
+        };
+        opcodeTable[0xA2] = new Instruction() { // MOV Ob AL
+            void execute(byte opcode) {
                 mem.setByte((state.getDS() << 4) + (nextWord() & 0xffff), state.getAL());
-                break;
-            case (byte) 0xA3: // MOV Ov AX
+            }
+        };
+        opcodeTable[0xA3] = new Instruction() { // MOV Ov AX
+            void execute(byte opcode) {
                 mem.setWord((state.getDS() << 4) + (nextWord() & 0xffff), (short) state.getAX());
-                break;
-            case (byte) 0xAA: // STOSB
-            case (byte) 0xAB: // STOSW
-            case (byte) 0xAC: // LODSB
-            case (byte) 0xAD: // LODSW
-            case (byte) 0xAE: // SCASB
-            case (byte) 0xAF: // SCASW
+            }
+        };
+        
+        Instruction string = new Instruction() {
+            void execute(byte opcode) throws Exception {
                 processString(opcode);
-                break;
-            case (byte) 0xB0: // MOV AL Ib
-            case (byte) 0xB1: // MOV CL Ib
-            case (byte) 0xB2: // MOV DL Ib
-            case (byte) 0xB3: // MOV BL Ib
-            case (byte) 0xB4: // MOV AH Ib
-            case (byte) 0xB5: // MOV CH Ib
-            case (byte) 0xB6: // MOV DH Ib
-            case (byte) 0xB7: // MOV BH Ib
-                state.setReg8(opcode & 0x07, nextByte());
-                break;
-            case (byte) 0xB8: // MOV AX Iv
-            case (byte) 0xB9: // MOV CX Iv
-            case (byte) 0xBA: // MOV DX Iv
-            case (byte) 0xBB: // MOV BX Iv
-            case (byte) 0xBC: // MOV SP Iv
-            case (byte) 0xBD: // MOV BP Iv
-            case (byte) 0xBE: // MOV SI Iv
-            case (byte) 0xBF: // MOV DI Iv
-                state.setReg(opcode & 0x07, nextWord());
-                break;
-            case (byte) 0xC3: // RET
+            }
+        };
+        opcodeTable[0xA4] = string; // MOVSB
+        opcodeTable[0xA5] = string; // MOVSW
+        for (int i = 0xAA; i <= 0xAF; ++i) {
+            opcodeTable[i] = string; // STOSB, STOSW, LODSB, LODSW, SCASB, SCASW
+        }
+        
+        opcodeTable[0xC3] = new Instruction() { // RET
+            void execute(byte opcode) {
                 state.setIP(pop());
-                break;
-            case (byte) 0xC4: // LES Gv Mp
+            }
+        };
+        opcodeTable[0xC4] = new Instruction() { // LES Gv Mp
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setReg16(mem.getWord(modRM.getAddress()));
                 state.setES(mem.getWord(modRM.getAddress() + 2));
-                break;
-            case (byte) 0xC6: // MOV Eb Ib
+            }
+        };
+        opcodeTable[0xC6] = new Instruction() { // MOV Eb Ib
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem8(nextByte());
-                break;
-            case (byte) 0xC7: // MOV Ev Iv
+            }
+        };
+        opcodeTable[0xC7] = new Instruction() { // MOV Ev Iv
+            void execute(byte opcode) throws Exception {
                 modRM.read();
                 modRM.setMem16(nextWord());
-                break;
-            case (byte) 0xCD: // INT Ib
+            }
+        };
+        opcodeTable[0xCD] = new Instruction() { // INT Ib
+            void execute(byte opcode) {
                 interrupt(nextByte());
-                break;
-            case (byte) 0xCF: // IRET
+            }
+        };
+        opcodeTable[0xCF] = new Instruction() { // IRET
+            void execute(byte opcode) {
                 state.setIP(pop());
                 state.setCS(pop());
                 state.setFlags(pop());
-                break;
-            case (byte) 0xE4: // IN AL Ib
-                state.setAL(inb(nextByte()));
-                break;
-            case (byte) 0xE6: // OUT Ib AL
-                outb(nextByte(), state.getAL());
-                break;
-            case (byte) 0xEE: // OUT DX AL
-                outb((short) state.getDX(), state.getAL());
-                break;
-            case (byte) 0xE8: // CALL Jv
+                scheduler.wake();
+            }
+        };
+        
+        opcodeTable[0xD0] = new Instruction() { // GRP2 Eb 1
+            void execute(byte opcode) throws Exception {
+                modRM.read();
+                grp2EbTable[modRM.getRegIdx()].execute(opcode);
+            }
+        };
+        grp2EbTable[2] = new Instruction() { // RCL
+            void execute(byte opcode) {
+                modRM.setMem8(rcl8(modRM.getMem8(), 1));
+            }
+        };
+        grp2EbTable[4] = new Instruction() { // SHL
+            void execute(byte opcode) {
+                modRM.setMem8(shl8(modRM.getMem8(), 1));
+            }
+        };
+        
+        opcodeTable[0xD1] = new Instruction() { // GRP2 Ev 1
+            void execute(byte opcode) throws Exception {
+                modRM.read();
+                grp2EvTable[modRM.getRegIdx()].execute(opcode);
+            }
+        };
+        grp2EvTable[4] = new Instruction() { // SHL
+            void execute(byte opcode) {
+                modRM.setMem16(shl16(modRM.getMem16(), 1));
+            }
+        };
+        
+        opcodeTable[0xE4] = new Instruction() { // IN AL Ib
+            void execute(byte opcode) {
+                state.setAL((byte) io.inb(nextByte() & 0xff));
+            }
+        };
+        opcodeTable[0xE5] = new Instruction() { // IN AX Ib
+            void execute(byte opcode) {
+                state.setAX(io.inw(nextByte() & 0xff));
+            }
+        };
+        opcodeTable[0xE6] = new Instruction() { // OUT Ib AL
+            void execute(byte opcode) {
+                io.outb(nextByte() & 0xff, state.getAL());
+            }
+        };
+        opcodeTable[0xE7] = new Instruction() { // OUT Ib AX
+            void execute(byte opcode) {
+                io.outw(nextByte() & 0xff, state.getAX());
+            }
+        };
+        opcodeTable[0xE8] = new Instruction() { // CALL Jv
+            void execute(byte opcode) {
                 push(state.getIP() + 2);
                 state.setIP(state.getIP() + nextWord() + 2);
-                break;
-            case (byte) 0xE9: // JMP Jv
+            }
+        };
+        opcodeTable[0xE9] = new Instruction() { // JMP Jv
+            void execute(byte opcode) {
                 state.setIP(state.getIP() + nextWord() + 2);
-                break;
-            case (byte) 0xEA: // JMP Ap (far)
+            }
+        };
+        opcodeTable[0xEA] = new Instruction() { // JMP Ap (far)
+            void execute(byte opcode) {
                 opJmpAp();
-                break;
-            case (byte) 0xEB: // JMP Jb
+            }
+        };
+        opcodeTable[0xEB] = new Instruction() { // JMP Jb
+            void execute(byte opcode) {
                 state.setIP(state.getIP() + nextByte() + 1);
-                break;
-            case (byte) 0xD0: // GRP2 Eb 1
+            }
+        };
+        opcodeTable[0xEC] = new Instruction() { // IN AL DX
+            void execute(byte opcode) {
+                state.setAL((byte) io.inb(state.getDX()));
+            }
+        };
+        opcodeTable[0xED] = new Instruction() { // IN AX DX
+            void execute(byte opcode) {
+                state.setAX(io.inw(state.getDX()));
+            }
+        };
+        opcodeTable[0xEE] = new Instruction() { // OUT DX AL
+            void execute(byte opcode) {
+                io.outb(state.getDX(), state.getAL());
+            }
+        };
+        opcodeTable[0xEF] = new Instruction() { // OUT DX AX
+            void execute(byte opcode) {
+                io.outw(state.getDX(), state.getAX());
+            }
+        };
+        
+        Instruction rep = new Instruction() {
+            void execute(byte opcode) {
+                repeat = true;
+            }
+        };
+        opcodeTable[0xF2] = rep; // REPNZ
+        opcodeTable[0xF3] = rep; // REPZ
+        
+        opcodeTable[0xF4] = new Instruction() { // HLT
+            void execute(byte opcode) {
+                halted = true;
+            }
+        };
+        
+        opcodeTable[0xF6] = new Instruction() { // GRP3a Eb
+            void execute(byte opcode) throws Exception {
                 modRM.read();
-                switch (modRM.getRegIdx()) {
-                    case 2: // RCL
-                        modRM.setMem8(rcl8(modRM.getMem8(), 1));
-                        break;
-                    case 4: // SHL
-                        modRM.setMem8(shl8(modRM.getMem8(), 1));
-                        break;
-                    default:
-                        throw new RuntimeException("Invalid regIdx: " + modRM.getRegIdx());
-                }
-                break;
-            case (byte) 0xD1: // GRP2 Ev 1
+                grp3aTable[modRM.getRegIdx()].execute(opcode);
+            }
+        };
+        grp3aTable[0] = new Instruction() { // TEST
+            void execute(byte opcode) {
+                and8(modRM.getMem8(), nextByte());
+            }
+        };
+        grp3aTable[4] = new Instruction() { // MUL
+            void execute(byte opcode) {
+                mul8(state.getAL(), modRM.getMem8());
+            }
+        };
+        
+        opcodeTable[0xF7] = new Instruction() { // GRP3b Ev
+            void execute(byte opcode) throws Exception {
                 modRM.read();
-                switch (modRM.getRegIdx()) {
-                    case 4: // SHL
-                        modRM.setMem16(shl16(modRM.getMem16(), 1));
-                        break;
-                    default:
-                        throw new RuntimeException("Invalid regIdx: " + modRM.getRegIdx());
-                }
-                break;
-            case (byte) 0xF3: // REPZ
-                jump = state.getIP() - 1;
-                break;
-            case (byte) 0xF6: // GRP3a Eb
+                grp3bTable[modRM.getRegIdx()].execute(opcode);
+            }
+        };
+        grp3bTable[4] = new Instruction() { // MUL
+            void execute(byte opcode) {
+                mul16(state.getAX(), modRM.getMem16());
+            }
+        };
+        
+        opcodeTable[0xFA] = new Instruction() { // CLI
+            void execute(byte opcode) {
+                setInterruptFlag(false);
+            }
+        };
+        opcodeTable[0xFB] = new Instruction() { // STI
+            void execute(byte opcode) {
+                setInterruptFlag(true);
+            }
+        };
+        opcodeTable[0xFC] = new Instruction() { // CLD
+            void execute(byte opcode) {
+                state.setDirectionFlag(false);
+            }
+        };
+        opcodeTable[0xFD] = new Instruction() { // STD
+            void execute(byte opcode) {
+                state.setDirectionFlag(true);
+            }
+        };
+        
+        opcodeTable[0xFE] = new Instruction() { // GRP4 Eb
+            void execute(byte opcode) throws Exception {
+                modRM.read();
+                grp4Table[modRM.getRegIdx()].execute(opcode);
+            }
+        };
+        grp4Table[0] = new Instruction() { // INC
+            void execute(byte opcode) {
+                modRM.setMem8(inc8(modRM.getMem8()));
+            }
+        };
+        grp4Table[1] = new Instruction() { // DEC
+            void execute(byte opcode) {
+                modRM.setMem8(dec8(modRM.getMem8()));
+            }
+        };
+        
+        opcodeTable[0xFF] = new Instruction() { // GRP5 Ev
+            void execute(byte opcode) throws Exception {
                 modRM.read();
-                switch (modRM.getRegIdx()) {
-                    case 0: // TEST
-                        and8(modRM.getMem8(), nextByte());
+                grp5Table[modRM.getRegIdx()].execute(opcode);
+            }
+        };
+        grp5Table[4] = new Instruction() { // JMP
+            void execute(byte opcode) {
+                state.setIP(modRM.getMem16());
+            }
+        };
+        grp5Table[6] = new Instruction() { // PUSH
+            void execute(byte opcode) {
+                push(modRM.getMem16());
+            }
+        };
+    }
+    
+    private void jumpShort(boolean condition) {
+        byte offset = nextByte();
+        if (condition) {
+            state.setIP(state.getIP() + offset);
+        }
+    }
+    
+    private static final int MOVS = 0xA4;
+    private static final int STOS = 0xAA;
+    private static final int LODS = 0xAC;
+    
+    /**
+     * MOVS, STOS and LODS. With a REP prefix all CX iterations run at once
+     * as bulk operations on memory, split where SI or DI wraps around.
+     * While watchpoints are set, the memory accessed is exactly that of the
+     * single iterations.
+     */
+    private void processString(byte opcode) throws InvalidOpcodeException {
+        int op = opcode & 0xfe;
+        boolean rep = repeat;
+        repeat = false;
+        if (op != MOVS && op != STOS && op != LODS) {
+            throw new InvalidOpcodeException(opcode);
+        }
+        
+        int size = 1 + (opcode & 1);
+        boolean down = state.getDirectionFlag();
+        // DS:SI may be overridden, ES:DI may not
+        int srcBase = modRM.getAddr(State.DS_INDEX, 0);
+        int dstBase = state.getES() << 4;
+        
+        int count = 1;
+        if (rep) {
+            count = state.getCX();
+            state.setCX(0);
+            cycles += Timing.repeated(opcode & 0xff, count);
+        }
+        int si = state.getSI();
+        int di = state.getDI();
+        while (count > 0) {
+            int n = count;
+            if (op != STOS) {
+                n = Math.min(n, elementsBeforeWrap(si, size, down));
+            }
+            if (op != LODS) {
+                n = Math.min(n, elementsBeforeWrap(di, size, down));
+            }
+            if (n == 0) {
+                // a word at offset FFFF
+                n = 1;
+                stringElement(op, size, srcBase, si, dstBase, di);
+            } else {
+                int length = n * size;
+                int srcStart = srcBase + (down ? si - length + size : si);
+                int dstStart = dstBase + (down ? di - length + size : di);
+                switch (op) {
+                    case MOVS:
+                        if (down ? dstStart < srcStart && dstStart + length > srcStart
+                                : dstStart > srcStart && dstStart < srcStart + length) {
+                            // overlaps so that it repeats the source, go one by one
+                            for (int i = 0; i < n; ++i) {
+                                int step = down ? -i * size : i * size;
+                                stringElement(op, size, srcBase, si + step, dstBase, di + step);
+                            }
+                        } else {
+                            mem.copy(srcStart, dstStart, length);
+                        }
                         break;
-                    case 4: // MUL
-                        mul8(state.getAL(), modRM.getMem8());
+                    case STOS:
+                        if (size == 1) {
+                            mem.fill(dstStart, length, state.getAL());
+                        } else {
+                            fillWord(dstStart, n, (short) state.getAX());
+                        }
                         break;
-                    default:
-                        throw new RuntimeException("Invalid regIdx: " + modRM.getRegIdx());
-                }
-                break;
-            case (byte) 0xF7: // GRP3b Ev
-                modRM.read();
-                switch (modRM.getRegIdx()) {
-                    case 4: // MUL
-                        mul16(state.getAX(), modRM.getMem16());
+                    case LODS:
+                        if (null != watched) {
+                            // watchpoints see every element read, not just the last
+                            for (int i = 0; i < n; ++i) {
+                                stringElement(op, size, srcBase, down ? si - i * size : si + i * size, 0, 0);
+                            }
+                        } else {
+                            stringElement(op, size, srcBase, down ? si - length + size : si + length - size, 0, 0);
+                        }
                         break;
-                    default: 
-                        throw new RuntimeException("Invalid regIdx: " + modRM.getRegIdx());
+                }
+            }
+            int diff = (down ? -n : n) * size;
+            if (op != STOS) {
+                si = (si + diff) & 0xffff;
+            }
+            if (op != LODS) {
+                di = (di + diff) & 0xffff;
+            }
+            count -= n;
+        }
+        state.setSI(si);
+        state.setDI(di);
+    }
+    
+    /**
+     * Returns how many elements fit between offs and the end (or start) of
+     * the segment, 0 if the first one does not fit.
+     */
+    private static int elementsBeforeWrap(int offs, int size, boolean down) {
+        if (down) {
+            return offs + size - 1 > 0xffff ? 0 : offs / size + 1;
+        }
+        return (0x10000 - offs) / size;
+    }
+    
+    /**
+     * Executes one iteration of a string instruction, offsets wrap around
+     * within the segment.
+     */
+    private void stringElement(int op, int size, int srcBase, int si, int dstBase, int di) {
+        si &= 0xffff;
+        di &= 0xffff;
+        switch (op) {
+            case MOVS:
+                mem.setByte(dstBase + di, mem.getByte(srcBase + si));
+                if (size == 2) {
+                    mem.setByte(dstBase + ((di + 1) & 0xffff), mem.getByte(srcBase + ((si + 1) & 0xffff)));
                 }
                 break;
-            case (byte) 0xFA: // CLI
-                state.setInterruptFlag(false);
-                break;
-            case (byte) 0xFB: // STI
-                state.setInterruptFlag(true);
-                break;
-            case (byte) 0xFC: // CLD
-                state.setDirectionFlag(false);
-                break;
-            case (byte) 0xFD: // STD
-                state.setDirectionFlag(true);
-                break;
-            case (byte) 0xFE: // GRP4 Eb
-                modRM.read();
-                switch (modRM.getRegIdx()) {
-                    case 0: // INC
-                        modRM.setMem8(inc8(modRM.getMem8()));
-                        break;
-                    case 1: // DEC
-                        modRM.setMem8(dec8(modRM.getMem8()));
-                        break;
-                    default: 
-                        throw new RuntimeException("Invalid regIdx: " + modRM.getRegIdx());
+            case STOS:
+                mem.setByte(dstBase + di, state.getAL());
+                if (size == 2) {
+                    mem.setByte(dstBase + ((di + 1) & 0xffff), (byte) (state.getAX() >> 8));
                 }
                 break;
-            case (byte) 0xFF: // GRP5 Ev
-                modRM.read();
-                switch (modRM.getRegIdx()) {
-                    case 4: // JMP 
-                        state.setIP(modRM.getMem16());
-                        break;
-                    case 6: // PUSH
-                        push(modRM.getMem16()); 
-                        break;
-                    default:
-                        throw new RuntimeException("Invalid regIdx: " + modRM.getRegIdx());
+            case LODS:
+                if (size == 1) {
+                    state.setAL(mem.getByte(srcBase + si));
+                } else {
+                    state.setAX((mem.getByte(srcBase + si) & 0xff)
+                            | (mem.getByte(srcBase + ((si + 1) & 0xffff)) << 8));
                 }
                 break;
-            default:
-                //System.out.print(sreg[regSS] + " " + reg[regSP]);
-                throw new InvalidOpcodeException(opcode);
         }
     }
     
-    private void processString(byte opcode) throws InvalidOpcodeException {
-        
-        int diff = (state.getDirectionFlag() ? -1 : 1) << (opcode & 1);
-        
-        switch (opcode) {
-            case (byte) 0xAB: // STOSW
-                mem.setWord((state.getES() << 4) + state.getDI(), (short) state.getAX());
-                state.setDI(state.getDI() + diff);
-                break;
-            case (byte) 0xAC: // LODSB
-                state.setAL(mem.getByte(modRM.getAddr(state.getDS(), state.getSI())));
-                state.setSI(state.getSI() + diff);
-                break;
-            default:
-                throw new InvalidOpcodeException(opcode);
+    /**
+     * Stores count copies of a word: the first one directly, the rest by
+     * doubling the filled part.
+     */
+    private void fillWord(int addr, int count, short value) {
+        int length = count * 2;
+        if ((byte) value == (byte) (value >> 8)) {
+            mem.fill(addr, length, (byte) value);
+            return;
         }
-        
-        if (jump > 0) {
-            state.setCX(state.getCX() - 1);
-            if (state.getCX() > 0) {
-                state.setIP(jump);
+        // copying would read back ROM contents, or be a read to watchpoints
+        boolean plain = null != watched;
+        for (int a = addr; !plain && a < addr + length + Memory.ROM_BLOCK_SIZE; a += Memory.ROM_BLOCK_SIZE) {
+            plain = mem.isReadOnly(Math.min(a, addr + length - 1));
+        }
+        if (plain) {
+            for (int i = 0; i < length; i += 2) {
+                mem.setWord(addr + i, value);
             }
-            jump = -1;
+            return;
+        }
+        mem.setWord(addr, value);
+        for (int done = 2; done < length; done *= 2) {
+            mem.copy(addr, addr + done, Math.min(done, length - done));
         }
     }
-
+    
+    // flags defined by each group of operations, the rest keep their value
+    // (the two-operand helpers are package-private for the benchmarks)
+    private static final int RESULT_FLAGS = State.CARRY_FLAG_MASK | State.ZERO_FLAG_MASK
+            | State.PARITY_FLAG_MASK | State.SIGN_FLAG_MASK;
+    private static final int ADD8_FLAGS = RESULT_FLAGS | State.AUXILIARY_FLAG_MASK;
+    private static final int ALU_FLAGS = ADD8_FLAGS | State.OVERFLOW_FLAG_MASK;
+    private static final int AND_FLAGS = RESULT_FLAGS | State.OVERFLOW_FLAG_MASK;
+    
     private byte add8(byte v1, byte v2, boolean useCarry) {
+        return add8(v1, v2, useCarry, ADD8_FLAGS);
+    }
+    
+    private byte add8(byte v1, byte v2, boolean useCarry, int mask) {
         int carry = (useCarry && state.getCarryFlag()) ? 1 : 0;
         short shortResult = (short)((v1 & 0xff) + (v2 & 0xff) + carry);
-        byte byteResult = (byte) shortResult;
-        updateFlags8(shortResult);
-        state.setAuxiliaryFlag((v1 & 0xf) + (v2 & 0xf) + carry > 0xf);
-        return byteResult;
+        state.setLazyFlags(State.FLAGS_ADD, mask, v1, v2, carry, shortResult);
+        return (byte) shortResult;
     }
     
     private short add16(int v1, int v2, boolean useCarry) {
+        return add16(v1, v2, useCarry, ALU_FLAGS);
+    }
+    
+    private short add16(int v1, int v2, boolean useCarry, int mask) {
         int carry = (useCarry && state.getCarryFlag()) ? 1 : 0;
-        updateFlags16((v1 & 0xffff) + (v2 & 0xffff) + carry);
-        int intRes = (short) v1 + (short) v2 + carry;
-        state.setOverflowFlag(intRes > 0x7fff || intRes < -0x8000);
-        state.setAuxiliaryFlag((v1 & 0xf) + (v2 & 0xf) + carry > 0xf);
+        int intRes = (v1 & 0xffff) + (v2 & 0xffff) + carry;
+        state.setLazyFlags(State.FLAGS_ADD | State.FLAGS_WIDE, mask, v1, v2, carry, intRes);
         return (short) intRes;
     }
     
-    private byte add8(byte v1, byte v2) {
+    byte add8(byte v1, byte v2) {
         return add8(v1, v2, false);
     }
     
-    private short add16(int v1, int v2) {
+    short add16(int v1, int v2) {
         return add16(v1, v2, false);
     }
     
-    private byte adc8(byte v1, byte v2) {
+    byte adc8(byte v1, byte v2) {
         return add8(v1, v2, true);
     }
     
-    private short adc16(int v1, int v2) {
+    short adc16(int v1, int v2) {
         return add16(v1, v2, true);
     }
     
-    private byte or8(byte v1, byte v2) {
+    byte or8(byte v1, byte v2) {
         short shortResult = (short) ((v1 & 0xff) | (v2 & 0xff));
-        byte byteResult = (byte) shortResult;
-        updateFlags8(shortResult);
-        state.setOverflowFlag(false);
-        state.setCarryFlag(false);
-        state.setAuxiliaryFlag(false); // TODO: ???
-        return byteResult;
+        state.setLazyFlags(State.FLAGS_LOGIC, ALU_FLAGS, v1, v2, 0, shortResult); // TODO: AF ???
+        return (byte) shortResult;
     }
     
-    private short or16(int v1, int v2) {
+    short or16(int v1, int v2) {
         int intResult = (v1 & 0xffff) & (v2 & 0xffff); 
-        short shortResult = (short) intResult;
-        updateFlags16(intResult);
-        state.setOverflowFlag(false);
-        state.setCarryFlag(false);
-        return shortResult;
-    }
-    
-    private byte sub8(byte v1, byte v2) {
-        updateFlags8((short) ((v1 & 0xff) - (v2 & 0xff)));
-        short shortResult = (short) (v1 - v2);
-        state.setOverflowFlag(shortResult > 0x7f || shortResult < -0x80);
-        state.setAuxiliaryFlag((v1 & 0xf) < (v2 & 0xf));
+        state.setLazyFlags(State.FLAGS_LOGIC | State.FLAGS_WIDE, AND_FLAGS, v1, v2, 0, intResult);
+        return (short) intResult;
+    }
+    
+    byte sub8(byte v1, byte v2) {
+        return sub8(v1, v2, ALU_FLAGS);
+    }
+    
+    private byte sub8(byte v1, byte v2, int mask) {
+        short shortResult = (short) ((v1 & 0xff) - (v2 & 0xff));
+        state.setLazyFlags(State.FLAGS_SUB, mask, v1, v2, 0, shortResult);
         return (byte) shortResult;
     }
     
-    private short sub16(int v1, int v2) {
-        updateFlags16((v1 & 0xffff) - (v2 & 0xffff));
-        int intRes = (short) v1 - (short) v2;
-        state.setOverflowFlag(intRes > 0x7fff || intRes < -0x8000);
-        state.setAuxiliaryFlag((v1 & 0xf) < (v2 & 0xf));
+    short sub16(int v1, int v2) {
+        return sub16(v1, v2, ALU_FLAGS);
+    }
+    
+    private short sub16(int v1, int v2, int mask) {
+        int intRes = (v1 & 0xffff) - (v2 & 0xffff);
+        state.setLazyFlags(State.FLAGS_SUB | State.FLAGS_WIDE, mask, v1, v2, 0, intRes);
         return (short) intRes;
     }
     
-    private byte and8(byte v1, byte v2) {
+    byte and8(byte v1, byte v2) {
         short shortResult = (short)((v1 & 0xff) & (v2 & 0xff));
-        byte byteResult = (byte) shortResult;
-        updateFlags8(shortResult);
-        state.setOverflowFlag(false);
-        return byteResult;
+        state.setLazyFlags(State.FLAGS_LOGIC, AND_FLAGS, v1, v2, 0, shortResult);
+        return (byte) shortResult;
     }
     
-    private short and16(int v1, int v2) {
+    short and16(int v1, int v2) {
         int intRes = (v1 & 0xffff) & (v2 & 0xffff);
-        short shortRes = (short) intRes;
-        updateFlags16(intRes);
-        state.setOverflowFlag(false);
-        return shortRes;
+        state.setLazyFlags(State.FLAGS_LOGIC | State.FLAGS_WIDE, AND_FLAGS, v1, v2, 0, intRes);
+        return (short) intRes;
     }
     
-    private byte xor8(byte v1, byte v2) {
-        short shortResult = (short) (((short) v1 & 0xff) ^ ((short) v2 & 0xff));
-        byte result = (byte) shortResult;
-        
-        state.setOverflowFlag(false);
-        state.setCarryFlag(false);
-        state.setAuxiliaryFlag(false); // ??
-        updateFlags8(shortResult);
-        
-        return result;
+    byte xor8(byte v1, byte v2) {
+        short shortResult = (short) ((v1 & 0xff) ^ (v2 & 0xff));
+        state.setLazyFlags(State.FLAGS_LOGIC, ALU_FLAGS, v1, v2, 0, shortResult); // AF ??
+        return (byte) shortResult;
     }
     
-    private short xor16(int v1, int v2) {
+    short xor16(int v1, int v2) {
         int intRes = (v1 & 0xffff) ^ (v2 & 0xffff);
-        short result = (short) intRes;
-        
-        state.setOverflowFlag(false);
-        state.setCarryFlag(false);
-        state.setAuxiliaryFlag(false); // ??
-        updateFlags16(intRes);
-        
-        return result;
+        state.setLazyFlags(State.FLAGS_LOGIC | State.FLAGS_WIDE, ALU_FLAGS, v1, v2, 0, intRes); // AF ??
+        return (short) intRes;
     }
     
-    private byte inc8(byte v) {
-        boolean oldCarry = state.getCarryFlag();
-        byte result = add8(v, (byte) 1);
-        state.setCarryFlag(oldCarry);
-        return result;
+    // INC and DEC leave the carry flag alone
+    
+    byte inc8(byte v) {
+        return add8(v, (byte) 1, false, ADD8_FLAGS & ~State.CARRY_FLAG_MASK);
     }
     
-    private short inc16(int v) {
-        boolean oldCarry = state.getCarryFlag();
-        short result = add16(v, 1);
-        state.setCarryFlag(oldCarry);
-        return result;
+    short inc16(int v) {
+        return add16(v, 1, false, ALU_FLAGS & ~State.CARRY_FLAG_MASK);
     }
     
-    private byte dec8(byte v) {
-        boolean oldCarry = state.getCarryFlag();
-        byte result = sub8(v, (byte) 1);
-        state.setCarryFlag(oldCarry);
-        return result;
+    byte dec8(byte v) {
+        return sub8(v, (byte) 1, ALU_FLAGS & ~State.CARRY_FLAG_MASK);
     }
     
-    private short dec16(int v) {
-        boolean oldCarry = state.getCarryFlag();
-        short result = sub16(v, 1);
-        state.setCarryFlag(oldCarry);
-        return result;
+    short dec16(int v) {
+        return sub16(v, 1, ALU_FLAGS & ~State.CARRY_FLAG_MASK);
     }
     
     private void mul8(byte v1, byte v2) {
         short result = (short)((v1 & 0xff) * (v2 & 0xff));
         state.setAH((byte)(result >> 8));
         state.setAL((byte)result);
-
+        
         if (state.getAH() == 0) {
             state.setOverflowFlag(false);
             state.setCarryFlag(false);
@@ -898,7 +1959,7 @@ public class Cpu {
         int result = (v1 & 0xffff) * (v2 & 0xffff);
         state.setDX((short)(result >> 16));
         state.setAX((short)result);
-
+        
         if (state.getDX() == 0) {
             state.setOverflowFlag(false);
             state.setCarryFlag(false);
@@ -911,7 +1972,7 @@ public class Cpu {
     private byte shl8(byte v, int count) {
         short val = (byte) (v & 0xff);
         val <<= count;
-
+        
         state.setOverflowFlag(((val >> 7) & 0x1) != ((val >> 8) & 0x1));
         updateFlags8(val);
         
@@ -920,19 +1981,14 @@ public class Cpu {
     
     private short shl16(int v, int count) {
         v <<= count;
-        
-        updateFlags16(v);
-        state.setCarryFlag((v & 0x10000) == 0x10000);
-        state.setAuxiliaryFlag((v & 0x10) != 0);
-        state.setOverflowFlag(((v >> 16) & 0x1) != ((v >> 15) & 0x1));
-        
+        state.setLazyFlags(State.FLAGS_SHL | State.FLAGS_WIDE, ALU_FLAGS, v, count, 0, v);
         return (short) v;
     }
     
     private byte rcl8(byte v, int count) {
         int val = v & 0xFF | (state.getCarryFlag() ? 0x100 : 0);
         val = (val<<count) | (val>>(9-count));
-
+        
         state.setOverflowFlag(((val >> 7) & 0x1) != ((val >> 8) & 0x1));
         state.setCarryFlag((val & 0x100) == 0x100);
         
@@ -951,28 +2007,29 @@ public class Cpu {
         return v;
     }
     
-    private void outb(short port, byte val) {
-        // TODO: DMA implementation
-        System.out.println(String.format("out 0x%X, 0x%X", port, val));
-    }
-    
-    private byte inb(short port) {
-        // TODO: implementation
-        return 0;
-    }
-    
     private void interrupt(byte intNo) {
-        // TODO: temporary
-        if (intNo < 0) {
-            return;
-        }
-        
+        int vector = (intNo & 0xff) * 4;
         push(state.getFlags());
+        state.setInterruptFlag(false);
+        state.setTrapFlag(false);
         push(state.getCS());
         push(state.getIP());
-        state.setIP(mem.getWord(4 * intNo));
-        state.setCS(mem.getWord(4 * intNo + 2));
-        System.out.println(String.format("int: 0x%X", intNo));
+        state.setIP(mem.getWord(vector));
+        state.setCS(mem.getWord(vector + 2));
+        if (Profiler.ENABLED && null != profiler) {
+            profiler.interrupt(state.getCS(), state.getIP());
+        }
+    }
+    
+    /**
+     * CLI and STI, also called by translated code. Setting IF may let a
+     * pending interrupt in.
+     */
+    void setInterruptFlag(boolean value) {
+        state.setInterruptFlag(value);
+        if (value) {
+            scheduler.wake();
+        }
     }
     
     private void opJmpAp() {
@@ -983,44 +2040,32 @@ public class Cpu {
     }
     
     public void updateFlags16(int v) {
-        state.setCarryFlag((v & 0xFFFF0000) != 0);
-        state.setZeroFlag((short) v == 0);
-        
-        byte byteVal = (byte) v;
-        byte bitSum = 0;
-        for (byte b = 1; b != 0; b <<= 1) {
-            if ((byteVal & b) != 0) {
-                bitSum += 1;
-            }
-        }
-        state.setParityFlag(bitSum % 2 == 0);
-        
-        state.setSignFlag(((short) v & 0x8000) != 0);
+        state.setLazyFlags(State.FLAGS_LOGIC | State.FLAGS_WIDE, RESULT_FLAGS, 0, 0, 0, v);
     }
     
     public void updateFlags8(short v) {
-        state.setCarryFlag((v & 0xFF00) != 0);
-        state.setZeroFlag(v == 0);
-        
-        byte bitSum = 0;
-        for (byte b = 1; b != 0; b <<= 1) {
-            if ((v & b) != 0) {
-                bitSum += 1;
-            }
-        }
-        state.setParityFlag(bitSum % 2 == 0);
-
-        state.setSignFlag((v & 0x80) != 0);
+        state.setLazyFlags(State.FLAGS_LOGIC, RESULT_FLAGS, 0, 0, 0, v);
     }
     
     private byte nextByte() {
-        byte result = mem.getByte((state.getCS() << 4) + state.getIP());
+        byte result;
+        if (null != current) {
+            result = current.bytes[fetchPos++];
+        } else {
+            result = ram.getByte((state.getCS() << 4) + state.getIP());
+        }
         state.setIP(state.getIP() + 1);
         return result;
     }
     
     private short nextWord() {
-        short result = mem.getWord((state.getCS() << 4) + state.getIP());
+        short result;
+        if (null != current) {
+            result = (short) ((current.bytes[fetchPos] & 0xff) | (current.bytes[fetchPos + 1] << 8));
+            fetchPos += 2;
+        } else {
+            result = ram.getWord((state.getCS() << 4) + state.getIP());
+        }
         state.setIP(state.getIP() + 2);
         return result;
     }
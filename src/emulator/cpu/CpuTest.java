@@ -0,0 +1,764 @@
+package emulator.cpu;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import emulator.HeapMemory;
+import emulator.Memory;
+import emulator.Snapshot;
+import emulator.io.IoDevice;
+import emulator.io.Pic8259;
+import emulator.io.Pit8254;
+
+public class CpuTest {
+    
+    private static final int CODE_ADDR = 0x100;
+    
+    /** memory of the last loaded program */
+    private Memory mem;
+    /** devices of the last loadTimer() */
+    private Pic8259 pic;
+    private Pit8254 pit;
+    
+    /**
+     * Places the program at 0000:0100 and a far jump to it at the reset vector.
+     */
+    private Cpu load(int... code) throws Exception {
+        byte[] data = new byte[code.length];
+        for (int i = 0; i < code.length; ++i) {
+            data[i] = (byte) code[i];
+        }
+        mem = new HeapMemory(0x100000);
+        mem.loadData(0xffff0, new byte[] {(byte) 0xEA, 0x00, 0x01, 0x00, 0x00});
+        mem.loadData(CODE_ADDR, data);
+        Cpu cpu = new Cpu(mem);
+        cpu.step();
+        return cpu;
+    }
+    
+    private void run(Cpu cpu, int count) throws Exception {
+        for (int i = 0; i < count; ++i) {
+            cpu.step();
+        }
+    }
+    
+    private void runTo(Cpu cpu, int ip) throws Exception {
+        while (cpu.getState().getIP() != ip) {
+            cpu.step();
+        }
+    }
+    
+    @Test
+    public void testMovAdd() throws Exception {
+        Cpu cpu = load(
+                0xB8, 0x34, 0x12,       // MOV AX, 1234
+                0xBB, 0xFF, 0xFF,       // MOV BX, FFFF
+                0x01, 0xD8);            // ADD AX, BX
+        run(cpu, 3);
+        
+        State state = cpu.getState();
+        assertEquals(0x1233, state.getAX());
+        assertTrue(state.getCarryFlag());
+        assertFalse(state.getZeroFlag());
+    }
+    
+    @Test
+    public void testLoop() throws Exception {
+        Cpu cpu = load(
+                0xB9, 0x05, 0x00,       // MOV CX, 5
+                0x46,                       // INC SI
+                0x49,                       // DEC CX
+                0x75, 0xFC);            // JNZ -4
+        run(cpu, 1 + 5 * 3);
+        
+        State state = cpu.getState();
+        assertEquals(0, state.getCX());
+        assertEquals(5, state.getSI());
+        assertTrue(state.getZeroFlag());
+        assertEquals(CODE_ADDR + 7, state.getIP());
+    }
+    
+    @Test
+    public void testFlags() throws Exception {
+        Cpu cpu = load(
+                0xB0, 0x10,             // MOV AL, 10
+                0x3C, 0x20,             // CMP AL, 20
+                0xFE, 0xC0,             // INC AL
+                0x04, 0x6F);            // ADD AL, 6F
+        State state = cpu.getState();
+        
+        run(cpu, 2);
+        // 10 - 20 = F0: borrow, sign, parity
+        assertEquals(0xf002 | 0x0080 | 0x0004 | 0x0001, state.getFlags());
+        
+        run(cpu, 1);
+        // 11: carry kept from CMP, parity
+        assertEquals(0xf002 | 0x0004 | 0x0001, state.getFlags());
+        assertTrue(state.getCarryFlag());
+        
+        run(cpu, 1);
+        // 11 + 6F = 80: sign, auxiliary, overflow kept from INC
+        assertEquals((byte) 0x80, state.getAL());
+        assertEquals(0xf002 | 0x0080 | 0x0010, state.getFlags());
+    }
+    
+    @Test
+    public void testGroup() throws Exception {
+        Cpu cpu = load(
+                0xB0, 0x40,             // MOV AL, 40
+                0xD0, 0xE0,             // SHL AL, 1
+                0xFE, 0xC0,             // INC AL
+                0x80, 0xF8, 0x81);      // CMP AL, 81
+        run(cpu, 4);
+        
+        State state = cpu.getState();
+        assertEquals((byte) 0x81, state.getAL());
+        assertTrue(state.getZeroFlag());
+    }
+    
+    @Test
+    public void testCallRet() throws Exception {
+        Cpu cpu = load(
+                0xBC, 0x00, 0x10,       // MOV SP, 1000
+                0xE8, 0x01, 0x00,       // CALL +1
+                0xF4,                   // HLT (skipped)
+                0xC3);                  // RET
+        run(cpu, 3);
+        
+        State state = cpu.getState();
+        assertEquals(CODE_ADDR + 6, state.getIP());
+        assertEquals(0x1000, state.getSP());
+    }
+    
+    @Test(expected = InvalidOpcodeException.class)
+    public void testInvalidOpcode() throws Exception {
+        Cpu cpu = load(0x0F);
+        cpu.step();
+    }
+    
+    @Test(expected = RuntimeException.class)
+    public void testInvalidRegIdx() throws Exception {
+        Cpu cpu = load(0xFF, 0xF8); // GRP5 /7
+        cpu.step();
+    }
+    
+    @Test
+    public void testRun() throws Exception {
+        Cpu cpu = load(
+                0xB9, 0x05, 0x00,       // MOV CX, 5
+                0x46,                   // INC SI
+                0x49,                   // DEC CX
+                0x75, 0xFC,             // JNZ -4
+                0xF4,                   // HLT
+                0x0F);                  // invalid
+        assertEquals(StopReason.BUDGET, cpu.run(4));
+        assertEquals(1 + 4, cpu.getInstructionsRetired());
+        
+        assertEquals(StopReason.HALT, cpu.run(1000));
+        assertEquals(1 + 1 + 5 * 3 + 1, cpu.getInstructionsRetired());
+        assertEquals(CODE_ADDR + 8, cpu.getState().getIP());
+        assertTrue(cpu.isHalted());
+        assertEquals(StopReason.HALT, cpu.run(1000));
+        assertEquals(0, cpu.step());
+    }
+    
+    /**
+     * Loads a program taking PIT interrupts every 64 ticks in an STI; HLT
+     * loop, counted in BX, and runs it up to the loop.
+     */
+    private Cpu loadTimer() throws Exception {
+        Cpu cpu = load(
+                0xB0, 0x13,             // MOV AL, 13
+                0xE6, 0x20,             // OUT 20, AL      ICW1: single, ICW4
+                0xB0, 0x08,             // MOV AL, 08
+                0xE6, 0x21,             // OUT 21, AL      ICW2: vectors 08-0F
+                0xB0, 0x01,             // MOV AL, 01
+                0xE6, 0x21,             // OUT 21, AL      ICW4: 8086 mode
+                0xB0, 0x00,             // MOV AL, 00
+                0xE6, 0x21,             // OUT 21, AL      unmask all
+                0xB0, 0x34,             // MOV AL, 34
+                0xE6, 0x43,             // OUT 43, AL      channel 0, mode 2
+                0xB0, 0x40,             // MOV AL, 40
+                0xE6, 0x40,             // OUT 40, AL
+                0xB0, 0x00,             // MOV AL, 00
+                0xE6, 0x40,             // OUT 40, AL      reload 64
+                0xFB,                   // STI
+                0xF4,                   // HLT
+                0xEB, 0xFD);            // JMP -3
+        mem.loadData(0x200, new byte[] {
+                0x43,                   // INC BX
+                (byte) 0xB0, 0x20,      // MOV AL, 20
+                (byte) 0xE6, 0x20,      // OUT 20, AL      EOI
+                (byte) 0xCF});          // IRET
+        mem.setWord(8 * 4, (short) 0x200);
+        
+        pic = new Pic8259(cpu.getScheduler());
+        pic.attach(cpu.getIoBus(), 0x20);
+        pit = new Pit8254(cpu.getScheduler(), pic);
+        pit.attach(cpu.getIoBus());
+        cpu.setInterruptController(pic);
+        
+        run(cpu, 14);
+        return cpu;
+    }
+    
+    @Test
+    public void testTimerInterrupt() throws Exception {
+        Cpu cpu = loadTimer();
+        long setup = cpu.getCycles();
+        assertEquals(StopReason.BUDGET, cpu.run(1000));
+        int ticks = cpu.getState().getBX();
+        assertTrue(ticks > 10);
+        // one tick every 64 * 4 cycles once the setup code has programmed the PIT
+        assertEquals((cpu.getCycles() - setup) / (64 * Pit8254.CYCLES_PER_TICK), ticks, 1);
+        
+        // CLI instead of STI, nothing can wake the CPU
+        mem.setByte(CODE_ADDR + 28, (byte) 0xFA);
+        cpu.reset();
+        assertEquals(StopReason.HALT, cpu.run(1000));
+        assertEquals(CODE_ADDR + 30, cpu.getState().getIP());
+    }
+    
+    @Test
+    public void testRunBreakpoint() throws Exception {
+        Cpu cpu = load(
+                0xB9, 0x05, 0x00,       // MOV CX, 5
+                0x46,                   // INC SI
+                0x49,                   // DEC CX
+                0x75, 0xFC,             // JNZ -4
+                0x0F);                  // invalid
+        cpu.setTranslationEnabled(true);
+        cpu.setTranslationThreshold(1);
+        cpu.addBreakpoint(CODE_ADDR + 4);
+        assertEquals(StopReason.BREAKPOINT, cpu.run(1000));
+        assertEquals(5, cpu.getState().getCX());
+        assertEquals(StopReason.BREAKPOINT, cpu.run(1000));
+        assertEquals(4, cpu.getState().getCX());
+        
+        cpu.removeBreakpoint(CODE_ADDR + 4);
+        assertEquals(StopReason.INVALID_OPCODE, cpu.run(1000));
+        assertEquals(0, cpu.getState().getCX());
+        assertEquals(1 + 1 + 5 * 3, cpu.getInstructionsRetired());
+    }
+    
+    @Test
+    public void testRestoreHalted() throws Exception {
+        Cpu cpu = loadTimer();
+        while (!cpu.isHalted()) {
+            cpu.step();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        cpu.save(buf);
+        pic.save(buf);
+        pit.save(buf);
+        assertEquals(StopReason.BUDGET, cpu.run(1000));
+        
+        // woken by the restore, not by an event
+        buf.flip();
+        cpu.restore(buf);
+        pic.restore(buf);
+        pit.restore(buf);
+        assertTrue(cpu.isHalted());
+        long cycles = cpu.getCycles();
+        int ticks = cpu.getState().getBX();
+        assertEquals(StopReason.BUDGET, cpu.run(1000));
+        assertTrue(cpu.getCycles() > cycles);
+        assertTrue(cpu.getState().getBX() > ticks + 10);
+    }
+    
+    @Test
+    public void testRepBeforeOtherInstruction() throws Exception {
+        Cpu cpu = load(
+                0xB9, 0x05, 0x00,       // MOV CX, 5
+                0xBF, 0x00, 0x03,       // MOV DI, 0300
+                0xF3, 0x40,             // REP INC AX
+                0xAA,                   // STOSB
+                0xF4);                  // HLT
+        assertEquals(StopReason.HALT, cpu.run(1000));
+        assertEquals(1, cpu.getState().getAX());
+        assertEquals(0x0301, cpu.getState().getDI());
+        assertEquals(5, cpu.getState().getCX());
+    }
+    
+    @Test
+    public void testPrefixAtPageEnd() throws Exception {
+        Cpu cpu = load(
+                0xB8, 0x00, 0x02,       // MOV AX, 0200
+                0x8E, 0xC0,             // MOV ES, AX
+                0xE9, 0xF7, 0x0E);      // JMP 0FFF
+        mem.loadData(0x0fff, new byte[] {
+                0x26,                   // ES:
+                0x40,                   // INC AX
+                (byte) 0x8A, 0x06, 0x00, 0x00, // MOV AL, [0000]
+                (byte) 0xF4});          // HLT
+        mem.setByte(0x0000, (byte) 0x11);
+        mem.setByte(0x2000, (byte) 0x55);
+        cpu.setTranslationEnabled(true);
+        cpu.setTranslationThreshold(1);
+        // the prefix ends the block on its page and belongs to INC AX only
+        assertEquals(StopReason.HALT, cpu.run(1000));
+        assertEquals(0x11, cpu.getState().getAL());
+    }
+    
+    @Test
+    public void testBreakpointOtherPage() throws Exception {
+        Cpu cpu = load(
+                0xB9, 0x05, 0x00,       // MOV CX, 5
+                0x46,                   // INC SI
+                0x49,                   // DEC CX
+                0x75, 0xFC,             // JNZ -4
+                0x0F);                  // invalid
+        cpu.setTranslationEnabled(true);
+        cpu.setTranslationThreshold(1);
+        // only blocks on the page of a breakpoint are interpreted
+        cpu.addBreakpoint(0x5000);
+        assertEquals(StopReason.INVALID_OPCODE, cpu.run(1000));
+        assertEquals(5, cpu.getState().getSI());
+        assertTrue(cpu.getTranslatedBlockCount() > 0);
+    }
+    
+    @Test
+    public void testWatchpoint() throws Exception {
+        Cpu cpu = load(
+                0xB8, 0x34, 0x12,       // MOV AX, 1234
+                0xA3, 0x00, 0x20,       // MOV [2000], AX
+                0x8B, 0x1E, 0x00, 0x20, // MOV BX, [2000]
+                0xA3, 0x00, 0x30,       // MOV [3000], AX
+                0x0F);                  // invalid
+        cpu.addWatchpoint(0x2000, 2, Cpu.WATCH_WRITE);
+        assertEquals(StopReason.WATCHPOINT, cpu.run(1000));
+        assertEquals(CODE_ADDR + 6, cpu.getState().getIP());
+        assertEquals(0x2000, cpu.getWatchpointAddress());
+        assertTrue(cpu.isWatchpointWrite());
+        // reads are not watched
+        assertEquals(StopReason.INVALID_OPCODE, cpu.run(1000));
+        
+        cpu.removeWatchpoint(0x2000, 2, Cpu.WATCH_WRITE);
+        cpu.addWatchpoint(0x2001, 1, Cpu.WATCH_READ);
+        cpu.reset();
+        assertEquals(StopReason.WATCHPOINT, cpu.run(1000));
+        assertEquals(CODE_ADDR + 10, cpu.getState().getIP());
+        assertEquals(0x2001, cpu.getWatchpointAddress());
+        assertFalse(cpu.isWatchpointWrite());
+        
+        // the code is not watched by its fetch, and the memory is the same
+        cpu.removeWatchpoint(0x2001, 1, Cpu.WATCH_READ);
+        cpu.addWatchpoint(CODE_ADDR, 13, Cpu.WATCH_READ);
+        cpu.reset();
+        assertEquals(StopReason.INVALID_OPCODE, cpu.run(1000));
+        assertSame(mem, cpu.getMemory());
+        assertEquals(0x1234, mem.getWord(0x3000));
+    }
+    
+    @Test
+    public void testWatchpointWrap() throws Exception {
+        Cpu cpu = load(
+                0xB8, 0xFF, 0xFF,       // MOV AX, FFFF
+                0x8E, 0xD8,             // MOV DS, AX
+                0xA3, 0x0F, 0x00,       // MOV [000F], AX
+                0xF4);                  // HLT
+        // the word at FFFF:000F ends at 0
+        cpu.addWatchpoint(0, 1, Cpu.WATCH_WRITE);
+        assertEquals(StopReason.WATCHPOINT, cpu.run(1000));
+        assertEquals(0, cpu.getWatchpointAddress());
+        
+        cpu.removeWatchpoint(0, 1, Cpu.WATCH_WRITE);
+        cpu.addWatchpoint(0xfffff, 2, Cpu.WATCH_WRITE);
+        mem.setByte(CODE_ADDR + 1, (byte) 0x00);
+        mem.setByte(CODE_ADDR + 2, (byte) 0x00);
+        mem.setByte(CODE_ADDR + 5, (byte) 0xA2);
+        mem.setByte(CODE_ADDR + 6, (byte) 0x00);
+        // MOV DS, 0 and MOV [0000], AL
+        cpu.reset();
+        assertEquals(StopReason.WATCHPOINT, cpu.run(1000));
+        assertEquals(0, cpu.getWatchpointAddress());
+    }
+    
+    @Test
+    public void testWatchpointStrings() throws Exception {
+        Cpu cpu = load(
+                0xB8, 0x34, 0x12,       // MOV AX, 1234
+                0xB9, 0x04, 0x00,       // MOV CX, 4
+                0xBF, 0x00, 0x20,       // MOV DI, 2000
+                0xF3, 0xAB,             // REP STOSW
+                0xF4);                  // HLT
+        // the fill only writes
+        cpu.addWatchpoint(0x2002, 2, Cpu.WATCH_READ);
+        assertEquals(StopReason.HALT, cpu.run(1000));
+        assertEquals(0x1234, mem.getWord(0x2006));
+        
+        cpu = load(
+                0xB9, 0x04, 0x00,       // MOV CX, 4
+                0xBE, 0x00, 0x20,       // MOV SI, 2000
+                0xF3, 0xAC,             // REP LODSB
+                0xF4);                  // HLT
+        // every element is read, not just the last one
+        cpu.addWatchpoint(0x2000, 1, Cpu.WATCH_READ);
+        assertEquals(StopReason.WATCHPOINT, cpu.run(1000));
+        assertEquals(0x2000, cpu.getWatchpointAddress());
+        assertFalse(cpu.isWatchpointWrite());
+        assertEquals(0x2004, cpu.getState().getSI());
+    }
+    
+    @Test
+    public void testSnapshot() throws Exception {
+        Cpu cpu = load(
+                0xB8, 0x34, 0x12,       // MOV AX, 1234
+                0xBB, 0x00, 0x20,       // MOV BX, 2000
+                0x8E, 0xDB,             // MOV DS, BX
+                0x26,                   // ES:
+                0x89, 0x07,             // MOV [BX], AX
+                0xF4);                  // HLT
+        run(cpu, 4);
+        File file = File.createTempFile("cpu", ".snap");
+        file.deleteOnExit();
+        Snapshot snapshot = new Snapshot(mem);
+        snapshot.add("cpu", cpu);
+        snapshot.save(file.toPath());
+        
+        assertEquals(StopReason.HALT, cpu.run(10));
+        assertEquals(0x1234, mem.getWord(0x2000));
+        mem.setWord(0x2000, (short) 0);
+        cpu.getState().setAX(0);
+        
+        snapshot.restore(file.toPath());
+        assertFalse(cpu.isHalted());
+        assertEquals(0x1234, cpu.getState().getAX());
+        assertEquals(0x2000, cpu.getState().getDS());
+        assertEquals(1 + 4, cpu.getInstructionsRetired());
+        // the segment override is still pending
+        cpu.step();
+        assertEquals(0x1234, mem.getWord(0x2000));
+        assertEquals(0, mem.getWord(0x22000));
+    }
+    
+    @Test
+    public void testFork() throws Exception {
+        Cpu cpu = load(
+                0xB8, 0x01, 0x00,       // MOV AX, 1
+                0x01, 0xC0,             // ADD AX, AX
+                0xA3, 0x00, 0x20,       // MOV [2000], AX
+                0xF4);                  // HLT
+        run(cpu, 2);
+        final Cpu child = cpu.fork();
+        assertEquals(cpu.getState().getFlags(), child.getState().getFlags());
+        assertEquals(cpu.getInstructionsRetired(), child.getInstructionsRetired());
+        
+        child.getState().setAX(5);
+        final StopReason[] reason = new StopReason[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    reason[0] = child.run(10);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        assertEquals(StopReason.HALT, cpu.run(10));
+        thread.join();
+        assertEquals(StopReason.HALT, reason[0]);
+        assertEquals(2, mem.getWord(0x2000));
+        assertEquals(5, child.getMemory().getWord(0x2000));
+        assertEquals(2, cpu.getState().getAX());
+    }
+    
+    @Test
+    public void testProfiler() throws Exception {
+        Cpu cpu = load(
+                0xB9, 0x64, 0x00,       // 0100 MOV CX, 100
+                0xE8, 0x04, 0x00,       // 0103 CALL 010A
+                0x49,                   // 0106 DEC CX
+                0x75, 0xFA,             // 0107 JNZ 0103
+                0xF4,                   // 0109 HLT
+                0x46,                   // 010A INC SI
+                0xC3);                  // 010B RET
+        Profiler profiler = new Profiler(1);
+        cpu.setProfiler(profiler);
+        cpu.setTranslationEnabled(true);
+        cpu.setTranslationThreshold(1);
+        assertEquals(StopReason.HALT, cpu.run(1000));
+        
+        assertEquals(100, profiler.getOpcodeCounts()[0xE8]);
+        assertEquals(100, profiler.getOpcodeCounts()[0xC3]);
+        assertEquals(2 + 5 * 100, profiler.getSampleCount());
+        assertEquals(0, profiler.getDepth());
+        StringWriter folded = new StringWriter();
+        profiler.writeFolded(folded);
+        assertEquals(new HashSet<String>(Arrays.asList(
+                "0000:0100 1",
+                "0000:0103 100",
+                "0000:010A;0000:010A 100",
+                "0000:010A;0000:010B 100",
+                "0000:0106 100",
+                "0000:0107 100",
+                "0000:0109 1")),
+                new HashSet<String>(Arrays.asList(folded.toString().split("\n"))));
+    }
+    
+    @Test
+    public void testRepStos() throws Exception {
+        Cpu cpu = load(
+                0xB8, 0x00, 0x20,       // MOV AX, 2000
+                0x8E, 0xC0,             // MOV ES, AX
+                0xBF, 0xFE, 0xFF,       // MOV DI, FFFE
+                0xB9, 0x03, 0x00,       // MOV CX, 3
+                0xB8, 0x34, 0x12,       // MOV AX, 1234
+                0xF3, 0xAB,             // REP STOSW
+                0xF3, 0xAA);            // REP STOSB (CX = 0)
+        run(cpu, 7);
+        
+        State state = cpu.getState();
+        assertEquals(0, state.getCX());
+        assertEquals(0x0004, state.getDI());
+        // DI wraps around within ES
+        assertEquals(0x1234, mem.getWord(0x2fffe));
+        assertEquals(0x1234, mem.getWord(0x20000));
+        assertEquals(0x1234, mem.getWord(0x20002));
+        assertEquals(0, mem.getWord(0x20004));
+        assertEquals(0, mem.getWord(0x30000));
+        
+        run(cpu, 2);
+        assertEquals(0, mem.getWord(0x20004));
+        assertEquals(0x0004, state.getDI());
+    }
+    
+    @Test
+    public void testRepMovs() throws Exception {
+        Cpu cpu = load(
+                0xBE, 0x00, 0x02,       // MOV SI, 0200
+                0xBF, 0x01, 0x02,       // MOV DI, 0201
+                0xC6, 0x04, 0x07,       // MOV byte [SI], 7
+                0xB9, 0x10, 0x00,       // MOV CX, 10
+                0xF3, 0xA4,             // REP MOVSB (repeats the first byte)
+                0xBE, 0x00, 0x02,       // MOV SI, 0200
+                0xBF, 0x00, 0x03,       // MOV DI, 0300
+                0xB9, 0x08, 0x00,       // MOV CX, 8
+                0xF3, 0xA5,             // REP MOVSW
+                0x2E,                   // CS:
+                0xAD);                  // LODSW
+        run(cpu, 11);
+        
+        State state = cpu.getState();
+        assertEquals(0x0707, mem.getWord(0x20f));
+        assertEquals(0x0707, mem.getWord(0x30e));
+        assertEquals(0, mem.getByte(0x310));
+        assertEquals(0x0310, state.getDI());
+        
+        run(cpu, 2);
+        // 0210 is the last byte of the repeated run
+        assertEquals(0x0007, state.getAX());
+        assertEquals(0x0212, state.getSI());
+    }
+    
+    @Test
+    public void testInOut() throws Exception {
+        Cpu cpu = load(
+                0xB0, 0x42,             // MOV AL, 42
+                0xE6, 0x80,             // OUT 80, AL
+                0xBA, 0x01, 0x80,       // MOV DX, 8001
+                0xED,                   // IN AX, DX
+                0xEF);                  // OUT DX, AX
+        final int[] ports = new int[0x10000];
+        cpu.getIoBus().register(0x80, 0x80, new IoDevice() {
+            public int inb(int port) {
+                return 0;
+            }
+            public void outb(int port, int value) {
+                ports[port] = value;
+            }
+        });
+        cpu.getIoBus().register(0x8001, 0x8002, new IoDevice() {
+            public int inb(int port) {
+                return port & 0xff;
+            }
+            public void outb(int port, int value) {
+                ports[port] = value;
+            }
+        });
+        run(cpu, 5);
+        
+        assertEquals(0x42, ports[0x80]);
+        assertEquals(0x0201, cpu.getState().getAX());
+        assertEquals(0x01, ports[0x8001]);
+        assertEquals(0x02, ports[0x8002]);
+        assertEquals(0, cpu.getIoBus().getUnhandledPorts().getWrites(0x80));
+    }
+    
+    @Test
+    public void testBlockCache() throws Exception {
+        Cpu cpu = load(
+                0xB9, 0x05, 0x00,       // MOV CX, 5
+                0x46,                   // INC SI
+                0x49,                   // DEC CX
+                0x75, 0xFC);            // JNZ -4
+        run(cpu, 1 + 5 * 3);
+        
+        BlockCache cache = cpu.getBlockCache();
+        assertEquals(3, cache.getMisses());
+        assertEquals(3, cache.getHits());
+        assertEquals(0, cache.getInvalidations());
+    }
+    
+    @Test
+    public void testSelfModifyingCode() throws Exception {
+        Cpu cpu = load(
+                0xC6, 0x06, 0x06, 0x01, 0x05, // MOV byte [0106], 5
+                0xB8, 0x01, 0x00);      // MOV AX, 1
+        run(cpu, 2);
+        
+        assertEquals(5, cpu.getState().getAX());
+        assertEquals(1, cpu.getBlockCache().getInvalidations());
+    }
+    
+    private static final int[] ALU_LOOP = {
+            0xBC, 0x00, 0x10,       // MOV SP, 1000
+            0xB9, 0x64, 0x00,       // MOV CX, 100
+            0xBB, 0x03, 0x00,       // MOV BX, 3
+            0x01, 0xD8,             // ADD AX, BX
+            0x31, 0xC2,             // XOR DX, AX
+            0x10, 0xDA,             // ADC DL, BL
+            0x09, 0xCE,             // OR SI, CX
+            0x25, 0xFF, 0x7F,       // AND AX, 7FFF
+            0x3C, 0x10,             // CMP AL, 10
+            0x50,                   // PUSH AX
+            0x5F,                   // POP DI
+            0xA3, 0x00, 0x02,       // MOV [0200], AX
+            0xA0, 0x01, 0x02,       // MOV AL, [0201]
+            0x43,                   // INC BX
+            0x49,                   // DEC CX
+            0x75, 0xE7};            // JNZ -25
+    
+    @Test
+    public void testTranslation() throws Exception {
+        Cpu interpreted = load(ALU_LOOP);
+        runTo(interpreted, CODE_ADDR + ALU_LOOP.length);
+        
+        Cpu translated = load(ALU_LOOP);
+        translated.setTranslationEnabled(true);
+        translated.setTranslationThreshold(2);
+        runTo(translated, CODE_ADDR + ALU_LOOP.length);
+        
+        assertTrue(translated.getTranslatedBlockCount() > 0);
+        assertEquals(interpreted.getState().toString(), translated.getState().toString());
+        assertEquals(interpreted.getState().getFlags(), translated.getState().getFlags());
+    }
+    
+    @Test
+    public void testTranslatedSelfModifyingCode() throws Exception {
+        Cpu cpu = load(
+                0xB9, 0x03, 0x00,       // MOV CX, 3
+                0xB0, 0x07,             // MOV AL, 7
+                0xA2, 0x0B, 0x01,       // MOV [010B], AL
+                0x04, 0x01,             // ADD AL, 1
+                0xB3, 0x00,             // MOV BL, patched above
+                0x00, 0xDF,             // ADD BH, BL
+                0x49,                   // DEC CX
+                0x75, 0xF4);            // JNZ -12
+        cpu.setTranslationEnabled(true);
+        cpu.setTranslationThreshold(1);
+        runTo(cpu, CODE_ADDR + 17);
+        
+        assertEquals(7 + 8 + 9, cpu.getState().getReg8(7));
+        assertTrue(cpu.getTranslatedBlockCount() > 0);
+    }
+    
+    @Test
+    public void testCycles() throws Exception {
+        Cpu cpu = load(
+                0xBB, 0x00, 0x03,       // MOV BX, 0300    4
+                0xBF, 0x00, 0x04,       // MOV DI, 0400    4
+                0x01, 0x40, 0x04,       // ADD [BX+SI+04], AX  16 + 11 EA
+                0xB9, 0x03, 0x00,       // MOV CX, 3       4
+                0xF3,                   // REP             2
+                0xAB,                   // STOSW           9 + 3 * 10
+                0xB9, 0x02, 0x00,       // MOV CX, 2       4
+                0x49,                   // DEC CX          2
+                0x75, 0xFD,             // JNZ -3          16 taken, 4 not
+                0xF4);                  // HLT             2
+        long start = cpu.getCycles();
+        assertEquals(StopReason.HALT, cpu.run(1000));
+        assertEquals(4 + 4 + 27 + 4 + 2 + 39 + 4 + 2 + 16 + 2 + 4 + 2, cpu.getCycles() - start);
+    }
+    
+    @Test
+    public void testTranslatedCycles() throws Exception {
+        int[] code = {
+                0xB9, 0x64, 0x00,       // MOV CX, 100     4
+                0x01, 0xD8,             // ADD AX, BX      3
+                0x49,                   // DEC CX          2
+                0x75, 0xFB,             // JNZ -5          16 taken, 4 not
+                0xF4};                  // HLT             2
+        Cpu interpreted = load(code);
+        assertEquals(StopReason.HALT, interpreted.run(1000));
+        
+        Cpu translated = load(code);
+        translated.setTranslationEnabled(true);
+        translated.setTranslationThreshold(1);
+        assertEquals(StopReason.HALT, translated.run(1000));
+        
+        long expected = 15 + 4 + 100 * (3 + 2) + 99 * 16 + 4 + 2;
+        assertEquals(expected, interpreted.getCycles());
+        assertEquals(expected, translated.getCycles());
+    }
+    
+    @Test
+    public void testRunPaced() throws Exception {
+        Cpu cpu = load(
+                0x43,                   // INC BX
+                0xEB, 0xFD);            // JMP -3
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        
+        // 100 ms of guest time
+        long start = System.nanoTime();
+        long startCpu = threads.getCurrentThreadCpuTime();
+        assertEquals(StopReason.BUDGET, cpu.runPaced(Cpu.CLOCK_HZ / 10, Cpu.CLOCK_HZ));
+        long elapsed = System.nanoTime() - start;
+        long busy = threads.getCurrentThreadCpuTime() - startCpu;
+        assertTrue("took " + elapsed + " ns", elapsed >= 95000000);
+        // parked most of the time instead of spinning
+        assertTrue("busy " + busy + " of " + elapsed + " ns", busy < elapsed / 2);
+    }
+    
+    @Test
+    public void testNoAllocation() throws Exception {
+        Cpu cpu = load(
+                0xBC, 0x00, 0x10,       // MOV SP, 1000
+                0xBB, 0x00, 0x03,       // MOV BX, 0300
+                0xBE, 0x10, 0x00,       // MOV SI, 0010
+                0xB9, 0x00, 0x00,       // MOV CX, 0
+                0x01, 0x40, 0x04,       // ADD [BX+SI+04], AX
+                0x8B, 0x83, 0x00, 0x02, // MOV AX, [BP+DI+0200]
+                0x26,                   // ES:
+                0x89, 0x06, 0x50, 0x02, // MOV [0250], AX
+                0x80, 0x3C, 0x07,       // CMP byte [SI], 7
+                0x50,                   // PUSH AX
+                0x5A,                   // POP DX
+                0x31, 0xDA,             // XOR DX, BX
+                0x46,                   // INC SI
+                0x81, 0xE6, 0xFF, 0x00, // AND SI, 00FF
+                0x49,                   // DEC CX
+                0x75, 0xE5);            // JNZ -27
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        run(cpu, 4 + 12 * 100);
+        
+        long before = threads.getCurrentThreadAllocatedBytes();
+        run(cpu, 12 * 6000);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        
+        // the JIT may allocate a few bytes once (deoptimization, OSR),
+        // a single boxed value per step would be over 1 MB here
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
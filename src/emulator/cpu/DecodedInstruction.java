@@ -0,0 +1,46 @@
+package emulator.cpu;
+
+/**
+ * Instruction decoded once and kept in a {@link BasicBlock}. Immediates are
+ * fetched from {@link #bytes} instead of memory, and the ModRM byte and its
+ * displacement are already read.
+ */
+final class DecodedInstruction {
+    
+    final int address;
+    final Cpu.Instruction handler;
+    final byte[] bytes;
+    
+    final int modRM;
+    final int disp;
+    
+    /** number of ModRM and displacement bytes */
+    final int modRMLength;
+    
+    /** clock cycles, see {@link Timing#cycles(int, int)} */
+    final int cycles;
+    
+    DecodedInstruction(int address, Cpu.Instruction handler, byte[] bytes,
+            int modRM, int disp, int modRMLength) {
+        this.address = address;
+        this.handler = handler;
+        this.bytes = bytes;
+        this.modRM = modRM;
+        this.disp = disp;
+        this.modRMLength = modRMLength;
+        cycles = Timing.cycles(bytes[0] & 0xff, modRM);
+    }
+    
+    int getMode() {
+        return modRM >> 6;
+    }
+    
+    int getRegIdx() {
+        return (modRM >> 3) & 0x07;
+    }
+    
+    int getMemIdx() {
+        return modRM & 0x07;
+    }
+    
+}
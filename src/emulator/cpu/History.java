@@ -0,0 +1,265 @@
+package emulator.cpu;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import emulator.Memory;
+import emulator.Snapshot;
+
+/**
+ * Lets a CPU run backwards. Every so many instructions it takes an in-memory
+ * checkpoint of the CPU, the devices and the pages written since the
+ * checkpoint before; pages that did not change are shared with it. Going
+ * back restores the nearest checkpoint and runs forward again to the
+ * instruction wanted, which gives the same result because execution is
+ * deterministic. Devices fed from the host, such as the keyboard, are not:
+ * what they received since the checkpoint is not replayed.
+ * <p>
+ * The oldest checkpoints are dropped to stay within a memory budget. Use it
+ * from the thread running the CPU.
+ */
+public final class History {
+    
+    /** upper bound of the state of one part, as in Snapshot */
+    private static final int MAX_PART_SIZE = 4096;
+    
+    /** what a page shared by all-zero pages stands for */
+    private static final byte[] ZERO = new byte[Memory.PAGE_SIZE];
+    
+    private static final class Checkpoint {
+        final long retired;
+        /** shared with the checkpoints before and after where unchanged */
+        final byte[][] pages;
+        final byte[][] states;
+        /** size of the page table and the states */
+        final long overhead;
+        
+        Checkpoint(long retired, byte[][] pages, byte[][] states, long overhead) {
+            this.retired = retired;
+            this.pages = pages;
+            this.states = states;
+            this.overhead = overhead;
+        }
+    }
+    
+    private final Cpu cpu;
+    private final Memory mem;
+    private final Snapshot.Part[] parts;
+    private final long interval;
+    private final long maxBytes;
+    private final int tracker;
+    
+    private final ArrayDeque<Checkpoint> checkpoints = new ArrayDeque<Checkpoint>();
+    private long usedBytes;
+    
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_PART_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    
+    /**
+     * Attaches to the CPU and takes the first checkpoint.
+     * 
+     * @param interval instructions between two checkpoints
+     * @param maxBytes memory budget of the checkpoints, the newest one is
+     * kept even if it alone is larger
+     * @param devices device state to restore along with the CPU
+     */
+    public History(Cpu cpu, long interval, long maxBytes, Snapshot.Part... devices) {
+        this.cpu = cpu;
+        this.mem = cpu.getMemory();
+        this.interval = interval;
+        this.maxBytes = maxBytes;
+        parts = new Snapshot.Part[1 + devices.length];
+        parts[0] = cpu;
+        System.arraycopy(devices, 0, parts, 1, devices.length);
+        tracker = mem.addDirtyTracker();
+        record();
+    }
+    
+    /**
+     * Stops taking checkpoints and frees them.
+     */
+    public void close() {
+        cpu.setHistory(null, 0);
+        checkpoints.clear();
+        usedBytes = 0;
+    }
+    
+    /**
+     * Takes a checkpoint at the current instruction, called by the CPU.
+     */
+    void record() {
+        long[] dirty = mem.takeDirtyPages(tracker);
+        Checkpoint last = checkpoints.peekLast();
+        int pageCount = mem.getPageCount();
+        byte[][] pages;
+        long pageBytes = 0;
+        if (null == last) {
+            pages = new byte[pageCount][];
+            for (int i = 0; i < pageCount; ++i) {
+                pages[i] = copyPage(i);
+                pageBytes += pages[i] == ZERO ? 0 : Memory.PAGE_SIZE;
+            }
+        } else {
+            pages = last.pages.clone();
+            for (int w = 0; w < dirty.length; ++w) {
+                for (long bits = dirty[w]; bits != 0; bits &= bits - 1) {
+                    int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    pages[i] = copyPage(i);
+                    pageBytes += pages[i] == ZERO ? 0 : Memory.PAGE_SIZE;
+                }
+            }
+        }
+        
+        byte[][] states = new byte[parts.length][];
+        long overhead = pageCount * 8L;
+        for (int i = 0; i < parts.length; ++i) {
+            scratch.clear();
+            parts[i].save(scratch);
+            states[i] = Arrays.copyOf(scratch.array(), scratch.position());
+            overhead += states[i].length;
+        }
+        
+        long retired = cpu.getInstructionsRetired();
+        checkpoints.addLast(new Checkpoint(retired, pages, states, overhead));
+        usedBytes += overhead + pageBytes;
+        while (usedBytes > maxBytes && checkpoints.size() > 1) {
+            Checkpoint first = checkpoints.removeFirst();
+            usedBytes -= first.overhead + ownBytes(first, checkpoints.peekFirst());
+        }
+        cpu.setHistory(this, retired + interval);
+    }
+    
+    private byte[] copyPage(int page) {
+        byte[] data = new byte[Memory.PAGE_SIZE];
+        mem.readData(page << Memory.PAGE_SHIFT, data);
+        return Arrays.equals(data, ZERO) ? ZERO : data;
+    }
+    
+    /**
+     * Returns the size of the pages of a checkpoint that its neighbour
+     * does not share. A page is shared by consecutive checkpoints only, so
+     * the neighbour is all that has to be looked at.
+     */
+    private static long ownBytes(Checkpoint checkpoint, Checkpoint neighbour) {
+        long bytes = 0;
+        for (int i = 0; i < checkpoint.pages.length; ++i) {
+            byte[] page = checkpoint.pages[i];
+            if (page != ZERO && page != neighbour.pages[i]) {
+                bytes += Memory.PAGE_SIZE;
+            }
+        }
+        return bytes;
+    }
+    
+    /**
+     * Returns the earliest instruction count that can still be gone back to.
+     */
+    public long getOldest() {
+        return checkpoints.peekFirst().retired;
+    }
+    
+    public int getCheckpointCount() {
+        return checkpoints.size();
+    }
+    
+    /**
+     * Returns the memory taken by the checkpoints, pages shared between
+     * them counted once.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+    
+    /**
+     * Brings the CPU to the point where the given number of instructions
+     * had retired, backwards or forwards.
+     * 
+     * @return BUDGET once there, or what stopped the CPU on the way
+     * @throws IllegalArgumentException if the instruction is older than
+     * the oldest checkpoint
+     */
+    public StopReason seek(long instruction) throws Exception {
+        if (instruction < getOldest()) {
+            throw new IllegalArgumentException("Instruction " + instruction + " is no longer in the history");
+        }
+        if (instruction < cpu.getInstructionsRetired()) {
+            restore(latestBefore(instruction + 1));
+        }
+        return cpu.runTo(instruction);
+    }
+    
+    /**
+     * Goes back by one instruction. A hardware interrupt taken in between
+     * is undone along with the instruction.
+     */
+    public StopReason stepBack() throws Exception {
+        return seek(cpu.getInstructionsRetired() - 1);
+    }
+    
+    /**
+     * Goes back to the last time CS:IP pointed at the given instruction,
+     * searching one checkpoint interval after the other.
+     * 
+     * @return false if it was not reached as far back as the history goes,
+     * the CPU is then where it was
+     */
+    public boolean runBackTo(int cs, int ip) throws Exception {
+        int addr = ((cs << 4) + ip) & 0xfffff;
+        long end = cpu.getInstructionsRetired();
+        long limit = end;
+        Checkpoint base;
+        while (null != (base = latestBefore(limit))) {
+            restore(base);
+            long found = cpu.findLast(addr, limit);
+            if (found >= 0) {
+                seek(found);
+                return true;
+            }
+            limit = base.retired;
+        }
+        seek(end);
+        return false;
+    }
+    
+    /**
+     * Returns the newest checkpoint taken before the given instruction
+     * count, null if there is none.
+     */
+    private Checkpoint latestBefore(long retired) {
+        Iterator<Checkpoint> it = checkpoints.descendingIterator();
+        while (it.hasNext()) {
+            Checkpoint checkpoint = it.next();
+            if (checkpoint.retired < retired) {
+                return checkpoint;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Puts memory, CPU and devices back to a checkpoint and drops the
+     * checkpoints after it, running forward takes them again.
+     */
+    private void restore(Checkpoint target) {
+        // memory is the newest checkpoint plus the pages written since
+        Checkpoint latest = checkpoints.peekLast();
+        long[] dirty = mem.takeDirtyPages(tracker);
+        for (int i = 0; i < target.pages.length; ++i) {
+            if (target.pages[i] != latest.pages[i] || (dirty[i >> 6] & (1L << i)) != 0) {
+                mem.loadData(i << Memory.PAGE_SHIFT, target.pages[i]);
+            }
+        }
+        mem.takeDirtyPages(tracker);
+        
+        while (checkpoints.peekLast() != target) {
+            Checkpoint last = checkpoints.removeLast();
+            usedBytes -= last.overhead + ownBytes(last, checkpoints.peekLast());
+        }
+        for (int i = 0; i < parts.length; ++i) {
+            parts[i].restore(ByteBuffer.wrap(target.states[i]).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        cpu.setHistory(this, target.retired + interval);
+    }
+}
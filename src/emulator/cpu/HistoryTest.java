@@ -0,0 +1,181 @@
+package emulator.cpu;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import emulator.HeapMemory;
+import emulator.Memory;
+import emulator.io.Pic8259;
+import emulator.io.Pit8254;
+
+public class HistoryTest {
+    
+    private static final int CODE_ADDR = 0x100;
+    
+    /** PIT interrupts count in BX while a translated loop writes memory */
+    private static final int[] PROGRAM = {
+            0xB0, 0x13,             // 0100 MOV AL, 13
+            0xE6, 0x20,             // 0102 OUT 20, AL      ICW1: single, ICW4
+            0xB0, 0x08,             // 0104 MOV AL, 08
+            0xE6, 0x21,             // 0106 OUT 21, AL      ICW2: vectors 08-0F
+            0xB0, 0x01,             // 0108 MOV AL, 01
+            0xE6, 0x21,             // 010A OUT 21, AL      ICW4: 8086 mode
+            0xB0, 0x00,             // 010C MOV AL, 00
+            0xE6, 0x21,             // 010E OUT 21, AL      unmask all
+            0xB0, 0x34,             // 0110 MOV AL, 34
+            0xE6, 0x43,             // 0112 OUT 43, AL      channel 0, mode 2
+            0xB0, 0x00,             // 0114 MOV AL, 00
+            0xE6, 0x40,             // 0116 OUT 40, AL
+            0xB0, 0x01,             // 0118 MOV AL, 01
+            0xE6, 0x40,             // 011A OUT 40, AL      reload 256
+            0xFB,                   // 011C STI
+            0x46,                   // 011D INC SI
+            0x8B, 0xC6,             // 011E MOV AX, SI
+            0xA3, 0x00, 0x20,       // 0120 MOV [2000], AX
+            0x41,                   // 0123 INC CX
+            0x47,                   // 0124 INC DI
+            0x47,                   // 0125 INC DI
+            0x47,                   // 0126 INC DI
+            0xEB, 0xF4};            // 0127 JMP 011D
+    
+    private static final int[] HANDLER = {
+            0x43,                   // 0200 INC BX
+            0xB0, 0x20,             // 0201 MOV AL, 20
+            0xE6, 0x20,             // 0203 OUT 20, AL      EOI
+            0xCF};                  // 0205 IRET
+    
+    private Memory mem;
+    private Pic8259 pic;
+    private Pit8254 pit;
+    
+    private Cpu load() throws Exception {
+        mem = new HeapMemory(0x100000);
+        mem.loadData(0xffff0, new byte[] {(byte) 0xEA, 0x00, 0x01, 0x00, 0x00});
+        mem.loadData(CODE_ADDR, toBytes(PROGRAM));
+        mem.loadData(0x200, toBytes(HANDLER));
+        mem.setWord(8 * 4, (short) 0x200);
+        Cpu cpu = new Cpu(mem);
+        pic = new Pic8259(cpu.getScheduler());
+        pic.attach(cpu.getIoBus(), 0x20);
+        pit = new Pit8254(cpu.getScheduler(), pic);
+        pit.attach(cpu.getIoBus());
+        cpu.setInterruptController(pic);
+        cpu.setTranslationEnabled(true);
+        cpu.setTranslationThreshold(1);
+        return cpu;
+    }
+    
+    private static byte[] toBytes(int[] code) {
+        byte[] data = new byte[code.length];
+        for (int i = 0; i < code.length; ++i) {
+            data[i] = (byte) code[i];
+        }
+        return data;
+    }
+    
+    /** CPU, PIT and the first 64 KiB of memory */
+    private byte[] capture(Cpu cpu) {
+        ByteBuffer buf = ByteBuffer.allocate(0x10000 + 1024);
+        cpu.save(buf);
+        pit.save(buf);
+        byte[] data = new byte[0x10000];
+        mem.readData(0, data);
+        buf.put(data);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+    
+    @Test
+    public void testSeek() throws Exception {
+        Cpu cpu = load();
+        History history = new History(cpu, 1000, 64 << 20, pic, pit);
+        
+        List<Long> positions = new ArrayList<Long>();
+        List<byte[]> states = new ArrayList<byte[]>();
+        for (int i = 0; i < 20; ++i) {
+            assertEquals(StopReason.BUDGET, cpu.run(777));
+            positions.add(cpu.getInstructionsRetired());
+            states.add(capture(cpu));
+        }
+        assertTrue(cpu.getState().getBX() > 10);
+        assertTrue(history.getCheckpointCount() > 10);
+        
+        // back to each point, newest first, and forward again to the last
+        for (int i = positions.size() - 1; i >= 0; --i) {
+            assertEquals(StopReason.BUDGET, history.seek(positions.get(i)));
+            assertEquals((long) positions.get(i), cpu.getInstructionsRetired());
+            assertArrayEquals("at " + positions.get(i), states.get(i), capture(cpu));
+        }
+        int last = positions.size() - 1;
+        assertEquals(StopReason.BUDGET, history.seek(positions.get(last)));
+        assertArrayEquals(states.get(last), capture(cpu));
+        
+        long position = cpu.getInstructionsRetired();
+        byte[] before = capture(cpu);
+        cpu.setTranslationEnabled(false);
+        cpu.step();
+        assertEquals(StopReason.BUDGET, history.stepBack());
+        assertEquals(position, cpu.getInstructionsRetired());
+        assertArrayEquals(before, capture(cpu));
+    }
+    
+    @Test
+    public void testRunBackTo() throws Exception {
+        Cpu cpu = load();
+        History history = new History(cpu, 500, 64 << 20, pic, pit);
+        cpu.run(3000);
+        int ticks = cpu.getState().getBX();
+        
+        // the interrupt handler ran within the last few checkpoint intervals
+        assertTrue(history.runBackTo(0, 0x0205));
+        assertEquals(0x0205, cpu.getState().getIP());
+        assertTrue(ticks - cpu.getState().getBX() <= 1);
+        
+        long position = cpu.getInstructionsRetired();
+        assertFalse(history.runBackTo(0x1234, 0));
+        assertEquals(position, cpu.getInstructionsRetired());
+        assertEquals(0x0205, cpu.getState().getIP());
+    }
+    
+    @Test
+    public void testBudget() throws Exception {
+        Cpu cpu = load();
+        History history = new History(cpu, 100, 256 << 10, pic, pit);
+        cpu.run(100000);
+        // the loop writes one page, the others are shared
+        assertTrue(history.getUsedBytes() <= 256 << 10);
+        assertTrue(history.getCheckpointCount() > 10);
+        long oldest = history.getOldest();
+        assertTrue(oldest > 0);
+        try {
+            history.seek(oldest - 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(StopReason.BUDGET, history.seek(oldest));
+        
+        history.close();
+        cpu.run(10000);
+        assertEquals(0, history.getCheckpointCount());
+    }
+    
+    @Test
+    public void testDirtyTrackers() throws Exception {
+        // history checkpoints do not take the pages of snapshot deltas
+        Cpu cpu = load();
+        mem.takeDirtyPages();
+        History history = new History(cpu, 10, 64 << 20);
+        cpu.run(1000);
+        assertTrue(history.getCheckpointCount() > 10);
+        assertTrue(mem.isDirty(2));
+        // the interrupts push at 0000:FFFE
+        assertTrue(mem.isDirty(15));
+        assertFalse(mem.isDirty(3));
+    }
+}
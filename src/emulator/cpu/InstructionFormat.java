@@ -0,0 +1,109 @@
+package emulator.cpu;
+
+/**
+ * Static 8086 instruction format tables: which opcodes take a ModRM byte,
+ * how many immediate bytes follow, which ones may transfer control and
+ * which ones are prefixes.
+ */
+final class InstructionFormat {
+    
+    private static final int MODRM = 0x01;
+    private static final int IMM8 = 0x02;
+    private static final int IMM16 = 0x04;
+    private static final int IMM32 = 0x08;
+    private static final int BRANCH = 0x10;
+    private static final int PREFIX = 0x20;
+    
+    private static final byte[] formats = new byte[256];
+    
+    static {
+        for (int row = 0x00; row < 0x40; row += 0x08) {
+            set(row, row + 3, MODRM); // ALU Eb Gb .. Gv Ev
+            set(row + 4, row + 4, IMM8); // ALU AL Ib
+            set(row + 5, row + 5, IMM16); // ALU AX Iv
+        }
+        for (int segment = 0x26; segment < 0x40; segment += 0x08) {
+            set(segment, segment, PREFIX); // ES:, CS:, SS:, DS:
+        }
+        set(0x70, 0x7F, IMM8 | BRANCH); // Jcc Jb
+        set(0x80, 0x80, MODRM | IMM8); // GRP1 Eb Ib
+        set(0x81, 0x81, MODRM | IMM16); // GRP1 Ev Iv
+        set(0x82, 0x83, MODRM | IMM8); // GRP1 Eb Ib, Ev Ib
+        set(0x84, 0x8F, MODRM); // TEST, XCHG, MOV, LEA, POP Ev
+        set(0x9A, 0x9A, IMM32 | BRANCH); // CALL Ap
+        set(0xA0, 0xA3, IMM16); // MOV AL/AX Ob/Ov
+        set(0xA8, 0xA8, IMM8); // TEST AL Ib
+        set(0xA9, 0xA9, IMM16); // TEST AX Iv
+        set(0xB0, 0xB7, IMM8); // MOV r8 Ib
+        set(0xB8, 0xBF, IMM16); // MOV r16 Iv
+        set(0xC2, 0xC2, IMM16 | BRANCH); // RET Iw
+        set(0xC3, 0xC3, BRANCH); // RET
+        set(0xC4, 0xC5, MODRM); // LES, LDS
+        set(0xC6, 0xC6, MODRM | IMM8); // MOV Eb Ib
+        set(0xC7, 0xC7, MODRM | IMM16); // MOV Ev Iv
+        set(0xCA, 0xCA, IMM16 | BRANCH); // RETF Iw
+        set(0xCB, 0xCC, BRANCH); // RETF, INT 3
+        set(0xCD, 0xCD, IMM8 | BRANCH); // INT Ib
+        set(0xCE, 0xCF, BRANCH); // INTO, IRET
+        set(0xD0, 0xD3, MODRM); // GRP2
+        set(0xD4, 0xD5, IMM8); // AAM, AAD
+        set(0xD8, 0xDF, MODRM); // ESC
+        set(0xE0, 0xE3, IMM8 | BRANCH); // LOOPNZ, LOOPZ, LOOP, JCXZ
+        set(0xE4, 0xE7, IMM8); // IN, OUT Ib
+        set(0xE8, 0xE9, IMM16 | BRANCH); // CALL Jv, JMP Jv
+        set(0xEA, 0xEA, IMM32 | BRANCH); // JMP Ap
+        set(0xEB, 0xEB, IMM8 | BRANCH); // JMP Jb
+        set(0xF0, 0xF0, PREFIX); // LOCK
+        set(0xF2, 0xF3, PREFIX); // REPNZ, REPZ
+        set(0xF4, 0xF4, BRANCH); // HLT
+        set(0xF6, 0xF7, MODRM); // GRP3 (TEST takes an immediate, see immediateSize())
+        set(0xFE, 0xFE, MODRM); // GRP4
+        set(0xFF, 0xFF, MODRM | BRANCH); // GRP5 (CALL, JMP)
+    }
+    
+    private InstructionFormat() {
+    }
+    
+    private static void set(int first, int last, int format) {
+        for (int i = first; i <= last; ++i) {
+            formats[i] = (byte) format;
+        }
+    }
+    
+    static boolean hasModRM(int opcode) {
+        return (formats[opcode & 0xff] & MODRM) != 0;
+    }
+    
+    static boolean isBranch(int opcode) {
+        return (formats[opcode & 0xff] & BRANCH) != 0;
+    }
+    
+    static boolean isPrefix(int opcode) {
+        return (formats[opcode & 0xff] & PREFIX) != 0;
+    }
+    
+    /**
+     * Returns the number of immediate bytes following the opcode and the
+     * ModRM/displacement bytes.
+     */
+    static int immediateSize(int opcode, int regIdx) {
+        int format = formats[opcode & 0xff];
+        if ((format & IMM8) != 0) {
+            return 1;
+        } else if ((format & IMM16) != 0) {
+            return 2;
+        } else if ((format & IMM32) != 0) {
+            return 4;
+        }
+        
+        // TEST Eb Ib / TEST Ev Iv
+        if (regIdx < 2) {
+            if ((opcode & 0xff) == 0xF6) {
+                return 1;
+            } else if ((opcode & 0xff) == 0xF7) {
+                return 2;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,19 @@
+package emulator.cpu;
+
+/**
+ * Source of hardware interrupts, the 8259 PIC.
+ */
+public interface InterruptController {
+    
+    /**
+     * Returns true if an unmasked request waits that is not blocked by one
+     * in service.
+     */
+    boolean hasInterrupt();
+    
+    /**
+     * Takes the highest priority request into service and returns its
+     * vector.
+     */
+    int acknowledge();
+}
@@ -0,0 +1,63 @@
+package emulator.cpu;
+
+/**
+ * Addressing mode of every ModRM byte: base and index register, default
+ * segment, displacement size and whether it names a register instead of
+ * memory. Registers are State indices, -1 means none.
+ */
+final class ModRMTable {
+    
+    static final byte[] BASE = new byte[256];
+    static final byte[] INDEX = new byte[256];
+    static final byte[] SEGMENT = new byte[256];
+    static final byte[] DISP_SIZE = new byte[256];
+    static final boolean[] REGISTER = new boolean[256];
+    
+    // r/m field: base, index, default segment
+    private static final int[][] RM = {
+        {State.BX_INDEX, State.SI_INDEX, State.DS_INDEX}, // [BX+SI]
+        {State.BX_INDEX, State.DI_INDEX, State.DS_INDEX}, // [BX+DI]
+        {State.BP_INDEX, State.SI_INDEX, State.SS_INDEX}, // [BP+SI]
+        {State.BP_INDEX, State.DI_INDEX, State.SS_INDEX}, // [BP+DI]
+        {State.SI_INDEX, -1, State.DS_INDEX},             // [SI]
+        {State.DI_INDEX, -1, State.DS_INDEX},             // [DI]
+        {State.BP_INDEX, -1, State.SS_INDEX},             // [BP], [disp16] in mode 0
+        {State.BX_INDEX, -1, State.DS_INDEX},             // [BX]
+    };
+    
+    static {
+        for (int modRM = 0; modRM < 256; ++modRM) {
+            int mode = modRM >> 6;
+            int rm = modRM & 0x07;
+            
+            BASE[modRM] = (byte) RM[rm][0];
+            INDEX[modRM] = (byte) RM[rm][1];
+            SEGMENT[modRM] = (byte) RM[rm][2];
+            
+            switch (mode) {
+                case 0:
+                    if (rm == 6) {
+                        BASE[modRM] = -1;
+                        SEGMENT[modRM] = State.DS_INDEX;
+                        DISP_SIZE[modRM] = 2;
+                    }
+                    break;
+                case 1:
+                    DISP_SIZE[modRM] = 1;
+                    break;
+                case 2:
+                    DISP_SIZE[modRM] = 2;
+                    break;
+                default:
+                    REGISTER[modRM] = true;
+                    BASE[modRM] = -1;
+                    INDEX[modRM] = -1;
+                    SEGMENT[modRM] = -1;
+                    break;
+            }
+        }
+    }
+    
+    private ModRMTable() {
+    }
+}
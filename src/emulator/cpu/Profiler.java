@@ -0,0 +1,239 @@
+package emulator.cpu;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Sampling profiler of guest code. Counts executed instructions per
+ * opcode and every interval instructions takes a sample of CS:IP together
+ * with a shadow call stack kept up to date from CALL, RET, INT, IRET and
+ * hardware interrupts.
+ * <p>
+ * Call stacks are nodes of a tree: each node is a function, identified by
+ * the CS:IP it was entered at, under the function it was called from.
+ * Samples are counted on leaf nodes below, one per sampled CS:IP, so taking
+ * a sample allocates nothing. {@link #writeFolded(Writer)} writes the
+ * samples as folded stacks for flame graph tools.
+ * <p>
+ * The CPU interprets every instruction while a profiler is attached.
+ * Starting the JVM with -Demulator.profiler=false removes the hooks from
+ * the compiled CPU loop altogether.
+ */
+public class Profiler {
+    
+    public static final boolean ENABLED =
+            Boolean.parseBoolean(System.getProperty("emulator.profiler", "true"));
+    
+    /** deeper calls are not tracked, only counted so returns match up */
+    public static final int MAX_DEPTH = 256;
+    
+    private static final int ROOT = 0;
+    
+    /** set in the key of a leaf node */
+    private static final long LEAF = 1L << 32;
+    
+    private static final int KIND_NONE = 0;
+    private static final int KIND_CALL = 1;
+    private static final int KIND_RETURN = 2;
+    
+    private final int interval;
+    private int countdown;
+    
+    private final long[] opcodeCounts = new long[256];
+    private long sampleCount;
+    
+    // nodes: parent index, CS:IP as (CS << 16) | IP, samples
+    private int[] parents = new int[1024];
+    private int[] addresses = new int[1024];
+    private long[] samples = new long[1024];
+    private int nodeCount = 1;
+    
+    // open addressing (parent, CS:IP, leaf) -> node index + 1, 0 is empty
+    private long[] keys = new long[2048];
+    private int[] values = new int[2048];
+    
+    private int node = ROOT;
+    private int depth;
+    /** calls beyond MAX_DEPTH not returned from yet */
+    private int overflow;
+    
+    /** what the instruction being executed does to the call stack */
+    private int kind;
+    
+    /**
+     * @param interval instructions between two samples
+     */
+    public Profiler(int interval) {
+        this.interval = interval;
+        countdown = interval;
+    }
+    
+    /**
+     * Called before an instruction executes.
+     * 
+     * @param next the byte after the opcode, the ModRM byte of group 5
+     */
+    void before(byte opcode, byte next, int cs, int ip) {
+        ++opcodeCounts[opcode & 0xff];
+        if (--countdown == 0) {
+            countdown = interval;
+            ++samples[child(node, (cs << 16) | ip, LEAF)];
+            ++sampleCount;
+        }
+        
+        switch (opcode & 0xff) {
+            case 0xE8: // CALL Jv
+            case 0x9A: // CALL Ap
+                kind = KIND_CALL;
+                break;
+            case 0xFF: { // CALL Ev, CALL Mp
+                int reg = (next >> 3) & 0x07;
+                kind = reg == 2 || reg == 3 ? KIND_CALL : KIND_NONE;
+                break;
+            }
+            case 0xC2: // RET Iw
+            case 0xC3: // RET
+            case 0xCA: // RETF Iw
+            case 0xCB: // RETF
+            case 0xCF: // IRET
+                kind = KIND_RETURN;
+                break;
+            default:
+                kind = KIND_NONE;
+                break;
+        }
+    }
+    
+    /**
+     * Called after an instruction executed, with the next CS:IP.
+     */
+    void after(int cs, int ip) {
+        if (kind == KIND_CALL) {
+            call(cs, ip);
+        } else if (kind == KIND_RETURN) {
+            if (overflow > 0) {
+                --overflow;
+            } else if (depth > 0) {
+                node = parents[node];
+                --depth;
+            }
+        }
+        kind = KIND_NONE;
+    }
+    
+    /**
+     * Called on entry to an interrupt handler, for INT as well as hardware
+     * interrupts.
+     */
+    void interrupt(int cs, int ip) {
+        call(cs, ip);
+    }
+    
+    private void call(int cs, int ip) {
+        if (depth == MAX_DEPTH) {
+            ++overflow;
+            return;
+        }
+        node = child(node, (cs << 16) | ip, 0);
+        ++depth;
+    }
+    
+    /**
+     * Returns the node for the function or leaf under parent, adding it if
+     * needed.
+     */
+    private int child(int parent, int address, long leaf) {
+        long key = ((long) parent << 33) | leaf | (address & 0xffffffffL);
+        int mask = keys.length - 1;
+        int i = (int) (key ^ (key >>> 29) ^ (key >>> 41)) * 0x9E3779B9 & mask;
+        while (values[i] != 0) {
+            if (keys[i] == key) {
+                return values[i] - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        
+        int index = nodeCount++;
+        if (index == parents.length) {
+            parents = Arrays.copyOf(parents, index * 2);
+            addresses = Arrays.copyOf(addresses, index * 2);
+            samples = Arrays.copyOf(samples, index * 2);
+        }
+        parents[index] = parent;
+        addresses[index] = address;
+        keys[i] = key;
+        values[i] = index + 1;
+        if (nodeCount * 2 > keys.length) {
+            rehash();
+        }
+        return index;
+    }
+    
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; ++j) {
+            if (oldValues[j] == 0) {
+                continue;
+            }
+            long key = oldKeys[j];
+            int i = (int) (key ^ (key >>> 29) ^ (key >>> 41)) * 0x9E3779B9 & mask;
+            while (values[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = oldValues[j];
+        }
+    }
+    
+    /**
+     * Returns the number of instructions executed per opcode, prefixes
+     * count as instructions of their own.
+     */
+    public long[] getOpcodeCounts() {
+        return opcodeCounts.clone();
+    }
+    
+    public long getSampleCount() {
+        return sampleCount;
+    }
+    
+    /**
+     * Returns the current depth of the shadow call stack.
+     */
+    public int getDepth() {
+        return depth + overflow;
+    }
+    
+    /**
+     * Writes one line per sampled stack, outermost function first, the
+     * sampled CS:IP last, followed by the number of samples:
+     * <pre>
+     * F000:E05B;F000:1234;F000:1240 17
+     * </pre>
+     */
+    public void writeFolded(Writer out) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int[] path = new int[MAX_DEPTH + 2];
+        for (int i = 1; i < nodeCount; ++i) {
+            if (samples[i] == 0) {
+                continue;
+            }
+            int length = 0;
+            for (int n = i; n != ROOT; n = parents[n]) {
+                path[length++] = addresses[n];
+            }
+            line.setLength(0);
+            for (int j = length - 1; j >= 0; --j) {
+                line.append(String.format("%04X:%04X", path[j] >>> 16, path[j] & 0xffff));
+                line.append(j > 0 ? ';' : ' ');
+            }
+            line.append(samples[i]).append('\n');
+            out.write(line.toString());
+        }
+    }
+}
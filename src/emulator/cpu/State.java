@@ -17,15 +17,22 @@ public class State {
     public static final int DS_INDEX = 3;
     
     // flag masks
-    private static final int CARRY_FLAG_MASK = 0x0001;
-    private static final int PARITY_FLAG_MASK = 0x0004;
-    private static final int AUXILIARY_FLAG_MASK = 0x0010;
-    private static final int ZERO_FLAG_MASK = 0x0040;
-    private static final int SIGN_FLAG_MASK = 0x0080;
-    private static final int TRAP_FLAG_MASK = 0x0100;
-    private static final int INTERRUPT_FLAG_MASK = 0x0200;
-    private static final int DIRECTION_FLAG_MASK = 0x0400;
-    private static final int OVERFLOW_FLAG_MASK = 0x0800;
+    static final int CARRY_FLAG_MASK = 0x0001;
+    static final int PARITY_FLAG_MASK = 0x0004;
+    static final int AUXILIARY_FLAG_MASK = 0x0010;
+    static final int ZERO_FLAG_MASK = 0x0040;
+    static final int SIGN_FLAG_MASK = 0x0080;
+    static final int TRAP_FLAG_MASK = 0x0100;
+    static final int INTERRUPT_FLAG_MASK = 0x0200;
+    static final int DIRECTION_FLAG_MASK = 0x0400;
+    static final int OVERFLOW_FLAG_MASK = 0x0800;
+    
+    // operations recorded for lazy flag evaluation
+    static final int FLAGS_ADD = 0;
+    static final int FLAGS_SUB = 1;
+    static final int FLAGS_LOGIC = 2;
+    static final int FLAGS_SHL = 3;
+    static final int FLAGS_WIDE = 0x10;
     
     private int[] reg;
     private int[] sreg;
@@ -34,12 +41,39 @@ public class State {
     
     private int flags;
     
+    // Flags in lazyMask are not stored in flags yet; they are computed
+    // from the last ALU operation when somebody asks for them.
+    private int lazyMask;
+    private int lazyOp;
+    private int lazyV1;
+    private int lazyV2;
+    private int lazyCarry;
+    private int lazyResult;
+    
     public State() {
         reg = new int[8];
         sreg = new int[4];
         reset();
     }
     
+    /**
+     * Returns an independent copy, pending lazy flags included.
+     */
+    public State copy() {
+        State copy = new State();
+        System.arraycopy(reg, 0, copy.reg, 0, reg.length);
+        System.arraycopy(sreg, 0, copy.sreg, 0, sreg.length);
+        copy.ip = ip;
+        copy.flags = flags;
+        copy.lazyMask = lazyMask;
+        copy.lazyOp = lazyOp;
+        copy.lazyV1 = lazyV1;
+        copy.lazyV2 = lazyV2;
+        copy.lazyCarry = lazyCarry;
+        copy.lazyResult = lazyResult;
+        return copy;
+    }
+    
     public void reset() {
         for (int i = 0; i < 8; ++i) {
             reg[i] = 0;
@@ -212,12 +246,97 @@ public class State {
     
     public void setFlags(int value) {
         flags = value;
+        lazyMask = 0;
     }
     
     public int getFlags() {
+        if (lazyMask != 0) {
+            materialize(lazyMask);
+        }
         return flags;
     }
     
+    /**
+     * Records an ALU operation instead of computing its flags. The flags in
+     * mask are derived from it on demand.
+     * 
+     * @param op one of FLAGS_ADD, FLAGS_SUB, FLAGS_LOGIC, FLAGS_SHL, or'ed
+     *        with FLAGS_WIDE for 16-bit operations
+     * @param result unmasked result, including the carry/borrow bits
+     */
+    void setLazyFlags(int op, int mask, int v1, int v2, int carry, int result) {
+        if ((lazyMask & ~mask) != 0) {
+            materialize(lazyMask & ~mask);
+        }
+        lazyMask = mask;
+        lazyOp = op;
+        lazyV1 = v1;
+        lazyV2 = v2;
+        lazyCarry = carry;
+        lazyResult = result;
+    }
+    
+    private void materialize(int mask) {
+        for (int bit = 1; bit <= mask; bit <<= 1) {
+            if ((mask & bit) != 0) {
+                if (evaluate(bit)) {
+                    flags |= bit;
+                } else {
+                    flags &= ~bit;
+                }
+            }
+        }
+        lazyMask &= ~mask;
+    }
+    
+    private boolean evaluate(int mask) {
+        boolean wide = (lazyOp & FLAGS_WIDE) != 0;
+        int op = lazyOp & ~FLAGS_WIDE;
+        int r = lazyResult;
+        
+        switch (mask) {
+            case CARRY_FLAG_MASK:
+                if (op == FLAGS_SHL) {
+                    return (r & 0x10000) != 0;
+                }
+                return (r & (wide ? 0xFFFF0000 : 0xFF00)) != 0;
+            case PARITY_FLAG_MASK:
+                return (Integer.bitCount(r & 0xff) & 1) == 0;
+            case AUXILIARY_FLAG_MASK:
+                switch (op) {
+                    case FLAGS_ADD:
+                        return (lazyV1 & 0xf) + (lazyV2 & 0xf) + lazyCarry > 0xf;
+                    case FLAGS_SUB:
+                        return (lazyV1 & 0xf) < (lazyV2 & 0xf);
+                    case FLAGS_SHL:
+                        return (r & 0x10) != 0;
+                    default:
+                        return false;
+                }
+            case ZERO_FLAG_MASK:
+                return (short) r == 0;
+            case SIGN_FLAG_MASK:
+                return (r & (wide ? 0x8000 : 0x80)) != 0;
+            case OVERFLOW_FLAG_MASK:
+                switch (op) {
+                    case FLAGS_ADD:
+                        return overflows(wide, (short) lazyV1 + (short) lazyV2 + lazyCarry);
+                    case FLAGS_SUB:
+                        return overflows(wide, wide ? (short) lazyV1 - (short) lazyV2 : (byte) lazyV1 - (byte) lazyV2);
+                    case FLAGS_SHL:
+                        return ((r >> 16) & 0x1) != ((r >> 15) & 0x1);
+                    default:
+                        return false;
+                }
+            default:
+                throw new IllegalArgumentException("Not a lazy flag: " + mask);
+        }
+    }
+    
+    private static boolean overflows(boolean wide, int v) {
+        return wide ? v > 0x7fff || v < -0x8000 : v > 0x7f || v < -0x80;
+    }
+    
     public boolean getCarryFlag() {
         return getFlag(CARRY_FLAG_MASK);
     }
@@ -291,6 +410,7 @@ public class State {
     }
     
     private void setFlag(int mask, boolean value) {
+        lazyMask &= ~mask;
         if (value) {
             flags |= mask;
         } else {
@@ -299,6 +419,9 @@ public class State {
     }
     
     private boolean getFlag(int mask) {
+        if ((lazyMask & mask) != 0) {
+            return evaluate(mask);
+        }
         return (flags & mask) == mask;
     }
 
@@ -314,6 +437,7 @@ public class State {
     
     public String toString()
     {
+        int flags = getFlags();
         StringBuffer sb = new StringBuffer();
         sb.append("AX=");  sb.append(wordToHex(getAX()));
         sb.append(" BX="); sb.append(wordToHex(getBX()));
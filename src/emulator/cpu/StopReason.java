@@ -0,0 +1,19 @@
+package emulator.cpu;
+
+/**
+ * Why {@link Cpu#run(long)} returned.
+ */
+public enum StopReason {
+    /** the instruction budget is used up */
+    BUDGET,
+    /** the deadline of runUntil() has passed */
+    DEADLINE,
+    /** HLT executed, the CPU waits for an interrupt */
+    HALT,
+    /** CS:IP reached a breakpoint */
+    BREAKPOINT,
+    /** the last instruction accessed memory under a watchpoint */
+    WATCHPOINT,
+    /** an opcode the CPU does not implement */
+    INVALID_OPCODE
+}
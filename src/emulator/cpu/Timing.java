@@ -0,0 +1,231 @@
+package emulator.cpu;
+
+/**
+ * 8086 clock cycles per instruction, from the Intel 8086 user's manual.
+ * Where the manual gives a range, such as for MUL and DIV, the middle is
+ * used. Not modelled: the 4 cycles per word transferred at an odd
+ * address, the bus interface unit's prefetch queue and shifts by CL
+ * taking 4 cycles per bit.
+ */
+final class Timing {
+    
+    /** accepting a hardware interrupt, up to the first handler instruction */
+    static final int HARDWARE_INTERRUPT = 61;
+    
+    /** per opcode, register operand or no ModRM byte */
+    private static final short[] REGISTER = new short[256];
+    /** per opcode, memory operand, without the effective address */
+    private static final short[] MEMORY = new short[256];
+    
+    // groups by ModRM reg field, register and memory operand
+    private static final short[][] GROUP_REGISTER = new short[256][];
+    private static final short[][] GROUP_MEMORY = new short[256][];
+    
+    /** effective address calculation per ModRM byte */
+    private static final byte[] EA = new byte[256];
+    
+    /** added when a conditional branch is taken */
+    private static final byte[] TAKEN = new byte[256];
+    
+    // REP MOVS, STOS, LODS: start and per element
+    private static final int REP_START = 9;
+    private static final int[] REP_ELEMENT = new int[256];
+    
+    static {
+        for (int row = 0x00; row < 0x40; row += 0x08) {
+            set(row, row + 1, 3, 16); // ALU Eb Gb, Ev Gv
+            set(row + 2, row + 3, 3, 9); // ALU Gb Eb, Gv Ev
+            set(row + 4, row + 5, 4); // ALU AL Ib, AX Iv
+        }
+        set(0x38, 0x39, 3, 9); // CMP Eb Gb, Ev Gv
+        set(0x06, 10); // PUSH ES
+        set(0x0E, 10); // PUSH CS
+        set(0x16, 10); // PUSH SS
+        set(0x1E, 10); // PUSH DS
+        set(0x07, 8); // POP ES
+        set(0x17, 8); // POP SS
+        set(0x1F, 8); // POP DS
+        set(0x26, 2); // ES:
+        set(0x2E, 2); // CS:
+        set(0x36, 2); // SS:
+        set(0x3E, 2); // DS:
+        set(0x27, 4); // DAA
+        set(0x2F, 4); // DAS
+        set(0x37, 8); // AAA
+        set(0x3F, 8); // AAS
+        set(0x40, 0x4F, 2); // INC, DEC r16
+        set(0x50, 0x57, 11); // PUSH r16
+        set(0x58, 0x5F, 8); // POP r16
+        set(0x70, 0x7F, 4); // Jcc
+        set(0x80, 0x83, 4, 17); // GRP1
+        group(0x80, 0x83, 7, 4, 10); // CMP Eb Ib ...
+        set(0x84, 0x85, 3, 9); // TEST
+        set(0x86, 0x87, 4, 17); // XCHG
+        set(0x88, 0x89, 2, 9); // MOV Eb Gb, Ev Gv
+        set(0x8A, 0x8B, 2, 8); // MOV Gb Eb, Gv Ev
+        set(0x8C, 0x8C, 2, 9); // MOV Ew Sw
+        set(0x8D, 0x8D, 2, 2); // LEA
+        set(0x8E, 0x8E, 2, 8); // MOV Sw Ew
+        set(0x8F, 0x8F, 8, 17); // POP Ev
+        set(0x90, 0x97, 3); // XCHG AX r16, NOP
+        set(0x98, 2); // CBW
+        set(0x99, 5); // CWD
+        set(0x9A, 28); // CALL Ap
+        set(0x9B, 4); // WAIT
+        set(0x9C, 10); // PUSHF
+        set(0x9D, 8); // POPF
+        set(0x9E, 0x9F, 4); // SAHF, LAHF
+        set(0xA0, 0xA3, 10); // MOV AL/AX Ob/Ov
+        set(0xA4, 0xA5, 18); // MOVS
+        set(0xA6, 0xA7, 22); // CMPS
+        set(0xA8, 0xA9, 4); // TEST AL Ib, AX Iv
+        set(0xAA, 0xAB, 11); // STOS
+        set(0xAC, 0xAD, 12); // LODS
+        set(0xAE, 0xAF, 15); // SCAS
+        set(0xB0, 0xBF, 4); // MOV r Ib, r Iv
+        set(0xC2, 12); // RET Iw
+        set(0xC3, 8); // RET
+        set(0xC4, 0xC5, 16, 16); // LES, LDS
+        set(0xC6, 0xC7, 4, 10); // MOV Eb Ib, Ev Iv
+        set(0xCA, 17); // RETF Iw
+        set(0xCB, 18); // RETF
+        set(0xCC, 52); // INT 3
+        set(0xCD, 51); // INT Ib
+        set(0xCE, 4); // INTO, not taken
+        set(0xCF, 24); // IRET
+        set(0xD0, 0xD1, 2, 15); // GRP2 by 1
+        set(0xD2, 0xD3, 8, 20); // GRP2 by CL
+        set(0xD4, 83); // AAM
+        set(0xD5, 60); // AAD
+        set(0xD7, 11); // XLAT
+        set(0xD8, 0xDF, 2, 8); // ESC
+        set(0xE0, 5); // LOOPNZ
+        set(0xE1, 6); // LOOPZ
+        set(0xE2, 5); // LOOP
+        set(0xE3, 6); // JCXZ
+        set(0xE4, 0xE7, 10); // IN, OUT Ib
+        set(0xE8, 19); // CALL Jv
+        set(0xE9, 0xEB, 15); // JMP Jv, Ap, Jb
+        set(0xEC, 0xEF, 8); // IN, OUT DX
+        set(0xF0, 2); // LOCK
+        set(0xF2, 0xF3, 2); // REPNZ, REP
+        set(0xF4, 2); // HLT
+        set(0xF5, 2); // CMC
+        set(0xF8, 0xFD, 2); // CLC .. STD
+        
+        set(0xF6, 0xF7, 3, 16); // GRP3: NOT, NEG
+        group(0xF6, 0xF7, 0, 5, 11); // TEST Ib/Iv
+        group(0xF6, 0xF6, 4, 74, 80); // MUL Eb
+        group(0xF6, 0xF6, 5, 89, 95); // IMUL Eb
+        group(0xF6, 0xF6, 6, 85, 91); // DIV Eb
+        group(0xF6, 0xF6, 7, 107, 113); // IDIV Eb
+        group(0xF7, 0xF7, 4, 126, 132); // MUL Ev
+        group(0xF7, 0xF7, 5, 141, 147); // IMUL Ev
+        group(0xF7, 0xF7, 6, 153, 159); // DIV Ev
+        group(0xF7, 0xF7, 7, 175, 181); // IDIV Ev
+        set(0xFE, 0xFE, 3, 15); // GRP4: INC, DEC Eb
+        set(0xFF, 0xFF, 2, 15); // GRP5: INC, DEC Ev
+        group(0xFF, 0xFF, 2, 16, 21); // CALL Ev
+        group(0xFF, 0xFF, 3, 37, 37); // CALL Mp
+        group(0xFF, 0xFF, 4, 11, 18); // JMP Ev
+        group(0xFF, 0xFF, 5, 24, 24); // JMP Mp
+        group(0xFF, 0xFF, 6, 11, 16); // PUSH Ev
+        
+        for (int opcode = 0x70; opcode <= 0x7F; ++opcode) {
+            TAKEN[opcode] = 12;
+        }
+        TAKEN[0xE0] = 14;
+        TAKEN[0xE1] = 12;
+        TAKEN[0xE2] = 12;
+        TAKEN[0xE3] = 12;
+        
+        REP_ELEMENT[0xA4] = 17; // MOVS
+        REP_ELEMENT[0xAA] = 10; // STOS
+        REP_ELEMENT[0xAC] = 13; // LODS
+        
+        // BX+SI, BX+DI, BP+SI, BP+DI, SI, DI, BP or disp16, BX
+        final int[] base = {7, 8, 8, 7, 5, 5, 5, 5};
+        for (int modRM = 0; modRM < 0xC0; ++modRM) {
+            int mode = modRM >> 6;
+            int rm = modRM & 0x07;
+            if (mode == 0) {
+                EA[modRM] = (byte) (rm == 6 ? 6 : base[rm]);
+            } else {
+                EA[modRM] = (byte) (base[rm] + 4);
+            }
+        }
+    }
+    
+    private Timing() {
+    }
+    
+    private static void set(int opcode, int cycles) {
+        set(opcode, opcode, cycles, cycles);
+    }
+    
+    private static void set(int first, int last, int cycles) {
+        set(first, last, cycles, cycles);
+    }
+    
+    private static void set(int first, int last, int register, int memory) {
+        for (int opcode = first; opcode <= last; ++opcode) {
+            REGISTER[opcode] = (short) register;
+            MEMORY[opcode] = (short) memory;
+            GROUP_REGISTER[opcode] = null;
+            GROUP_MEMORY[opcode] = null;
+        }
+    }
+    
+    /**
+     * Overrides the cycles of one reg field of a group, the others keep
+     * those of the opcode.
+     */
+    private static void group(int first, int last, int regIdx, int register, int memory) {
+        for (int opcode = first; opcode <= last; ++opcode) {
+            if (null == GROUP_REGISTER[opcode]) {
+                GROUP_REGISTER[opcode] = new short[8];
+                GROUP_MEMORY[opcode] = new short[8];
+                for (int i = 0; i < 8; ++i) {
+                    GROUP_REGISTER[opcode][i] = REGISTER[opcode];
+                    GROUP_MEMORY[opcode][i] = MEMORY[opcode];
+                }
+            }
+            GROUP_REGISTER[opcode][regIdx] = (short) register;
+            GROUP_MEMORY[opcode][regIdx] = (short) memory;
+        }
+    }
+    
+    /**
+     * Returns the cycles of an instruction, with its effective address but
+     * without a taken branch or REP iterations.
+     * 
+     * @param modRM ignored unless the opcode takes a ModRM byte
+     */
+    static int cycles(int opcode, int modRM) {
+        if (!InstructionFormat.hasModRM((byte) opcode)) {
+            return REGISTER[opcode];
+        }
+        int regIdx = (modRM >> 3) & 0x07;
+        if (modRM >= 0xC0) {
+            return null != GROUP_REGISTER[opcode] ? GROUP_REGISTER[opcode][regIdx] : REGISTER[opcode];
+        }
+        return (null != GROUP_MEMORY[opcode] ? GROUP_MEMORY[opcode][regIdx] : MEMORY[opcode]) + EA[modRM];
+    }
+    
+    /**
+     * Returns what a taken conditional branch or loop costs on top of
+     * cycles(), 0 for other opcodes.
+     */
+    static int taken(int opcode) {
+        return TAKEN[opcode];
+    }
+    
+    /**
+     * Returns the cycles of a REP string instruction beyond those of its
+     * first execution, which cycles() already counts. May be negative for
+     * a count of 0.
+     */
+    static int repeated(int opcode, int count) {
+        return REP_START + count * REP_ELEMENT[opcode & 0xfe] - REGISTER[opcode];
+    }
+}
@@ -0,0 +1,73 @@
+package emulator.cpu;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Turns a binary trace written by {@link Tracer} into the text format of the
+ * old cpu.log, one line per record.
+ */
+public class TraceDecoder {
+    
+    public static void decode(Path file, Writer out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1024 * Tracer.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        State state = new State();
+        
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            while (channel.read(buf) >= 0 || buf.position() > 0) {
+                buf.flip();
+                if (buf.remaining() < Tracer.RECORD_SIZE) {
+                    break; // truncated record
+                }
+                while (buf.remaining() >= Tracer.RECORD_SIZE) {
+                    out.write(format(buf, state));
+                    out.write('\n');
+                }
+                buf.compact();
+            }
+        } finally {
+            channel.close();
+        }
+        out.flush();
+    }
+    
+    private static String format(ByteBuffer buf, State state) {
+        int pos = buf.position();
+        long number = buf.getLong(pos);
+        int type = buf.get(pos + 8);
+        byte opcode = buf.get(pos + 9);
+        int address = buf.getInt(pos + 12);
+        
+        state.setIP(buf.getShort(pos + 10));
+        for (int i = 0; i < 8; ++i) {
+            state.setReg(i, buf.getShort(pos + 16 + 2 * i));
+        }
+        for (int i = 0; i < 4; ++i) {
+            state.setSegReg(i, buf.getShort(pos + 32 + 2 * i));
+        }
+        state.setFlags(buf.getShort(pos + 40) & 0xffff);
+        buf.position(pos + Tracer.RECORD_SIZE);
+        
+        if (type == Tracer.TYPE_BLOCK) {
+            return String.format("%s: block 0x%X ", number, address) + state;
+        }
+        return String.format("%s: 0x%X ", number, opcode) + state;
+    }
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: TraceDecoder <trace file>");
+            System.exit(1);
+        }
+        decode(Paths.get(args[0]), new BufferedWriter(new OutputStreamWriter(System.out)));
+    }
+}
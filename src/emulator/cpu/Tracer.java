@@ -0,0 +1,209 @@
+package emulator.cpu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Instruction tracer. The CPU thread writes fixed-size binary records into a
+ * preallocated ring buffer, a background thread drains the buffer to a file.
+ * {@link TraceDecoder} turns the file back into text.
+ * <p>
+ * Record layout (little endian, {@link #RECORD_SIZE} bytes):
+ * <pre>
+ *  0 long   instruction number
+ *  8 byte   type, TYPE_INSTRUCTION or TYPE_BLOCK
+ *  9 byte   opcode
+ * 10 short  IP after the opcode (instruction) or after the block
+ * 12 int    linear address of a translated block
+ * 16 short  AX, CX, DX, BX, SP, BP, SI, DI
+ * 32 short  ES, CS, SS, DS
+ * 40 short  flags
+ * </pre>
+ */
+public class Tracer implements Closeable {
+    
+    public static final int RECORD_SIZE = 48;
+    
+    public static final int TYPE_INSTRUCTION = 0;
+    public static final int TYPE_BLOCK = 1;
+    
+    private static final long DRAIN_INTERVAL_NANOS = 100000;
+    
+    private final ByteBuffer ring;
+    private final int capacity;
+    
+    /** records written by the CPU thread */
+    private volatile long head;
+    /** records written to the file */
+    private volatile long tail;
+    
+    private final FileChannel channel;
+    private final Thread writer;
+    private volatile boolean closed;
+    private IOException error;
+    
+    // trigger: wait for CS:IP, then trace remaining instructions
+    private boolean armed;
+    private int triggerCS;
+    private int triggerIP;
+    private long remaining = Long.MAX_VALUE;
+    
+    private long stalls;
+    
+    /**
+     * @param capacity ring buffer size in records
+     */
+    public Tracer(Path file, int capacity) throws IOException {
+        this.capacity = capacity;
+        ring = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "tracer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Traces nothing until an instruction at cs:ip starts, then traces the
+     * given number of instructions.
+     */
+    public void setTrigger(int cs, int ip, long count) {
+        armed = true;
+        triggerCS = cs & 0xffff;
+        triggerIP = ip & 0xffff;
+        remaining = count;
+    }
+    
+    /**
+     * Traces the given number of instructions starting now.
+     */
+    public void setLimit(long count) {
+        armed = false;
+        remaining = count;
+    }
+    
+    /**
+     * Returns how many times the CPU thread had to wait for the writer
+     * because the ring buffer was full.
+     */
+    public long getStalls() {
+        return stalls;
+    }
+    
+    public long getRecordCount() {
+        return head;
+    }
+    
+    /**
+     * Returns true while the CPU has to interpret so that the trigger and
+     * the limit count single instructions, not translated blocks.
+     */
+    boolean isCounting() {
+        return armed || (remaining > 0 && remaining != Long.MAX_VALUE);
+    }
+    
+    void instruction(long number, byte opcode, State state) {
+        if (armed) {
+            if (state.getCS() != triggerCS || ((state.getIP() - 1) & 0xffff) != triggerIP) {
+                return;
+            }
+            armed = false;
+        }
+        if (remaining <= 0) {
+            return;
+        }
+        --remaining;
+        put(number, TYPE_INSTRUCTION, opcode, 0, state);
+    }
+    
+    void block(long number, int address, State state) {
+        if (armed || remaining <= 0) {
+            return;
+        }
+        --remaining;
+        put(number, TYPE_BLOCK, (byte) 0, address, state);
+    }
+    
+    private void put(long number, int type, byte opcode, int address, State state) {
+        long h = head;
+        if (h - tail >= capacity) {
+            ++stalls;
+            do {
+                Thread.yield();
+            } while (h - tail >= capacity && !closed);
+        }
+        
+        int pos = (int) (h % capacity) * RECORD_SIZE;
+        ring.putLong(pos, number);
+        ring.put(pos + 8, (byte) type);
+        ring.put(pos + 9, opcode);
+        ring.putShort(pos + 10, (short) state.getIP());
+        ring.putInt(pos + 12, address);
+        for (int i = 0; i < 8; ++i) {
+            ring.putShort(pos + 16 + 2 * i, (short) state.getReg(i));
+        }
+        for (int i = 0; i < 4; ++i) {
+            ring.putShort(pos + 32 + 2 * i, (short) state.getSegReg(i));
+        }
+        ring.putShort(pos + 40, (short) state.getFlags());
+        head = h + 1;
+    }
+    
+    private void drain() {
+        try {
+            while (true) {
+                boolean last = closed;
+                long h = head;
+                long t = tail;
+                while (t < h) {
+                    // write up to the end of the ring, the rest in the next round
+                    int from = (int) (t % capacity);
+                    int count = (int) Math.min(h - t, capacity - from);
+                    ByteBuffer chunk = ring.duplicate();
+                    chunk.limit((from + count) * RECORD_SIZE).position(from * RECORD_SIZE);
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                    t += count;
+                    tail = t;
+                }
+                if (last) {
+                    break;
+                }
+                LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+            }
+        } catch (IOException e) {
+            error = e;
+            closed = true;
+        }
+    }
+    
+    /**
+     * Writes out the remaining records and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (null != error) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package emulator.cpu;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import emulator.HeapMemory;
+import emulator.Memory;
+
+public class TracerTest {
+    
+    private Cpu load(int... code) {
+        byte[] data = new byte[code.length];
+        for (int i = 0; i < code.length; ++i) {
+            data[i] = (byte) code[i];
+        }
+        Memory mem = new HeapMemory(0x100000);
+        mem.loadData(0xffff0, new byte[] {(byte) 0xEA, 0x00, 0x01, 0x00, 0x00});
+        mem.loadData(0x100, data);
+        return new Cpu(mem);
+    }
+    
+    private String[] trace(Cpu cpu, Tracer tracer, File file, int steps) throws Exception {
+        cpu.setTracer(tracer);
+        for (int i = 0; i < steps; ++i) {
+            cpu.step();
+        }
+        tracer.close();
+        
+        StringWriter out = new StringWriter();
+        TraceDecoder.decode(file.toPath(), out);
+        return out.toString().split("\n");
+    }
+    
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = File.createTempFile("trace", ".bin");
+        file.deleteOnExit();
+        Cpu cpu = load(
+                0xB8, 0x34, 0x12,       // MOV AX, 1234
+                0x40);                  // INC AX
+        // a tiny ring makes the CPU wait for the writer
+        String[] lines = trace(cpu, new Tracer(file.toPath(), 2), file, 3);
+        
+        // records hold the state before each instruction executes
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("1: 0xEA "));
+        assertTrue(lines[1], lines[1].startsWith("2: 0xB8 AX=0000 "));
+        assertTrue(lines[1], lines[1].endsWith("CS:IP=0000:0100"));
+        assertTrue(lines[2], lines[2].startsWith("3: 0x40 AX=1234 "));
+        assertTrue(lines[2], lines[2].endsWith("CS:IP=0000:0103"));
+    }
+    
+    @Test
+    public void testTrigger() throws Exception {
+        File file = File.createTempFile("trace", ".bin");
+        file.deleteOnExit();
+        Cpu cpu = load(
+                0xB9, 0x05, 0x00,       // MOV CX, 5
+                0x46,                   // INC SI
+                0x49,                   // DEC CX
+                0x75, 0xFC);            // JNZ -4
+        Tracer tracer = new Tracer(file.toPath(), 16);
+        tracer.setTrigger(0, 0x104, 2);
+        String[] lines = trace(cpu, tracer, file, 1 + 1 + 5 * 3);
+        
+        assertEquals(2, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("4: 0x49 "));
+        assertTrue(lines[1], lines[1].startsWith("5: 0x75 "));
+    }
+    
+    @Test
+    public void testTriggerTranslated() throws Exception {
+        File file = File.createTempFile("trace", ".bin");
+        file.deleteOnExit();
+        Cpu cpu = load(
+                0xB9, 0x05, 0x00,       // MOV CX, 5
+                0x46,                   // INC SI
+                0x49,                   // DEC CX
+                0x75, 0xFC);            // JNZ -4
+        cpu.setTranslationEnabled(true);
+        cpu.setTranslationThreshold(1);
+        Tracer tracer = new Tracer(file.toPath(), 16);
+        // the start of the loop block, counted in instructions
+        tracer.setTrigger(0, 0x103, 4);
+        String[] lines = trace(cpu, tracer, file, 1 + 1 + 5 * 3);
+        
+        assertEquals(4, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("3: 0x46 "));
+        assertTrue(lines[3], lines[3].startsWith("6: 0x46 "));
+    }
+}
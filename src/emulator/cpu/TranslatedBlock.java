@@ -0,0 +1,17 @@
+package emulator.cpu;
+
+import emulator.Memory;
+
+/**
+ * Base class of the classes generated by {@link Translator}.
+ */
+abstract class TranslatedBlock {
+    
+    /**
+     * Runs the translated instructions of the block and leaves IP at the
+     * next instruction to execute.
+     * 
+     * @return number of instructions executed
+     */
+    abstract int execute(Cpu cpu, State state, Memory mem, BasicBlock block);
+}
@@ -0,0 +1,375 @@
+package emulator.cpu;
+
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Translates hot basic blocks into hidden classes. The generated code calls
+ * {@link State}, {@link emulator.Memory} and the ALU helpers of {@link Cpu}
+ * directly with the operands of the block baked in as constants, so the JIT
+ * sees the whole block as one method.
+ * <p>
+ * Translation stops at the first unsupported instruction; the rest of the
+ * block is left to the interpreter. Branches are only translated as the last
+ * instruction of a block. After every instruction that writes memory the
+ * generated code checks that the block is still valid and returns early if
+ * it has overwritten itself.
+ */
+final class Translator {
+    
+    private static final String CPU = "emulator/cpu/Cpu";
+    private static final String STATE = "emulator/cpu/State";
+    private static final String MEMORY = "emulator/Memory";
+    private static final String BLOCK = "emulator/cpu/BasicBlock";
+    private static final String EXECUTE_DESC = "(L" + CPU + ";L" + STATE + ";L" + MEMORY + ";L" + BLOCK + ";)I";
+    
+    // locals of the generated method
+    private static final int CPU_VAR = 1;
+    private static final int STATE_VAR = 2;
+    private static final int MEMORY_VAR = 3;
+    private static final int BLOCK_VAR = 4;
+    private static final int IP_VAR = 5;
+    
+    /** full privilege lookup on Cpu, so generated classes are nestmates of Cpu */
+    private final MethodHandles.Lookup lookup;
+    
+    private long translated;
+    private long failed;
+    
+    Translator(MethodHandles.Lookup lookup) {
+        this.lookup = lookup;
+    }
+    
+    /**
+     * Returns the translation of the given block, or null if its first
+     * instruction is not supported.
+     */
+    TranslatedBlock translate(BasicBlock block) throws Exception {
+        ClassBuilder cb = new ClassBuilder(
+                String.format("emulator/cpu/Block_%05X", block.address), "emulator/cpu/TranslatedBlock");
+        
+        cb.local(ClassBuilder.ALOAD, STATE_VAR);
+        cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "getIP", "()I");
+        cb.local(ClassBuilder.ISTORE, IP_VAR);
+        
+        int count = 0;
+        int offs = 0;
+        boolean branched = false;
+        for (DecodedInstruction insn : block.instructions) {
+            int next = offs + insn.bytes.length;
+            int result = emit(cb, insn, next, count + 1);
+            if (result == UNSUPPORTED) {
+                break;
+            }
+            ++count;
+            offs = next;
+            if (result == BRANCH) {
+                branched = true;
+                break;
+            }
+            if (result == WRITES_MEMORY) {
+                emitValidCheck(cb, offs, count);
+            }
+        }
+        
+        if (count == 0) {
+            ++failed;
+            return null;
+        }
+        if (!branched) {
+            emitSetIP(cb, offs);
+        }
+        cb.iconst(count);
+        cb.op(ClassBuilder.IRETURN);
+        
+        byte[] bytes = cb.build("execute", EXECUTE_DESC, 8, 6);
+        Class<?> c = lookup.defineHiddenClass(bytes, true, MethodHandles.Lookup.ClassOption.NESTMATE).lookupClass();
+        ++translated;
+        return (TranslatedBlock) c.getDeclaredConstructor().newInstance();
+    }
+    
+    long getTranslatedCount() {
+        return translated;
+    }
+    
+    long getFailedCount() {
+        return failed;
+    }
+    
+    private static final int UNSUPPORTED = 0;
+    private static final int SIMPLE = 1;
+    private static final int WRITES_MEMORY = 2;
+    private static final int BRANCH = 3;
+    
+    private int emit(ClassBuilder cb, DecodedInstruction insn, int next, int count) throws Exception {
+        int opcode = insn.bytes[0] & 0xff;
+        int reg = opcode & 0x07;
+        
+        if (opcode >= 0xB0 && opcode <= 0xB7) { // MOV r8 Ib
+            state(cb);
+            cb.iconst(reg);
+            cb.iconst(insn.bytes[1]);
+            cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "setReg8", "(IB)V");
+            return SIMPLE;
+        }
+        if (opcode >= 0xB8 && opcode <= 0xBF) { // MOV r16 Iv
+            state(cb);
+            cb.iconst(reg);
+            cb.iconst(imm16(insn, 1));
+            cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "setReg", "(II)V");
+            return SIMPLE;
+        }
+        if (opcode >= 0x40 && opcode <= 0x4F) { // INC r16, DEC r16
+            state(cb);
+            cb.iconst(reg);
+            cpu(cb);
+            getReg16(cb, reg);
+            cb.invoke(ClassBuilder.INVOKEVIRTUAL, CPU, opcode < 0x48 ? "inc16" : "dec16", "(I)S");
+            cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "setReg", "(II)V");
+            return SIMPLE;
+        }
+        if (opcode >= 0x50 && opcode <= 0x57) { // PUSH r16
+            cpu(cb);
+            getReg16(cb, reg);
+            cb.invoke(ClassBuilder.INVOKEVIRTUAL, CPU, "push", "(I)V");
+            return WRITES_MEMORY;
+        }
+        if (opcode >= 0x58 && opcode <= 0x5F) { // POP r16
+            state(cb);
+            cb.iconst(reg);
+            cpu(cb);
+            cb.invoke(ClassBuilder.INVOKEVIRTUAL, CPU, "pop", "()S");
+            cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "setReg", "(II)V");
+            return SIMPLE;
+        }
+        
+        String alu = getAluHelper(opcode);
+        if (null != alu && opcode <= 0x3F && (opcode & 0x07) < 4) { // ALU Eb Gb .. Gv Ev
+            if (insn.getMode() != 3) {
+                return UNSUPPORTED;
+            }
+            boolean wide = (opcode & 0x01) != 0;
+            boolean toReg = (opcode & 0x02) != 0;
+            int dst = toReg ? insn.getRegIdx() : insn.getMemIdx();
+            int src = toReg ? insn.getMemIdx() : insn.getRegIdx();
+            boolean cmp = (opcode & 0xF8) == 0x38;
+            if (!cmp) {
+                state(cb);
+                cb.iconst(dst);
+            }
+            cpu(cb);
+            if (wide) {
+                getReg16(cb, dst);
+                getReg16(cb, src);
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, CPU, alu + "16", "(II)S");
+            } else {
+                getReg8(cb, dst);
+                getReg8(cb, src);
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, CPU, alu + "8", "(BB)B");
+            }
+            if (cmp) {
+                cb.op(ClassBuilder.POP);
+            } else {
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, wide ? "setReg" : "setReg8", wide ? "(II)V" : "(IB)V");
+            }
+            return SIMPLE;
+        }
+        if (null != alu && opcode <= 0x3F && (opcode & 0x07) < 6) { // ALU AL Ib, AX Iv
+            boolean wide = (opcode & 0x01) != 0;
+            boolean cmp = (opcode & 0xF8) == 0x38;
+            if (!cmp) {
+                state(cb);
+            }
+            cpu(cb);
+            state(cb);
+            if (wide) {
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "getAX", "()I");
+                cb.iconst(imm16(insn, 1));
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, CPU, alu + "16", "(II)S");
+            } else {
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "getAL", "()B");
+                cb.iconst(insn.bytes[1]);
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, CPU, alu + "8", "(BB)B");
+            }
+            if (cmp) {
+                cb.op(ClassBuilder.POP);
+            } else {
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, wide ? "setAX" : "setAL", wide ? "(I)V" : "(B)V");
+            }
+            return SIMPLE;
+        }
+        
+        switch (opcode) {
+            case 0x88: // MOV Eb Gb
+            case 0x8A: // MOV Gb Eb
+                if (insn.getMode() != 3) {
+                    return UNSUPPORTED;
+                }
+                state(cb);
+                cb.iconst(opcode == 0x88 ? insn.getMemIdx() : insn.getRegIdx());
+                getReg8(cb, opcode == 0x88 ? insn.getRegIdx() : insn.getMemIdx());
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "setReg8", "(IB)V");
+                return SIMPLE;
+            case 0x89: // MOV Ev Gv
+            case 0x8B: // MOV Gv Ev
+                if (insn.getMode() != 3) {
+                    return UNSUPPORTED;
+                }
+                state(cb);
+                cb.iconst(opcode == 0x89 ? insn.getMemIdx() : insn.getRegIdx());
+                getReg16(cb, opcode == 0x89 ? insn.getRegIdx() : insn.getMemIdx());
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "setReg", "(II)V");
+                return SIMPLE;
+            case 0xA0: // MOV AL Ob
+                state(cb);
+                memory(cb);
+                dsAddress(cb, imm16(insn, 1));
+                cb.invokeInterface(MEMORY, "getByte", "(I)B", 1);
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "setAL", "(B)V");
+                return SIMPLE;
+            case 0xA1: // MOV AX Ov
+                state(cb);
+                memory(cb);
+                dsAddress(cb, imm16(insn, 1));
+                cb.invokeInterface(MEMORY, "getWord", "(I)S", 1);
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "setAX", "(I)V");
+                return SIMPLE;
+            case 0xA2: // MOV Ob AL
+                memory(cb);
+                dsAddress(cb, imm16(insn, 1));
+                state(cb);
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "getAL", "()B");
+                cb.invokeInterface(MEMORY, "setByte", "(IB)V", 2);
+                return WRITES_MEMORY;
+            case 0xA3: // MOV Ov AX
+                memory(cb);
+                dsAddress(cb, imm16(insn, 1));
+                state(cb);
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "getAX", "()I");
+                cb.invokeInterface(MEMORY, "setWord", "(IS)V", 2);
+                return WRITES_MEMORY;
+            case 0xFA: // CLI
+            case 0xFB: // STI
+                cpu(cb);
+                cb.iconst(opcode & 0x01);
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, CPU, "setInterruptFlag", "(Z)V");
+                return SIMPLE;
+            case 0xFC: // CLD
+            case 0xFD: // STD
+                state(cb);
+                cb.iconst(opcode & 0x01);
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "setDirectionFlag", "(Z)V");
+                return SIMPLE;
+            case 0x72: // JB Jb
+            case 0x73: // JNB Jb
+            case 0x74: // JZ Jb
+            case 0x75: // JNZ Jb
+            case 0x76: // JBE Jb
+            case 0x77: // JA Jb
+                int notTaken = cb.newLabel();
+                state(cb);
+                cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, opcode < 0x74 ? "getCarryFlag" : "getZeroFlag", "()Z");
+                if (opcode >= 0x76) {
+                    state(cb);
+                    cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "getCarryFlag", "()Z");
+                    cb.op(ClassBuilder.IOR);
+                }
+                cb.jump((opcode & 0x01) == 0 ? ClassBuilder.IFEQ : ClassBuilder.IFNE, notTaken);
+                emitSetIP(cb, next + insn.bytes[1]);
+                cb.iconst(count);
+                cb.op(ClassBuilder.IRETURN);
+                cb.mark(notTaken);
+                emitSetIP(cb, next);
+                return BRANCH;
+            case 0xEB: // JMP Jb
+                emitSetIP(cb, next + insn.bytes[1]);
+                return BRANCH;
+            case 0xE9: // JMP Jv
+                emitSetIP(cb, next + imm16(insn, 1));
+                return BRANCH;
+            default:
+                return UNSUPPORTED;
+        }
+    }
+    
+    private static String getAluHelper(int opcode) {
+        switch (opcode & 0xF8) {
+            case 0x00:
+                return "add";
+            case 0x08:
+                return "or";
+            case 0x10:
+                return "adc";
+            case 0x20:
+                return "and";
+            case 0x30:
+                // only XOR Eb Gb and XOR Ev Gv are implemented
+                return (opcode & 0x07) < 2 ? "xor" : null;
+            case 0x38:
+                return "sub";
+            default:
+                return null;
+        }
+    }
+    
+    private static int imm16(DecodedInstruction insn, int pos) {
+        return (short) ((insn.bytes[pos] & 0xff) | (insn.bytes[pos + 1] << 8));
+    }
+    
+    private static void cpu(ClassBuilder cb) {
+        cb.local(ClassBuilder.ALOAD, CPU_VAR);
+    }
+    
+    private static void state(ClassBuilder cb) {
+        cb.local(ClassBuilder.ALOAD, STATE_VAR);
+    }
+    
+    private static void memory(ClassBuilder cb) {
+        cb.local(ClassBuilder.ALOAD, MEMORY_VAR);
+    }
+    
+    private static void getReg16(ClassBuilder cb, int reg) throws Exception {
+        state(cb);
+        cb.iconst(reg);
+        cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "getReg", "(I)I");
+    }
+    
+    private static void getReg8(ClassBuilder cb, int reg) throws Exception {
+        state(cb);
+        cb.iconst(reg);
+        cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "getReg8", "(I)B");
+    }
+    
+    /**
+     * Pushes (DS << 4) + offs.
+     */
+    private static void dsAddress(ClassBuilder cb, int offs) throws Exception {
+        state(cb);
+        cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "getDS", "()I");
+        cb.iconst(4);
+        cb.op(0x78); // ISHL
+        cb.iconst(offs & 0xffff);
+        cb.op(ClassBuilder.IADD);
+    }
+    
+    /**
+     * Sets IP to the IP at block entry plus offs.
+     */
+    private static void emitSetIP(ClassBuilder cb, int offs) throws Exception {
+        state(cb);
+        cb.local(ClassBuilder.ILOAD, IP_VAR);
+        cb.iconst(offs);
+        cb.op(ClassBuilder.IADD);
+        cb.invoke(ClassBuilder.INVOKEVIRTUAL, STATE, "setIP", "(I)V");
+    }
+    
+    private static void emitValidCheck(ClassBuilder cb, int offs, int count) throws Exception {
+        int valid = cb.newLabel();
+        cb.local(ClassBuilder.ALOAD, BLOCK_VAR);
+        cb.field(ClassBuilder.GETFIELD, BLOCK, "valid", "Z");
+        cb.jump(ClassBuilder.IFNE, valid);
+        emitSetIP(cb, offs);
+        cb.iconst(count);
+        cb.op(ClassBuilder.IRETURN);
+        cb.mark(valid);
+    }
+}
@@ -0,0 +1,265 @@
+package emulator.cpu;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import emulator.Memory;
+
+/**
+ * Memory as the CPU sees it while watchpoints are set. An access is looked
+ * up in a bitmap of watched pages, and only on a marked page compared with
+ * the watched ranges. The CPU only swaps it in while there are watchpoints,
+ * so memory without them pays nothing. Loading and reading data from the
+ * host is not watched.
+ */
+final class WatchedMemory implements Memory {
+    
+    private static final class Watchpoint {
+        final int addr;
+        final int size;
+        final int access;
+        
+        Watchpoint(int addr, int size, int access) {
+            this.addr = addr;
+            this.size = size;
+            this.access = access;
+        }
+    }
+    
+    private final Memory mem;
+    private final int mask;
+    
+    private final List<Watchpoint> watchpoints = new ArrayList<Watchpoint>();
+    /** one bit per page with a watchpoint for reads, or for writes */
+    private final long[] readPages;
+    private final long[] writePages;
+    
+    /** the first watched access since takeHit() */
+    private boolean hit;
+    private int hitAddress;
+    private boolean hitWrite;
+    
+    WatchedMemory(Memory mem) {
+        this.mem = mem;
+        mask = mem.getSize() - 1;
+        readPages = new long[(mem.getPageCount() + 63) >> 6];
+        writePages = new long[readPages.length];
+    }
+    
+    void add(int addr, int size, int access) {
+        watchpoints.add(new Watchpoint(addr & mask, size, access));
+        mark();
+    }
+    
+    /**
+     * Removes the watchpoint with the same range and access.
+     */
+    void remove(int addr, int size, int access) {
+        for (int i = 0; i < watchpoints.size(); ++i) {
+            Watchpoint w = watchpoints.get(i);
+            if (w.addr == (addr & mask) && w.size == size && w.access == access) {
+                watchpoints.remove(i);
+                mark();
+                return;
+            }
+        }
+    }
+    
+    boolean isEmpty() {
+        return watchpoints.isEmpty();
+    }
+    
+    /**
+     * Returns a copy of the watchpoints on other memory, for Cpu.fork().
+     */
+    WatchedMemory copy(Memory other) {
+        WatchedMemory copy = new WatchedMemory(other);
+        copy.watchpoints.addAll(watchpoints);
+        copy.mark();
+        return copy;
+    }
+    
+    /**
+     * Returns true, once, if a watched range was accessed.
+     */
+    boolean takeHit() {
+        boolean result = hit;
+        hit = false;
+        return result;
+    }
+    
+    int getHitAddress() {
+        return hitAddress;
+    }
+    
+    boolean isHitWrite() {
+        return hitWrite;
+    }
+    
+    private void mark() {
+        Arrays.fill(readPages, 0);
+        Arrays.fill(writePages, 0);
+        for (Watchpoint w : watchpoints) {
+            for (int page = w.addr >> PAGE_SHIFT; page <= (w.addr + w.size - 1) >> PAGE_SHIFT; ++page) {
+                int p = page & (mem.getPageCount() - 1);
+                if ((w.access & Cpu.WATCH_READ) != 0) {
+                    readPages[p >> 6] |= 1L << p;
+                }
+                if ((w.access & Cpu.WATCH_WRITE) != 0) {
+                    writePages[p >> 6] |= 1L << p;
+                }
+            }
+        }
+    }
+    
+    private void access(long[] pages, int addr, int size, int access) {
+        addr &= mask;
+        int last = (addr + size - 1) >> PAGE_SHIFT;
+        for (int page = addr >> PAGE_SHIFT; page <= last; ++page) {
+            int p = page & (mem.getPageCount() - 1);
+            if ((pages[p >> 6] & (1L << p)) != 0) {
+                check(addr, size, access);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Compares the access with the watched ranges, both may wrap around at
+     * the end of memory.
+     */
+    private void check(int addr, int size, int access) {
+        for (Watchpoint w : watchpoints) {
+            if ((w.access & access) == 0) {
+                continue;
+            }
+            // how far each start lies behind the other, modulo the memory size
+            int intoWatched = (addr - w.addr) & mask;
+            int intoAccess = (w.addr - addr) & mask;
+            if (intoWatched < w.size || intoAccess < size) {
+                if (!hit) {
+                    hit = true;
+                    hitAddress = intoWatched < w.size ? addr : w.addr;
+                    hitWrite = access == Cpu.WATCH_WRITE;
+                }
+                return;
+            }
+        }
+    }
+    
+    @Override
+    public byte getByte(int addr) {
+        access(readPages, addr, 1, Cpu.WATCH_READ);
+        return mem.getByte(addr);
+    }
+    
+    @Override
+    public short getWord(int addr) {
+        access(readPages, addr, 2, Cpu.WATCH_READ);
+        return mem.getWord(addr);
+    }
+    
+    @Override
+    public void setByte(int addr, byte v) {
+        access(writePages, addr, 1, Cpu.WATCH_WRITE);
+        mem.setByte(addr, v);
+    }
+    
+    @Override
+    public void setWord(int addr, short v) {
+        access(writePages, addr, 2, Cpu.WATCH_WRITE);
+        mem.setWord(addr, v);
+    }
+    
+    @Override
+    public void fill(int addr, int size, byte value) {
+        access(writePages, addr, size, Cpu.WATCH_WRITE);
+        mem.fill(addr, size, value);
+    }
+    
+    @Override
+    public void copy(int src, int dst, int size) {
+        access(readPages, src, size, Cpu.WATCH_READ);
+        access(writePages, dst, size, Cpu.WATCH_WRITE);
+        mem.copy(src, dst, size);
+    }
+    
+    @Override
+    public int compare(int addr1, int addr2, int size) {
+        access(readPages, addr1, size, Cpu.WATCH_READ);
+        access(readPages, addr2, size, Cpu.WATCH_READ);
+        return mem.compare(addr1, addr2, size);
+    }
+    
+    @Override
+    public int getSize() {
+        return mem.getSize();
+    }
+    
+    @Override
+    public int getPageCount() {
+        return mem.getPageCount();
+    }
+    
+    @Override
+    public void watchPage(int page, WriteListener listener) {
+        mem.watchPage(page, listener);
+    }
+    
+    @Override
+    public void unwatchPage(int page, WriteListener listener) {
+        mem.unwatchPage(page, listener);
+    }
+    
+    @Override
+    public long[] takeDirtyPages() {
+        return mem.takeDirtyPages();
+    }
+    
+    @Override
+    public boolean isDirty(int page) {
+        return mem.isDirty(page);
+    }
+    
+    @Override
+    public int addDirtyTracker() {
+        return mem.addDirtyTracker();
+    }
+    
+    @Override
+    public long[] takeDirtyPages(int tracker) {
+        return mem.takeDirtyPages(tracker);
+    }
+    
+    @Override
+    public void setReadOnly(int addr, int size, boolean value) {
+        mem.setReadOnly(addr, size, value);
+    }
+    
+    @Override
+    public boolean isReadOnly(int addr) {
+        return mem.isReadOnly(addr);
+    }
+    
+    @Override
+    public void loadData(int addr, byte[] data) {
+        mem.loadData(addr, data);
+    }
+    
+    @Override
+    public void loadData(int addr, ByteBuffer data) {
+        mem.loadData(addr, data);
+    }
+    
+    @Override
+    public void readData(int addr, byte[] data) {
+        mem.readData(addr, data);
+    }
+    
+    @Override
+    public Memory fork() {
+        return mem.fork();
+    }
+}
@@ -0,0 +1,70 @@
+package emulator.io;
+
+import java.io.PrintStream;
+
+/**
+ * Draws text cells on a terminal with ANSI escape sequences: the cursor is
+ * moved only where cells are not consecutive and colors are only set when
+ * the attribute changes.
+ */
+public class AnsiTerminal implements TextRenderer.Output {
+    
+    private static final String CSI = "\u001b[";
+    
+    /** ANSI color of each of the eight CGA colors */
+    private static final int[] COLORS = {0, 4, 2, 6, 1, 5, 3, 7};
+    
+    private final PrintStream out;
+    private final StringBuilder frame = new StringBuilder();
+    private boolean started;
+    private int lastRow = -1;
+    private int lastColumn = -1;
+    private int lastAttribute = -1;
+    
+    /**
+     * @param out should encode UTF-8 for the line drawing characters
+     */
+    public AnsiTerminal(PrintStream out) {
+        this.out = out;
+    }
+    
+    @Override
+    public void cell(int row, int column, char c, int attribute) {
+        if (!started) {
+            // clear the screen and hide the cursor
+            frame.append(CSI).append("2J").append(CSI).append("?25l");
+            started = true;
+        }
+        if (row != lastRow || column != lastColumn + 1) {
+            frame.append(CSI).append(row + 1).append(';').append(column + 1).append('H');
+        }
+        if (attribute != lastAttribute) {
+            appendColors(attribute);
+            lastAttribute = attribute;
+        }
+        frame.append(c);
+        lastRow = row;
+        lastColumn = column;
+    }
+    
+    /**
+     * Foreground in the low nibble with bit 3 for bright, background in
+     * bits 4-6, blinking in bit 7.
+     */
+    private void appendColors(int attribute) {
+        int fg = attribute & 0x0F;
+        frame.append(CSI).append("0;").append((fg >= 8 ? 90 : 30) + COLORS[fg & 0x07]);
+        frame.append(';').append(40 + COLORS[(attribute >> 4) & 0x07]);
+        if ((attribute & 0x80) != 0) {
+            frame.append(";5");
+        }
+        frame.append('m');
+    }
+    
+    @Override
+    public void flush() {
+        out.print(frame);
+        out.flush();
+        frame.setLength(0);
+    }
+}
@@ -0,0 +1,34 @@
+package emulator.io;
+
+import java.io.PrintStream;
+
+/**
+ * Prints characters the BIOS writes to its debug ports (0x402, 0x403 and
+ * 0xE9 for the Bochs BIOS).
+ */
+public class DebugConsole implements IoDevice {
+    
+    private final PrintStream out;
+    
+    public DebugConsole(PrintStream out) {
+        this.out = out;
+    }
+    
+    public void attach(IoBus bus) {
+        bus.register(0x402, 0x403, this);
+        bus.register(0xE9, 0xE9, this);
+    }
+    
+    @Override
+    public int inb(int port) {
+        return port == 0xE9 ? 0xE9 : 0; // port E9 hack detection
+    }
+    
+    @Override
+    public void outb(int port, int value) {
+        out.write(value);
+        if (value == '\n') {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package emulator.io;
+
+/**
+ * The 64K I/O port space. Every port maps to a device through a flat
+ * array, ports nobody registered go to an {@link UnhandledPorts}.
+ */
+public class IoBus {
+    
+    public static final int PORT_COUNT = 0x10000;
+    
+    private final IoDevice[] devices = new IoDevice[PORT_COUNT];
+    
+    private final UnhandledPorts unhandled = new UnhandledPorts();
+    
+    /** accesses per port (word accesses count at the first one), null unless counting */
+    private int[] counts;
+    
+    public IoBus() {
+        unregister(0, PORT_COUNT - 1);
+    }
+    
+    /**
+     * Routes ports first..last (inclusive) to the device.
+     */
+    public void register(int first, int last, IoDevice device) {
+        for (int port = first; port <= last; ++port) {
+            devices[port] = device;
+        }
+    }
+    
+    public void unregister(int first, int last) {
+        register(first, last, unhandled);
+    }
+    
+    public IoDevice getDevice(int port) {
+        return devices[port & 0xffff];
+    }
+    
+    public UnhandledPorts getUnhandledPorts() {
+        return unhandled;
+    }
+    
+    /**
+     * Starts or stops counting accesses per port, for all devices.
+     */
+    public void setCounting(boolean enabled) {
+        counts = enabled ? new int[PORT_COUNT] : null;
+    }
+    
+    public int getAccessCount(int port) {
+        return null == counts ? 0 : counts[port & 0xffff];
+    }
+    
+    public int inb(int port) {
+        port &= 0xffff;
+        if (null != counts) {
+            ++counts[port];
+        }
+        return devices[port].inb(port) & 0xff;
+    }
+    
+    public void outb(int port, int value) {
+        port &= 0xffff;
+        if (null != counts) {
+            ++counts[port];
+        }
+        devices[port].outb(port, value & 0xff);
+    }
+    
+    public int inw(int port) {
+        port &= 0xffff;
+        IoDevice device = devices[port];
+        if (device != devices[(port + 1) & 0xffff]) {
+            return inb(port) | (inb(port + 1) << 8);
+        }
+        if (null != counts) {
+            ++counts[port];
+        }
+        return device.inw(port) & 0xffff;
+    }
+    
+    public void outw(int port, int value) {
+        port &= 0xffff;
+        IoDevice device = devices[port];
+        if (device != devices[(port + 1) & 0xffff]) {
+            outb(port, value);
+            outb(port + 1, value >> 8);
+            return;
+        }
+        if (null != counts) {
+            ++counts[port];
+        }
+        device.outw(port, value & 0xffff);
+    }
+}
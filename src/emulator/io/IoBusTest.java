@@ -0,0 +1,62 @@
+package emulator.io;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IoBusTest {
+    
+    private static class Register implements IoDevice {
+        int value;
+        
+        @Override
+        public int inb(int port) {
+            return value;
+        }
+        
+        @Override
+        public void outb(int port, int value) {
+            this.value = value;
+        }
+    }
+    
+    @Test
+    public void testDispatch() {
+        IoBus bus = new IoBus();
+        Register a = new Register();
+        Register b = new Register();
+        bus.register(0x60, 0x60, a);
+        bus.register(0x61, 0x61, b);
+        
+        bus.outw(0x60, 0x1234);
+        assertEquals(0x34, a.value);
+        assertEquals(0x12, b.value);
+        assertEquals(0x1234, bus.inw(0x60));
+        
+        bus.unregister(0x61, 0x61);
+        assertEquals(0x0034, bus.inw(0x60));
+        assertSame(a, bus.getDevice(0x10060));
+    }
+    
+    @Test
+    public void testCounting() {
+        IoBus bus = new IoBus();
+        bus.register(0x60, 0x60, new Register());
+        bus.outb(0x80, 1);
+        bus.outb(0x80, 2);
+        bus.inb(0x81);
+        
+        UnhandledPorts unhandled = bus.getUnhandledPorts();
+        assertEquals(2, unhandled.getWrites(0x80));
+        assertEquals(1, unhandled.getReads(0x81));
+        assertEquals(0, bus.getAccessCount(0x60));
+        
+        bus.setCounting(true);
+        bus.inb(0x60);
+        bus.outw(0xffff, 0x0102); // wraps around to port 0
+        assertEquals(1, bus.getAccessCount(0x60));
+        assertEquals(1, bus.getAccessCount(0xffff));
+        assertEquals(0, bus.getAccessCount(0));
+        assertEquals(1, unhandled.getWrites(0));
+    }
+}
@@ -0,0 +1,23 @@
+package emulator.io;
+
+/**
+ * A device on the I/O bus. Values are unsigned, ports are 0..FFFF.
+ */
+public interface IoDevice {
+    
+    int inb(int port);
+    
+    void outb(int port, int value);
+    
+    /**
+     * Word read, by default two byte reads from port and port + 1.
+     */
+    default int inw(int port) {
+        return inb(port) | (inb((port + 1) & 0xffff) << 8);
+    }
+    
+    default void outw(int port, int value) {
+        outb(port, value & 0xff);
+        outb((port + 1) & 0xffff, (value >> 8) & 0xff);
+    }
+}
@@ -0,0 +1,182 @@
+package emulator.io;
+
+import java.nio.ByteBuffer;
+
+import emulator.Scheduler;
+import emulator.Snapshot;
+import emulator.cpu.InterruptController;
+
+/**
+ * 8259A programmable interrupt controller: edge triggered, fixed priority
+ * (IRQ0 highest), optionally with a slave cascaded on one of its inputs.
+ */
+public class Pic8259 implements IoDevice, InterruptController, Snapshot.Part {
+    
+    private final Scheduler scheduler;
+    
+    private int base;
+    
+    /** interrupt request, mask and in service registers */
+    private int irr;
+    private int imr = 0xff;
+    private int isr;
+    
+    private int vectorBase;
+    
+    /** next initialization word expected, 0 when initialized */
+    private int initStep;
+    private boolean single;
+    private boolean needIcw4;
+    private boolean autoEoi;
+    
+    /** OCW3 selects what the command port reads */
+    private boolean readIsr;
+    
+    private Pic8259 slave;
+    private Pic8259 master;
+    private int cascadeIrq;
+    
+    public Pic8259(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+    
+    /**
+     * Registers the command port at base and the data port at base + 1,
+     * 0x20 for the master and 0xA0 for the slave on an AT.
+     */
+    public void attach(IoBus bus, int base) {
+        this.base = base;
+        bus.register(base, base + 1, this);
+    }
+    
+    /**
+     * Connects the slave's output to the given input of this controller.
+     */
+    public void setSlave(Pic8259 slave, int irq) {
+        this.slave = slave;
+        slave.master = this;
+        cascadeIrq = irq;
+    }
+    
+    /**
+     * Signals a rising edge on an input.
+     */
+    public void raiseIrq(int irq) {
+        irr |= 1 << irq;
+        changed();
+    }
+    
+    @Override
+    public boolean hasInterrupt() {
+        int requests = irr & ~imr;
+        return requests != 0
+                && Integer.numberOfTrailingZeros(requests) < Integer.numberOfTrailingZeros(isr | 0x100);
+    }
+    
+    @Override
+    public int acknowledge() {
+        int irq = Integer.numberOfTrailingZeros(irr & ~imr);
+        if (irq > 7) {
+            return vectorBase | 7; // spurious
+        }
+        irr &= ~(1 << irq);
+        if (!autoEoi) {
+            isr |= 1 << irq;
+        }
+        int vector = null != slave && irq == cascadeIrq ? slave.acknowledge() : vectorBase | irq;
+        changed();
+        return vector;
+    }
+    
+    /**
+     * Lets the CPU, or the master for a slave, know about a pending
+     * request.
+     */
+    private void changed() {
+        if (!hasInterrupt()) {
+            return;
+        }
+        if (null != master) {
+            master.raiseIrq(master.cascadeIrq);
+        } else {
+            scheduler.wake();
+        }
+    }
+    
+    @Override
+    public int inb(int port) {
+        if (port == base) {
+            return readIsr ? isr : irr;
+        }
+        return imr;
+    }
+    
+    @Override
+    public void outb(int port, int value) {
+        if (port == base) {
+            if ((value & 0x10) != 0) { // ICW1
+                initStep = 2;
+                needIcw4 = (value & 0x01) != 0;
+                single = (value & 0x02) != 0;
+                autoEoi = false;
+                imr = 0;
+                isr = 0;
+                irr = 0;
+                readIsr = false;
+            } else if ((value & 0x08) != 0) { // OCW3
+                if ((value & 0x02) != 0) {
+                    readIsr = (value & 0x01) != 0;
+                }
+            } else { // OCW2
+                switch (value >> 5) {
+                    case 1: // non-specific EOI
+                        isr &= isr - 1;
+                        break;
+                    case 3: // specific EOI
+                        isr &= ~(1 << (value & 0x07));
+                        break;
+                }
+                changed();
+            }
+            return;
+        }
+        
+        switch (initStep) {
+            case 2:
+                vectorBase = value & 0xf8;
+                initStep = single ? (needIcw4 ? 4 : 0) : 3;
+                break;
+            case 3: // cascade wiring, see setSlave()
+                initStep = needIcw4 ? 4 : 0;
+                break;
+            case 4:
+                autoEoi = (value & 0x02) != 0;
+                initStep = 0;
+                break;
+            default: // OCW1
+                imr = value;
+                changed();
+                break;
+        }
+    }
+    
+    @Override
+    public void save(ByteBuffer out) {
+        out.put((byte) irr).put((byte) imr).put((byte) isr).put((byte) vectorBase).put((byte) initStep);
+        out.put((byte) ((single ? 1 : 0) | (needIcw4 ? 2 : 0) | (autoEoi ? 4 : 0) | (readIsr ? 8 : 0)));
+    }
+    
+    @Override
+    public void restore(ByteBuffer in) {
+        irr = in.get() & 0xff;
+        imr = in.get() & 0xff;
+        isr = in.get() & 0xff;
+        vectorBase = in.get() & 0xff;
+        initStep = in.get();
+        int bits = in.get();
+        single = (bits & 1) != 0;
+        needIcw4 = (bits & 2) != 0;
+        autoEoi = (bits & 4) != 0;
+        readIsr = (bits & 8) != 0;
+    }
+}
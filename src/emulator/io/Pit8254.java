@@ -0,0 +1,209 @@
+package emulator.io;
+
+import java.nio.ByteBuffer;
+
+import emulator.Scheduler;
+import emulator.Snapshot;
+
+/**
+ * 8254 programmable interval timer. Channel 0 drives IRQ0, channels 1 and
+ * 2 only count. Counters are not stepped, their value is computed from
+ * the cycles elapsed since they were loaded.
+ */
+public class Pit8254 implements IoDevice, Snapshot.Part {
+    
+    /** 4.77 MHz CPU clock, 1.19 MHz timer clock */
+    public static final int CYCLES_PER_TICK = 4;
+    
+    private final Scheduler scheduler;
+    private final Pic8259 pic;
+    
+    private final Channel[] channels = new Channel[3];
+    
+    class Channel implements Scheduler.Event {
+        
+        private final Scheduler.Timer timer;
+        
+        private int mode;
+        /** 1 LSB only, 2 MSB only, 3 LSB then MSB */
+        private int access = 3;
+        private int reload = 0x10000;
+        
+        /** cycle the count was loaded at, -1 while not counting */
+        private long start = -1;
+        
+        private boolean writeMsb;
+        private int writeLsb;
+        private boolean readMsb;
+        private boolean latched;
+        private int latch;
+        
+        Channel(boolean interrupts) {
+            timer = interrupts ? scheduler.newTimer(this) : null;
+        }
+        
+        void control(int value) {
+            int rw = (value >> 4) & 0x03;
+            if (rw == 0) { // counter latch
+                if (!latched) {
+                    latch = count();
+                    latched = true;
+                }
+                return;
+            }
+            access = rw;
+            mode = (value >> 1) & 0x07;
+            if (mode > 5) {
+                mode -= 4; // 6 and 7 are 2 and 3
+            }
+            writeMsb = false;
+            readMsb = false;
+            latched = false;
+            start = -1;
+            if (null != timer) {
+                timer.cancel();
+            }
+        }
+        
+        void write(int value) {
+            switch (access) {
+                case 1:
+                    load(value);
+                    break;
+                case 2:
+                    load(value << 8);
+                    break;
+                default:
+                    if (!writeMsb) {
+                        writeLsb = value;
+                        writeMsb = true;
+                    } else {
+                        writeMsb = false;
+                        load(writeLsb | (value << 8));
+                    }
+                    break;
+            }
+        }
+        
+        int read() {
+            int value = latched ? latch : count();
+            switch (access) {
+                case 1:
+                    latched = false;
+                    return value & 0xff;
+                case 2:
+                    latched = false;
+                    return value >> 8;
+                default:
+                    readMsb = !readMsb;
+                    if (readMsb) {
+                        return value & 0xff;
+                    }
+                    latched = false;
+                    return value >> 8;
+            }
+        }
+        
+        private void load(int value) {
+            reload = value == 0 ? 0x10000 : value;
+            start = scheduler.getCycles();
+            if (null != timer) {
+                timer.schedule(start + (long) reload * CYCLES_PER_TICK);
+            }
+        }
+        
+        int count() {
+            if (start < 0) {
+                return 0;
+            }
+            long ticks = (scheduler.getCycles() - start) / CYCLES_PER_TICK;
+            if (mode == 2 || mode == 3) {
+                return (int) (reload - ticks % reload) & 0xffff;
+            }
+            // one-shot modes keep counting down after reaching 0
+            return (int) (reload - ticks) & 0xffff;
+        }
+        
+        void save(ByteBuffer out) {
+            out.put((byte) mode).put((byte) access).putInt(reload).putLong(start);
+            out.put((byte) ((writeMsb ? 1 : 0) | (readMsb ? 2 : 0) | (latched ? 4 : 0)));
+            out.put((byte) writeLsb).putShort((short) latch);
+            out.putLong(null != timer && timer.isScheduled() ? timer.getDeadline() : -1);
+        }
+        
+        void restore(ByteBuffer in) {
+            mode = in.get();
+            access = in.get();
+            reload = in.getInt();
+            start = in.getLong();
+            int bits = in.get();
+            writeMsb = (bits & 1) != 0;
+            readMsb = (bits & 2) != 0;
+            latched = (bits & 4) != 0;
+            writeLsb = in.get() & 0xff;
+            latch = in.getShort() & 0xffff;
+            long deadline = in.getLong();
+            if (null != timer) {
+                if (deadline >= 0) {
+                    timer.schedule(deadline);
+                } else {
+                    timer.cancel();
+                }
+            }
+        }
+        
+        @Override
+        public void fire(long cycle) {
+            pic.raiseIrq(0);
+            if (mode == 2 || mode == 3) {
+                timer.schedule(cycle + (long) reload * CYCLES_PER_TICK);
+            }
+        }
+    }
+    
+    public Pit8254(Scheduler scheduler, Pic8259 pic) {
+        this.scheduler = scheduler;
+        this.pic = pic;
+        for (int i = 0; i < channels.length; ++i) {
+            channels[i] = new Channel(i == 0);
+        }
+    }
+    
+    public void attach(IoBus bus) {
+        bus.register(0x40, 0x43, this);
+    }
+    
+    @Override
+    public int inb(int port) {
+        if (port == 0x43) {
+            return 0xff;
+        }
+        return channels[port & 0x03].read();
+    }
+    
+    @Override
+    public void outb(int port, int value) {
+        if (port == 0x43) {
+            int channel = value >> 6;
+            if (channel < 3) { // 3 is the 8254 read-back command
+                channels[channel].control(value);
+            }
+            return;
+        }
+        channels[port & 0x03].write(value);
+    }
+    
+    @Override
+    public void save(ByteBuffer out) {
+        for (Channel channel : channels) {
+            channel.save(out);
+        }
+    }
+    
+    @Override
+    public void restore(ByteBuffer in) {
+        for (Channel channel : channels) {
+            channel.restore(in);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package emulator.io;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import emulator.Memory;
+
+/**
+ * Draws the MDA or CGA text screen from video memory. A write listener on
+ * the CPU thread copies changed bytes into a shadow buffer and marks their
+ * character cells; a render thread redraws only the marked cells, at most
+ * so many frames a second. The CPU thread never waits for it.
+ */
+public class TextRenderer implements Memory.WriteListener {
+    
+    public static final int MDA_BASE = 0xB0000;
+    public static final int CGA_BASE = 0xB8000;
+    
+    private static final int MDA_SIZE = 0x1000;
+    /** the CGA's 16 KiB are mirrored up to here */
+    private static final int CGA_END = 0xC0000;
+    
+    /** code page 437, the character set of the PC */
+    static final String CP437 =
+            " \u263a\u263b\u2665\u2666\u2663\u2660\u2022\u25d8\u25cb\u25d9\u2642\u2640\u266a\u266b\u263c"
+            + "\u25ba\u25c4\u2195\u203c\u00b6\u00a7\u25ac\u21a8\u2191\u2193\u2192\u2190\u221f\u2194\u25b2\u25bc"
+            + " !\"#$%&'()*+,-./"
+            + "0123456789:;<=>?"
+            + "@ABCDEFGHIJKLMNO"
+            + "PQRSTUVWXYZ[\\]^_"
+            + "`abcdefghijklmno"
+            + "pqrstuvwxyz{|}~\u2302"
+            + "\u00c7\u00fc\u00e9\u00e2\u00e4\u00e0\u00e5\u00e7\u00ea\u00eb\u00e8\u00ef\u00ee\u00ec\u00c4\u00c5"
+            + "\u00c9\u00e6\u00c6\u00f4\u00f6\u00f2\u00fb\u00f9\u00ff\u00d6\u00dc\u00a2\u00a3\u00a5\u20a7\u0192"
+            + "\u00e1\u00ed\u00f3\u00fa\u00f1\u00d1\u00aa\u00ba\u00bf\u2310\u00ac\u00bd\u00bc\u00a1\u00ab\u00bb"
+            + "\u2591\u2592\u2593\u2502\u2524\u2561\u2562\u2556\u2555\u2563\u2551\u2557\u255d\u255c\u255b\u2510"
+            + "\u2514\u2534\u252c\u251c\u2500\u253c\u255e\u255f\u255a\u2554\u2569\u2566\u2560\u2550\u256c\u2567"
+            + "\u2568\u2564\u2565\u2559\u2558\u2552\u2553\u256b\u256a\u2518\u250c\u2588\u2584\u258c\u2590\u2580"
+            + "\u03b1\u00df\u0393\u03c0\u03a3\u03c3\u00b5\u03c4\u03a6\u0398\u03a9\u03b4\u221e\u03c6\u03b5\u2229"
+            + "\u2261\u00b1\u2265\u2264\u2320\u2321\u00f7\u2248\u00b0\u2219\u00b7\u221a\u207f\u00b2\u25a0 ";
+    
+    /**
+     * Where cells are drawn to, called from the render thread only.
+     */
+    public interface Output {
+        void cell(int row, int column, char c, int attribute);
+        
+        /**
+         * Called after the cells of a frame.
+         */
+        void flush();
+    }
+    
+    private final Memory mem;
+    private final Output out;
+    
+    /** video memory from MDA_BASE to CGA_END as the CPU thread last saw it */
+    private final byte[] shadow = new byte[CGA_END - MDA_BASE];
+    /** one bit per cell of the shadow, set by the CPU thread, cleared by the renderer */
+    private final AtomicLongArray dirty = new AtomicLongArray(shadow.length / 2 / 64);
+    
+    private volatile int base = CGA_BASE;
+    private volatile int columns = 80;
+    private volatile int rows = 25;
+    
+    private volatile boolean running;
+    private Thread thread;
+    private volatile long frames;
+    
+    public TextRenderer(Memory mem, Output out) {
+        this.mem = mem;
+        this.out = out;
+    }
+    
+    /**
+     * Starts watching video memory, from the thread using the memory.
+     */
+    public void attach() {
+        for (int page = MDA_BASE >> Memory.PAGE_SHIFT; page < (CGA_END >> Memory.PAGE_SHIFT); ++page) {
+            if (isVideo(page << Memory.PAGE_SHIFT)) {
+                mem.watchPage(page, this);
+            }
+        }
+        memoryWritten(MDA_BASE, MDA_SIZE);
+        memoryWritten(CGA_BASE, CGA_END - CGA_BASE);
+        markDisplay();
+    }
+    
+    public void detach() {
+        for (int page = MDA_BASE >> Memory.PAGE_SHIFT; page < (CGA_END >> Memory.PAGE_SHIFT); ++page) {
+            if (isVideo(page << Memory.PAGE_SHIFT)) {
+                mem.unwatchPage(page, this);
+            }
+        }
+    }
+    
+    private static boolean isVideo(int addr) {
+        return (addr >= MDA_BASE && addr < MDA_BASE + MDA_SIZE) || (addr >= CGA_BASE && addr < CGA_END);
+    }
+    
+    /**
+     * Selects the text buffer shown, e.g. MDA_BASE or a CGA page, and
+     * redraws it as a whole.
+     */
+    public void setDisplay(int base, int columns, int rows) {
+        this.base = base;
+        this.columns = columns;
+        this.rows = rows;
+        markDisplay();
+    }
+    
+    @Override
+    public void memoryWritten(int addr, int size) {
+        int end = Math.min(addr + size, CGA_END);
+        for (int a = Math.max(addr, MDA_BASE); a < end; ++a) {
+            if (!isVideo(a)) {
+                continue;
+            }
+            byte value = mem.getByte(a);
+            int i = a - MDA_BASE;
+            if (shadow[i] != value) {
+                shadow[i] = value;
+                mark(i >> 1);
+            }
+        }
+    }
+    
+    private void markDisplay() {
+        int first = (base - MDA_BASE) >> 1;
+        for (int cell = first; cell < first + columns * rows; ++cell) {
+            mark(cell);
+        }
+    }
+    
+    /**
+     * Always a volatile write, so the shadow bytes written before are seen
+     * by the renderer once it takes the bit.
+     */
+    private void mark(int cell) {
+        long bit = 1L << cell;
+        long old;
+        do {
+            old = dirty.get(cell >> 6);
+        } while (!dirty.compareAndSet(cell >> 6, old, old | bit));
+    }
+    
+    /**
+     * Draws the cells changed since the last frame, from one thread at a
+     * time. Returns how many were drawn.
+     */
+    public int render() {
+        int first = (base - MDA_BASE) >> 1;
+        int columns = this.columns;
+        int count = columns * this.rows;
+        int drawn = 0;
+        for (int w = first >> 6; w <= (first + count - 1) >> 6; ++w) {
+            if (dirty.get(w) == 0) {
+                continue;
+            }
+            for (long bits = dirty.getAndSet(w, 0); bits != 0; bits &= bits - 1) {
+                int cell = (w << 6) + Long.numberOfTrailingZeros(bits);
+                int index = cell - first;
+                if (index < 0 || index >= count) {
+                    continue;
+                }
+                out.cell(index / columns, index % columns, CP437.charAt(shadow[cell << 1] & 0xff),
+                        shadow[(cell << 1) + 1] & 0xff);
+                ++drawn;
+            }
+        }
+        if (drawn > 0) {
+            out.flush();
+            ++frames;
+        }
+        return drawn;
+    }
+    
+    /**
+     * Starts a daemon thread calling render() up to fps times a second.
+     */
+    public void start(int fps) {
+        final long frameNanos = 1000000000L / fps;
+        running = true;
+        thread = new Thread("text-renderer") {
+            @Override
+            public void run() {
+                while (running) {
+                    long start = System.nanoTime();
+                    render();
+                    LockSupport.parkNanos(frameNanos - (System.nanoTime() - start));
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stops the render thread after a last frame.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join();
+        render();
+    }
+    
+    /**
+     * Returns the number of frames that drew anything.
+     */
+    public long getFrames() {
+        return frames;
+    }
+}
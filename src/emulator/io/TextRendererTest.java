@@ -0,0 +1,80 @@
+package emulator.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import emulator.HeapMemory;
+import emulator.Memory;
+
+public class TextRendererTest {
+    
+    @Test
+    public void testRender() {
+        Memory mem = new HeapMemory(0x100000);
+        mem.setWord(TextRenderer.CGA_BASE, (short) 0x0741);
+        TextScreen screen = new TextScreen(25, 80);
+        TextRenderer renderer = new TextRenderer(mem, screen);
+        renderer.attach();
+        assertEquals(80 * 25, renderer.render());
+        assertEquals('A', screen.getLine(0).charAt(0));
+        assertEquals(0, renderer.render());
+        
+        mem.setWord(TextRenderer.CGA_BASE + 2, (short) 0x1F42);
+        mem.setWord(TextRenderer.CGA_BASE, (short) 0x0741);         // unchanged
+        assertEquals(1, renderer.render());
+        assertEquals("AB", screen.getLine(0).substring(0, 2));
+        assertEquals(0x1F, screen.getAttribute(0, 1));
+        
+        mem.loadData(TextRenderer.CGA_BASE + 160, new byte[] {'H', 7, 'i', 7, (byte) 0xC4, 7});
+        assertEquals(3, renderer.render());
+        assertEquals("AB\nHi─\n", screen.toString().substring(0, 7));
+        
+        // writes elsewhere are not watched
+        mem.setWord(TextRenderer.CGA_BASE - 2, (short) 0x0741);
+        assertEquals(0, renderer.render());
+        
+        mem.setWord(TextRenderer.MDA_BASE, (short) 0x0758);
+        assertEquals(0, renderer.render());
+        renderer.setDisplay(TextRenderer.MDA_BASE, 80, 25);
+        assertEquals(80 * 25, renderer.render());
+        assertEquals("X\n", screen.toString().substring(0, 2));
+        
+        renderer.detach();
+        mem.setWord(TextRenderer.MDA_BASE, (short) 0x0759);
+        assertEquals(0, renderer.render());
+    }
+    
+    @Test
+    public void testThread() throws Exception {
+        Memory mem = new HeapMemory(0x100000);
+        TextScreen screen = new TextScreen(25, 80);
+        TextRenderer renderer = new TextRenderer(mem, screen);
+        renderer.attach();
+        renderer.start(1000);
+        mem.loadData(TextRenderer.CGA_BASE, new byte[] {'o', 7, 'k', 7});
+        long deadline = System.nanoTime() + 5000000000L;
+        while (!screen.getLine(0).startsWith("ok") && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        renderer.stop();
+        assertTrue(screen.getLine(0).startsWith("ok"));
+        assertTrue(renderer.getFrames() > 0);
+    }
+    
+    @Test
+    public void testAnsiTerminal() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AnsiTerminal terminal = new AnsiTerminal(new PrintStream(bytes, false, "UTF-8"));
+        terminal.cell(0, 0, 'A', 0x07);
+        terminal.cell(0, 1, 'B', 0x07);
+        terminal.cell(1, 0, '─', 0x1E);
+        terminal.flush();
+        assertEquals("\u001b[2J\u001b[?25l"
+                + "\u001b[1;1H\u001b[0;37;40mAB"
+                + "\u001b[2;1H\u001b[0;93;44m─", bytes.toString("UTF-8"));
+    }
+}
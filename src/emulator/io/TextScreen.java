@@ -0,0 +1,60 @@
+package emulator.io;
+
+import java.util.Arrays;
+
+/**
+ * A headless screen buffer, for tests and for looking at the guest's
+ * screen without a terminal. Safe to read while the renderer draws.
+ */
+public class TextScreen implements TextRenderer.Output {
+    
+    private final int rows;
+    private final int columns;
+    private final char[] chars;
+    private final byte[] attributes;
+    
+    public TextScreen(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+        chars = new char[rows * columns];
+        attributes = new byte[rows * columns];
+        Arrays.fill(chars, ' ');
+    }
+    
+    @Override
+    public synchronized void cell(int row, int column, char c, int attribute) {
+        if (row < rows && column < columns) {
+            chars[row * columns + column] = c;
+            attributes[row * columns + column] = (byte) attribute;
+        }
+    }
+    
+    @Override
+    public void flush() {
+    }
+    
+    public synchronized String getLine(int row) {
+        return new String(chars, row * columns, columns);
+    }
+    
+    public synchronized int getAttribute(int row, int column) {
+        return attributes[row * columns + column] & 0xff;
+    }
+    
+    /**
+     * Returns all rows with trailing blanks removed, one per line.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row < rows; ++row) {
+            String line = getLine(row);
+            int end = line.length();
+            while (end > 0 && line.charAt(end - 1) == ' ') {
+                --end;
+            }
+            sb.append(line, 0, end).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,43 @@
+package emulator.io;
+
+/**
+ * Answers every port nobody else handles: reads return 0, writes are
+ * dropped, and accesses are counted per port.
+ */
+public class UnhandledPorts implements IoDevice {
+    
+    private final int[] reads = new int[IoBus.PORT_COUNT];
+    private final int[] writes = new int[IoBus.PORT_COUNT];
+    
+    @Override
+    public int inb(int port) {
+        ++reads[port];
+        return 0;
+    }
+    
+    @Override
+    public void outb(int port, int value) {
+        ++writes[port];
+    }
+    
+    public int getReads(int port) {
+        return reads[port & 0xffff];
+    }
+    
+    public int getWrites(int port) {
+        return writes[port & 0xffff];
+    }
+    
+    /**
+     * Returns one line per port that was accessed.
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (int port = 0; port < IoBus.PORT_COUNT; ++port) {
+            if (reads[port] != 0 || writes[port] != 0) {
+                sb.append(String.format("port 0x%04X: %d reads, %d writes%n", port, reads[port], writes[port]));
+            }
+        }
+        return sb.toString();
+    }
+}